@@ -0,0 +1,131 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+
+package ola;
+
+import java.util.concurrent.TimeUnit;
+
+import ola.proto.Ola.DmxData;
+import ola.rpc.AbstractRpcChannel;
+import ola.rpc.NioRpcChannel;
+import ola.rpc.RpcEventLoop;
+import ola.rpc.StreamRpcChannel;
+import ola.testing.FakeOlad;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end DMX calls against a FakeOlad on the loopback interface, over
+ * both transports.
+ *
+ * Throughput and sampled latency are both reported; the sample mode
+ * output includes the p99. Run with "-prof gc" to see the allocation rate.
+ * streamDmx doesn't wait for olad, so it measures how fast updates can be
+ * queued; updates which don't fit in the write queue are dropped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientBenchmark {
+
+    private static final int UNIVERSE = 1;
+
+    @Param({"stream", "nio"})
+    public String transport;
+
+    private FakeOlad olad;
+
+    private RpcEventLoop eventLoop;
+
+    private OlaClient client;
+
+    private DmxFrame frame;
+
+    private byte[] values;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        olad = new FakeOlad().start();
+
+        AbstractRpcChannel channel;
+        if (transport.equals("nio")) {
+            eventLoop = new RpcEventLoop();
+            eventLoop.start();
+            channel = new NioRpcChannel(eventLoop, olad.getHost(), olad.getPort());
+        } else {
+            channel = new StreamRpcChannel(olad.getHost(), olad.getPort());
+        }
+        client = new OlaClient(channel);
+
+        values = new byte[DmxFrame.MAX_CHANNELS];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (byte) i;
+        }
+        frame = new DmxFrame(UNIVERSE);
+        frame.setData(values, 0, values.length);
+        client.sendDmx(frame);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+        if (eventLoop != null) {
+            eventLoop.stop();
+        }
+        olad.stop();
+    }
+
+
+    @Benchmark
+    public boolean sendDmx() {
+        return client.sendDmx(frame);
+    }
+
+
+    @Benchmark
+    public boolean sendDmxBytes() {
+        return client.sendDmx(UNIVERSE, values);
+    }
+
+
+    @Benchmark
+    public void streamDmx() {
+        client.streamDmx(frame);
+    }
+
+
+    @Benchmark
+    public DmxData getDmx() {
+        return client.getDmx(UNIVERSE);
+    }
+}
@@ -0,0 +1,84 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+
+package ola;
+
+import java.util.concurrent.TimeUnit;
+
+import ola.rpc.SinkRpcChannel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Cost of converting a full universe between the short[] values used by
+ * the OlaClient API and the bytes sent to olad.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+
+    private OlaClient client;
+
+    private short[] values;
+
+    private ByteString data;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        client = new OlaClient(new SinkRpcChannel());
+        values = new short[DmxFrame.MAX_CHANNELS];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (short) (i % 256);
+        }
+        data = client.convertToUnsigned(values);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+    }
+
+
+    @Benchmark
+    public ByteString convertToUnsigned() {
+        return client.convertToUnsigned(values);
+    }
+
+
+    @Benchmark
+    public short[] convertFromUnsigned() {
+        return client.convertFromUnsigned(data);
+    }
+}
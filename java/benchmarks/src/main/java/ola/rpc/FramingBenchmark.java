@@ -0,0 +1,171 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola.rpc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import ola.DmxFrame;
+import ola.proto.Ola.DmxData;
+import ola.proto.Ola.OlaServerService;
+import ola.proto.Ola.STREAMING_NO_RESPONSE;
+import ola.rpc.Rpc.RpcMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Message;
+
+/**
+ * Cost of framing a DMX update into an RpcMessage and of decoding a framed
+ * DmxData response, without any I/O.
+ *
+ * encodeDmxFrame is the path streamDmx(DmxFrame) takes, encodeDmxData the
+ * path taken when the request is a generated DmxData message, and
+ * encodeBuilder what building and serializing the protobuf messages costs.
+ * decodeResponse is the path the channels take for each response and
+ * decodeRpcMessage the cost of parsing an RpcMessage and then its payload.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    @Param({"24", "512"})
+    public int channels;
+
+    private SinkRpcChannel channel;
+
+    private SimpleRpcController controller;
+
+    private MethodDescriptor streamDmxMethod;
+
+    private DmxFrame frame;
+
+    private DmxData dmxData;
+
+    private byte[] framedResponse;
+
+    private RpcDecoder decoder;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        channel = new SinkRpcChannel();
+        controller = new SimpleRpcController();
+        streamDmxMethod = OlaServerService.getDescriptor().findMethodByName("StreamDmxData");
+
+        byte[] data = new byte[channels];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        frame = new DmxFrame(1);
+        frame.setData(data, 0, data.length);
+        dmxData = DmxData.newBuilder().setUniverse(1).setData(ByteString.copyFrom(data)).build();
+
+        byte[] message = RpcMessage.newBuilder()
+                .setType(Rpc.Type.RESPONSE)
+                .setId(1234)
+                .setBuffer(dmxData.toByteString())
+                .build()
+                .toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(AbstractRpcChannel.HEADER_SIZE + message.length)
+                .order(ByteOrder.nativeOrder());
+        buffer.putInt((1 << 28) | message.length);
+        buffer.put(message);
+        framedResponse = buffer.array();
+        decoder = new RpcDecoder();
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.close();
+    }
+
+
+    @Benchmark
+    public long encodeDmxFrame() {
+        channel.callMethod(streamDmxMethod, controller, frame,
+                STREAMING_NO_RESPONSE.getDefaultInstance(), null);
+        return channel.getBytesQueued();
+    }
+
+
+    @Benchmark
+    public long encodeDmxData() {
+        channel.callMethod(streamDmxMethod, controller, dmxData,
+                STREAMING_NO_RESPONSE.getDefaultInstance(), null);
+        return channel.getBytesQueued();
+    }
+
+
+    @Benchmark
+    public byte[] encodeBuilder() {
+        DmxData request = DmxData.newBuilder()
+                .setUniverse(1)
+                .setData(ByteString.copyFrom(frame.getData(), 0, frame.getLength()))
+                .build();
+        byte[] message = RpcMessage.newBuilder()
+                .setType(Rpc.Type.STREAM_REQUEST)
+                .setId(1234)
+                .setName("StreamDmxData")
+                .setBuffer(request.toByteString())
+                .build()
+                .toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(AbstractRpcChannel.HEADER_SIZE + message.length)
+                .order(ByteOrder.nativeOrder());
+        buffer.putInt((1 << 28) | message.length);
+        buffer.put(message);
+        return buffer.array();
+    }
+
+
+    @Benchmark
+    public Message decodeResponse() throws Exception {
+        decoder.write(framedResponse, 0, framedResponse.length);
+        decoder.next();
+        return decoder.parsePayload(DmxData.getDefaultInstance());
+    }
+
+
+    @Benchmark
+    public DmxData decodeRpcMessage() throws Exception {
+        int header = ByteBuffer.wrap(framedResponse, 0, AbstractRpcChannel.HEADER_SIZE)
+                .order(ByteOrder.nativeOrder()).getInt();
+        int size = AbstractRpcChannel.decodeSize(header);
+        RpcMessage message = RpcMessage.parseFrom(
+                ByteString.copyFrom(framedResponse, AbstractRpcChannel.HEADER_SIZE, size));
+        return DmxData.newBuilder().mergeFrom(message.getBuffer()).build();
+    }
+}
@@ -0,0 +1,61 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola.rpc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A channel which encodes messages exactly as a connected channel would but
+ * discards them instead of writing them, so the encoding cost can be
+ * measured without any I/O.
+ */
+public class SinkRpcChannel extends AbstractRpcChannel {
+
+    private long bytesQueued = 0;
+
+
+    public SinkRpcChannel() {
+        super(false);
+        channelOpened();
+    }
+
+
+    protected void openConnection() {
+        channelOpened();
+    }
+
+
+    protected void closeConnection() {
+        channelClosed("Channel closed");
+    }
+
+
+    /**
+     * @return the total size of the messages discarded so far.
+     */
+    public long getBytesQueued() {
+        return bytesQueued;
+    }
+
+
+    protected void messageQueued() {
+        ByteBuffer buffer;
+        while ((buffer = pollQueuedMessage()) != null) {
+            bytesQueued += buffer.limit();
+            releaseBuffer(buffer);
+        }
+    }
+}
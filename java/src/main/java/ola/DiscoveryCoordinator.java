@@ -0,0 +1,180 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import ola.proto.Ola.UIDListReply;
+import ola.proto.Ola.UniverseInfo;
+import ola.proto.Ola.UniverseInfoReply;
+
+/**
+ * Runs RDM discovery on many universes at once and keeps a UidInventory
+ * of what was found.
+ *
+ * Discovery on one universe can take seconds, most of it spent waiting
+ * for responders, and olad discovers each universe independently. The
+ * coordinator therefore starts discovery on every universe straight away
+ * rather than one after another, so a whole rig takes about as long as
+ * its slowest universe. As each universe finishes the inventory is updated
+ * and the UIDs added and removed are reported.
+ *
+ * A universe whose discovery fails keeps the UIDs found previously, and is
+ * left out of the changes.
+ */
+public class DiscoveryCoordinator {
+
+    private static Logger logger = Logger.getLogger(DiscoveryCoordinator.class.getName());
+
+    private final OlaClient client;
+
+    private final UidInventory inventory;
+
+
+    /**
+     * Create a coordinator with an empty inventory.
+     *
+     * @param client the client to run discovery with
+     */
+    public DiscoveryCoordinator(OlaClient client) {
+        this(client, new UidInventory());
+    }
+
+
+    /**
+     * Create a coordinator which updates an existing inventory.
+     *
+     * @param client the client to run discovery with
+     * @param inventory the inventory to update
+     */
+    public DiscoveryCoordinator(OlaClient client, UidInventory inventory) {
+        this.client = client;
+        this.inventory = inventory;
+    }
+
+
+    /**
+     * @return the UIDs found so far.
+     */
+    public UidInventory getInventory() {
+        return inventory;
+    }
+
+
+    /**
+     * Run discovery on several universes in parallel.
+     *
+     * @param universes the ids of the universes
+     * @param full true for full discovery, false for incremental discovery
+     *        which only looks for devices added or removed since the last
+     *        run.
+     * @return future which completes once every universe has finished, with
+     *         the changes for each universe which succeeded.
+     */
+    public CompletableFuture<List<UidChanges>> discover(Collection<Integer> universes, final boolean full) {
+        return update(universes, new Function<Integer, CompletableFuture<UIDListReply>>() {
+            public CompletableFuture<UIDListReply> apply(Integer universe) {
+                return client.forceDiscoveryAsync(universe, full);
+            }
+        });
+    }
+
+
+    /**
+     * Run discovery on every universe which has output ports, which is
+     * where RDM devices are found.
+     *
+     * @param full true for full discovery, false for incremental
+     * @return future which completes with the changes for each universe.
+     */
+    public CompletableFuture<List<UidChanges>> discoverAll(final boolean full) {
+        return client.getUniverseInfoAsync().thenCompose(
+                new Function<UniverseInfoReply, CompletableFuture<List<UidChanges>>>() {
+                    public CompletableFuture<List<UidChanges>> apply(UniverseInfoReply reply) {
+                        List<Integer> universes = new ArrayList<Integer>();
+                        for (UniverseInfo info : reply.getUniverseList()) {
+                            if (info.getOutputPortCount() > 0) {
+                                universes.add(info.getUniverse());
+                            }
+                        }
+                        return discover(universes, full);
+                    }
+                });
+    }
+
+
+    /**
+     * Fetch the UIDs olad already knows about, without running discovery,
+     * for several universes in parallel.
+     *
+     * @param universes the ids of the universes
+     * @return future which completes with the changes for each universe.
+     */
+    public CompletableFuture<List<UidChanges>> refresh(Collection<Integer> universes) {
+        return update(universes, new Function<Integer, CompletableFuture<UIDListReply>>() {
+            public CompletableFuture<UIDListReply> apply(Integer universe) {
+                return client.getUIDsAsync(universe);
+            }
+        });
+    }
+
+
+    /**
+     * Make a call for every universe at once and update the inventory as
+     * each one replies.
+     */
+    private CompletableFuture<List<UidChanges>> update(Collection<Integer> universes,
+            Function<Integer, CompletableFuture<UIDListReply>> call) {
+
+        final List<UidChanges> changes = new ArrayList<UidChanges>(universes.size());
+        List<CompletableFuture<?>> pending = new ArrayList<CompletableFuture<?>>(universes.size());
+        for (final Integer universe : universes) {
+            final CompletableFuture<Void> done = new CompletableFuture<Void>();
+            call.apply(universe).whenComplete(new BiConsumer<UIDListReply, Throwable>() {
+                public void accept(UIDListReply reply, Throwable error) {
+                    try {
+                        if (error != null) {
+                            logger.warning("Discovery failed on universe " + universe + ": " + error.getMessage());
+                        } else {
+                            UidChanges universeChanges = inventory.update(universe, reply.getUidList());
+                            synchronized (changes) {
+                                changes.add(universeChanges);
+                            }
+                        }
+                    } finally {
+                        done.complete(null);
+                    }
+                }
+            });
+            pending.add(done);
+        }
+
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()])).thenApply(
+                new Function<Void, List<UidChanges>>() {
+                    public List<UidChanges> apply(Void ignored) {
+                        synchronized (changes) {
+                            return new ArrayList<UidChanges>(changes);
+                        }
+                    }
+                });
+    }
+}
@@ -0,0 +1,108 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Steps a range of channels through a list of scenes.
+ *
+ * Each step lasts the same time. The first part of a step can be a fade
+ * from the previous scene. A looping chase runs until it is removed,
+ * otherwise it finishes on the last scene once that step's time is up.
+ * The chase starts the first time it is rendered.
+ */
+public class DmxChase implements DmxEffect {
+
+    private final int offset;
+
+    private final byte[][] steps;
+
+    private final long stepNanos;
+
+    private final long fadeNanos;
+
+    private final boolean loop;
+
+    private long startTime = -1;
+
+
+    /**
+     * Create a chase.
+     *
+     * @param offset the first channel, 0 - 511
+     * @param steps the scenes, all the same length
+     * @param stepTime how long each step lasts
+     * @param fadeTime how long the fade into each step takes, at most
+     *        stepTime
+     * @param loop true to go back to the first step after the last
+     */
+    public DmxChase(int offset, byte[][] steps, long stepTime, long fadeTime, TimeUnit unit, boolean loop) {
+        if (steps.length == 0) {
+            throw new IllegalArgumentException("No steps");
+        }
+        this.steps = new byte[steps.length][];
+        for (int i = 0; i < steps.length; i++) {
+            if (steps[i].length != steps[0].length) {
+                throw new IllegalArgumentException("Steps have different lengths");
+            }
+            this.steps[i] = steps[i].clone();
+        }
+        if (offset < 0 || offset + steps[0].length > DmxFrame.MAX_CHANNELS) {
+            throw new IllegalArgumentException("Channels out of range");
+        }
+        if (stepTime <= 0 || fadeTime < 0 || fadeTime > stepTime) {
+            throw new IllegalArgumentException("Invalid step or fade time");
+        }
+        this.offset = offset;
+        this.stepNanos = unit.toNanos(stepTime);
+        this.fadeNanos = unit.toNanos(fadeTime);
+        this.loop = loop;
+    }
+
+
+    /* (non-Javadoc)
+     * @see ola.DmxEffect#render(long, byte[])
+     */
+    public boolean render(long time, byte[] data) {
+        if (startTime < 0) {
+            startTime = time;
+        }
+
+        long elapsed = time - startTime;
+        long count = elapsed / stepNanos;
+        if (!loop && count >= steps.length) {
+            byte[] last = steps[steps.length - 1];
+            System.arraycopy(last, 0, data, offset, last.length);
+            return false;
+        }
+
+        int step = (int) (count % steps.length);
+        long intoStep = elapsed % stepNanos;
+        if (count > 0 && intoStep < fadeNanos) {
+            int previous = step == 0 ? steps.length - 1 : step - 1;
+            fade(steps[previous], steps[step], intoStep, data);
+        } else {
+            System.arraycopy(steps[step], 0, data, offset, steps[step].length);
+        }
+        return true;
+    }
+
+
+    private void fade(byte[] from, byte[] to, long intoStep, byte[] data) {
+        DmxFade.blend(from, to, (int) ((intoStep << 16) / fadeNanos), data, offset);
+    }
+}
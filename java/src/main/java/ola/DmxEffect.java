@@ -0,0 +1,35 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola;
+
+/**
+ * Something which sets channel values over time, rendered by a
+ * DmxRenderer. See DmxFade and DmxChase.
+ */
+public interface DmxEffect {
+
+    /**
+     * Write the effect's values for a time into a universe. Effects on the
+     * same universe are rendered in the order they were added, so a later
+     * effect wins on channels they share. Called on one of the renderer's
+     * threads; effects on different universes may run at the same time.
+     *
+     * @param time the renderer's clock, in nanoseconds
+     * @param data the channel values of the universe, MAX_CHANNELS long
+     * @return false once the effect has finished, it is then removed.
+     */
+    boolean render(long time, byte[] data);
+}
@@ -0,0 +1,114 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fades a range of channels to target values over a fixed time.
+ *
+ * A fade either starts from the values the channels have when it is first
+ * rendered, or crossfades between two given scenes. The fade starts the
+ * first time it is rendered.
+ */
+public class DmxFade implements DmxEffect {
+
+    /* fixed point scale of the fade's progress */
+    private static final int ONE = 1 << 16;
+
+    private final int offset;
+
+    private final byte[] target;
+
+    private final long durationNanos;
+
+    private byte[] from;
+
+    private long startTime = -1;
+
+
+    /**
+     * Fade from the current values.
+     *
+     * @param offset the first channel, 0 - 511
+     * @param target the values to fade to
+     * @param duration how long the fade takes
+     */
+    public DmxFade(int offset, byte[] target, long duration, TimeUnit unit) {
+        this(offset, null, target, duration, unit);
+    }
+
+
+    /**
+     * Crossfade between two scenes.
+     *
+     * @param offset the first channel, 0 - 511
+     * @param from the values to start from
+     * @param target the values to fade to, the same length as from
+     * @param duration how long the fade takes
+     */
+    public DmxFade(int offset, byte[] from, byte[] target, long duration, TimeUnit unit) {
+        if (offset < 0 || offset + target.length > DmxFrame.MAX_CHANNELS) {
+            throw new IllegalArgumentException("Channels out of range");
+        }
+        if (from != null && from.length != target.length) {
+            throw new IllegalArgumentException("Scenes have different lengths");
+        }
+        if (duration < 0) {
+            throw new IllegalArgumentException("Invalid duration " + duration);
+        }
+        this.offset = offset;
+        this.from = from == null ? null : from.clone();
+        this.target = target.clone();
+        this.durationNanos = unit.toNanos(duration);
+    }
+
+
+    /* (non-Javadoc)
+     * @see ola.DmxEffect#render(long, byte[])
+     */
+    public boolean render(long time, byte[] data) {
+        if (startTime < 0) {
+            startTime = time;
+            if (from == null) {
+                from = new byte[target.length];
+                System.arraycopy(data, offset, from, 0, target.length);
+            }
+        }
+
+        long elapsed = time - startTime;
+        if (elapsed >= durationNanos) {
+            System.arraycopy(target, 0, data, offset, target.length);
+            return false;
+        }
+        int progress = (int) (elapsed * ONE / durationNanos);
+        blend(from, target, progress, data, offset);
+        return true;
+    }
+
+
+    /**
+     * Write the values a fraction of the way between two scenes.
+     *
+     * @param progress 0 - 65536
+     */
+    static void blend(byte[] from, byte[] to, int progress, byte[] data, int offset) {
+        int remaining = ONE - progress;
+        for (int i = 0; i < to.length; i++) {
+            data[offset + i] = (byte) (((from[i] & 0xff) * remaining + (to[i] & 0xff) * progress) >> 16);
+        }
+    }
+}
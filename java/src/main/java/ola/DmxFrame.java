@@ -0,0 +1,219 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+
+package ola;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import ola.rpc.RpcEncoder;
+import ola.rpc.RpcPayload;
+
+/**
+ * A reusable frame of dmx data for one universe.
+ *
+ * The frame is encoded directly into the channel's write buffer when it is
+ * sent, so sending the same frame repeatedly does not allocate. A frame must
+ * not be modified while it is being sent.
+ *
+ * A frame can carry a source priority, which olad uses when merging the
+ * universe with other sources. Frames without one get olad's default.
+ */
+public class DmxFrame implements RpcPayload {
+
+    public static final int MAX_CHANNELS = 512;
+
+    public static final int MIN_PRIORITY = 0;
+
+    public static final int MAX_PRIORITY = 200;
+
+    /* the priority of a frame which doesn't set one */
+    public static final int NO_PRIORITY = -1;
+
+    private static final int UNIVERSE_FIELD = 1;
+
+    private static final int DATA_FIELD = 2;
+
+    private static final int PRIORITY_FIELD = 3;
+
+    private int universe;
+
+    private final byte[] data = new byte[MAX_CHANNELS];
+
+    private int length = 0;
+
+    private int priority = NO_PRIORITY;
+
+    /* view of data for comparing it a word at a time, made on first use */
+    private ByteBuffer view;
+
+
+    /**
+     * Create an empty frame.
+     *
+     * @param universe the id of the universe
+     */
+    public DmxFrame(int universe) {
+        this.universe = universe;
+    }
+
+
+    public int getUniverse() {
+        return universe;
+    }
+
+
+    public void setUniverse(int universe) {
+        this.universe = universe;
+    }
+
+
+    /**
+     * @return the source priority, or NO_PRIORITY if it isn't set.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+
+    /**
+     * Set the source priority sent with the frame.
+     *
+     * @param priority MIN_PRIORITY - MAX_PRIORITY, or NO_PRIORITY to leave
+     *        it to olad.
+     */
+    public void setPriority(int priority) {
+        if (priority != NO_PRIORITY && (priority < MIN_PRIORITY || priority > MAX_PRIORITY)) {
+            throw new IllegalArgumentException("Invalid priority " + priority);
+        }
+        this.priority = priority;
+    }
+
+
+    /**
+     * @return the number of channels in the frame.
+     */
+    public int getLength() {
+        return length;
+    }
+
+
+    /**
+     * Set the number of channels in the frame.
+     */
+    public void setLength(int length) {
+        if (length < 0 || length > MAX_CHANNELS) {
+            throw new IllegalArgumentException("Invalid frame length " + length);
+        }
+        this.length = length;
+    }
+
+
+    /**
+     * @return the backing array, only the first getLength() bytes are sent.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+
+    /**
+     * @return a buffer over the backing array, in native byte order.
+     */
+    ByteBuffer getView() {
+        if (view == null) {
+            view = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+        }
+        return view;
+    }
+
+
+    /**
+     * @return the value of a channel, 0 - 255.
+     */
+    public int get(int channel) {
+        return data[channel] & 0xff;
+    }
+
+
+    /**
+     * Set the value of a channel, the frame grows to include the channel.
+     *
+     * @param channel offset of the channel, 0 - 511
+     * @param value dmx value 0 - 255
+     */
+    public void set(int channel, int value) {
+        data[channel] = (byte) value;
+        if (channel >= length) {
+            length = channel + 1;
+        }
+    }
+
+
+    /**
+     * Copy dmx values into the frame.
+     */
+    public void setData(byte[] values, int offset, int count) {
+        setLength(count);
+        System.arraycopy(values, offset, data, 0, count);
+    }
+
+
+    /**
+     * Copy the remaining bytes of a buffer into the frame. The buffer's
+     * position is not changed.
+     */
+    public void setData(ByteBuffer values) {
+        setLength(values.remaining());
+        values.duplicate().get(data, 0, length);
+    }
+
+
+    /**
+     * Copy dmx values into the frame.
+     */
+    public void setData(short[] values) {
+        setLength(values.length);
+        for (int i = 0; i < values.length; i++) {
+            data[i] = (byte) values[i];
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see ola.rpc.RpcPayload#getSerializedSize()
+     */
+    public int getSerializedSize() {
+        int size = RpcEncoder.int32FieldSize(UNIVERSE_FIELD, universe)
+                + RpcEncoder.bytesFieldSize(DATA_FIELD, length);
+        if (priority != NO_PRIORITY) {
+            size += RpcEncoder.int32FieldSize(PRIORITY_FIELD, priority);
+        }
+        return size;
+    }
+
+
+    /* (non-Javadoc)
+     * @see ola.rpc.RpcPayload#writeTo(java.nio.ByteBuffer)
+     */
+    public void writeTo(ByteBuffer buffer) {
+        RpcEncoder.writeInt32Field(buffer, UNIVERSE_FIELD, universe);
+        RpcEncoder.writeBytesField(buffer, DATA_FIELD, data, 0, length);
+        if (priority != NO_PRIORITY) {
+            RpcEncoder.writeInt32Field(buffer, PRIORITY_FIELD, priority);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+
+package ola;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the last frame sent for each universe so identical frames can
+ * be skipped.
+ *
+ * A frame which matches the last one sent for its universe is suppressed,
+ * unless the keepalive interval has passed since the universe was last
+ * sent, in which case it goes out anyway. A static look is then sent once
+ * per keepalive interval rather than at the full refresh rate.
+ *
+ * Frames are compared in place against a copy of the last frame, eight
+ * bytes at a time and without allocating, so checking a full universe is
+ * much cheaper than sending it.
+ *
+ * A frame becomes the last one sent as soon as update() passes it, so a
+ * client which then fails to send it must call invalidate().
+ *
+ * The cache also holds the latest frame for every universe being output,
+ * which a client replays with getFrames() after reconnecting to olad.
+ */
+public class DmxFrameCache {
+
+    public static final long DEFAULT_KEEPALIVE_MILLIS = 1000;
+
+    private final long keepaliveNanos;
+
+    private final ConcurrentMap<Integer, Entry> universes = new ConcurrentHashMap<Integer, Entry>();
+
+    private final AtomicLong framesPassed = new AtomicLong(0);
+
+    private final AtomicLong framesSuppressed = new AtomicLong(0);
+
+
+    /**
+     * Create a cache which resends unchanged universes once a second.
+     */
+    public DmxFrameCache() {
+        this(DEFAULT_KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Create a cache.
+     *
+     * @param keepalive how often an unchanged universe is resent
+     */
+    public DmxFrameCache(long keepalive, TimeUnit unit) {
+        if (keepalive <= 0) {
+            throw new IllegalArgumentException("Invalid keepalive " + keepalive);
+        }
+        this.keepaliveNanos = unit.toNanos(keepalive);
+    }
+
+
+    /**
+     * Check a frame against the last one sent for its universe. If the
+     * frame should be sent it becomes the last frame sent.
+     *
+     * @param frame the frame about to be sent
+     * @return true if the frame should be sent, false if it can be skipped.
+     */
+    public boolean update(DmxFrame frame) {
+        Entry entry = getEntry(frame.getUniverse());
+        int length = frame.getLength();
+        long now = System.nanoTime();
+
+        synchronized (entry) {
+            if (!entry.stale && entry.length == length && entry.priority == frame.getPriority()
+                    && now - entry.sentAt < keepaliveNanos) {
+                if (equals(entry.view, frame.getView(), length)) {
+                    framesSuppressed.incrementAndGet();
+                    return false;
+                }
+            }
+            System.arraycopy(frame.getData(), 0, entry.data, 0, length);
+            entry.length = length;
+            entry.priority = frame.getPriority();
+            entry.sentAt = now;
+            entry.stale = false;
+        }
+        framesPassed.incrementAndGet();
+        return true;
+    }
+
+
+    /**
+     * Make sure the next frame for a universe is sent whatever it contains.
+     * Used when a frame may not have reached olad. The frame is still kept
+     * for getFrames().
+     */
+    public void invalidate(int universe) {
+        Entry entry = universes.get(universe);
+        if (entry != null) {
+            synchronized (entry) {
+                entry.stale = true;
+            }
+        }
+    }
+
+
+    /**
+     * Make sure the next frame for every universe is sent.
+     */
+    public void clear() {
+        for (Integer universe : universes.keySet()) {
+            invalidate(universe);
+        }
+    }
+
+
+    /**
+     * @return a copy of the latest frame for each universe.
+     */
+    public List<DmxFrame> getFrames() {
+        List<DmxFrame> frames = new ArrayList<DmxFrame>(universes.size());
+        for (Integer universe : universes.keySet()) {
+            Entry entry = universes.get(universe);
+            synchronized (entry) {
+                if (entry.length >= 0) {
+                    DmxFrame frame = new DmxFrame(universe);
+                    frame.setData(entry.data, 0, entry.length);
+                    frame.setPriority(entry.priority);
+                    frames.add(frame);
+                }
+            }
+        }
+        return frames;
+    }
+
+
+    /**
+     * @return the number of frames which were allowed through.
+     */
+    public long getFramesPassed() {
+        return framesPassed.get();
+    }
+
+
+    /**
+     * @return the number of identical frames which were skipped.
+     */
+    public long getFramesSuppressed() {
+        return framesSuppressed.get();
+    }
+
+
+    /**
+     * Compare the first length bytes of two buffers, a long at a time.
+     */
+    private static boolean equals(ByteBuffer a, ByteBuffer b, int length) {
+        int i = 0;
+        for (int words = length & ~7; i < words; i += 8) {
+            if (a.getLong(i) != b.getLong(i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (a.get(i) != b.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private Entry getEntry(int universe) {
+        Entry entry = universes.get(universe);
+        if (entry == null) {
+            Entry newEntry = new Entry();
+            entry = universes.putIfAbsent(universe, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+        return entry;
+    }
+
+
+    /**
+     * The last frame sent for a universe.
+     */
+    private static class Entry {
+
+        final byte[] data = new byte[DmxFrame.MAX_CHANNELS];
+
+        final ByteBuffer view = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+
+        int length = -1;
+
+        int priority = DmxFrame.NO_PRIORITY;
+
+        long sentAt;
+
+        /* true if the next frame must be sent */
+        boolean stale;
+    }
+}
@@ -0,0 +1,35 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+
+package ola;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Receives dmx data pushed by olad for universes registered with
+ * OlaClient.registerForDmx(int, DmxListener).
+ */
+public interface DmxListener {
+
+    /**
+     * Called on the channel's reader thread each time olad sends new data
+     * for the universe. Implementations must not block.
+     *
+     * @param universe the id of the universe
+     * @param data the dmx values
+     */
+    void dmxReceived(int universe, ByteString data);
+}
@@ -0,0 +1,498 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import ola.proto.Ola.MergeMode;
+
+/**
+ * Merges dmx data from many sources in the client, so a single frame is
+ * sent for each universe however many parts of an application drive it.
+ *
+ * Sources are added to a universe with a priority, using the same rules
+ * as olad: only the sources with the highest priority take part, and these
+ * are merged according to the universe's MergeMode. HTP takes the highest
+ * value of each channel, LTP takes the whole frame of the source which was
+ * updated last. The merged frame is sent with the highest priority, so
+ * olad can merge it with other clients in turn.
+ *
+ * Source values are held eight channels to a long, and HTP compares all
+ * eight channels of a word at once. Sources only mark their universe as
+ * changed; the merge happens once per refresh in flush(), however often
+ * the sources are updated. A universe stops being sent once its last
+ * source is removed.
+ */
+public class DmxMerger {
+
+    private static Logger logger = Logger.getLogger(DmxMerger.class.getName());
+
+    private static final int WORDS = DmxFrame.MAX_CHANNELS / 8;
+
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private final OlaClient client;
+
+    private final long periodNanos;
+
+    private final ConcurrentMap<Integer, MergedUniverse> universes =
+            new ConcurrentHashMap<Integer, MergedUniverse>();
+
+    private final Object flushLock = new Object();
+
+    /* frames being sent by flush() and their universes, guarded by flushLock */
+    private final List<DmxFrame> flushFrames = new ArrayList<DmxFrame>();
+
+    private final List<MergedUniverse> flushUniverses = new ArrayList<MergedUniverse>();
+
+    private final AtomicLong framesSent = new AtomicLong(0);
+
+    private ScheduledExecutorService executor;
+
+
+    /**
+     * Create a merger which refreshes at the default rate of 44Hz.
+     *
+     * @param client the client to send merged frames with
+     */
+    public DmxMerger(OlaClient client) {
+        this(client, DmxOutputScheduler.DEFAULT_REFRESH_RATE);
+    }
+
+
+    /**
+     * Create a merger.
+     *
+     * @param client the client to send merged frames with
+     * @param refreshRate number of times per second changed universes are
+     *        merged and sent
+     */
+    public DmxMerger(OlaClient client, double refreshRate) {
+        if (refreshRate <= 0) {
+            throw new IllegalArgumentException("Invalid refresh rate " + refreshRate);
+        }
+        this.client = client;
+        this.periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / refreshRate);
+    }
+
+
+    /**
+     * Start merging and sending frames.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            logger.warning("Merger already started.");
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ola-dmx-merger");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                // an exception would cancel the schedule
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    logger.warning("Error sending merged frames: " + e.getMessage());
+                }
+            }
+        }, 0, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+
+    /**
+     * Stop sending frames. Changes made while stopped are sent when the
+     * merger is started again.
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+
+    /**
+     * Add a source to a universe. A new source has no channels, so it
+     * doesn't change the merge until data is set.
+     *
+     * @param universe the id of the universe
+     * @param priority DmxFrame.MIN_PRIORITY - DmxFrame.MAX_PRIORITY
+     * @return the new source.
+     */
+    public Source addSource(int universe, int priority) {
+        checkPriority(priority);
+        MergedUniverse merged = getUniverse(universe);
+        Source source = new Source(merged, priority);
+        synchronized (merged) {
+            merged.sources.add(source);
+            merged.dirty = true;
+        }
+        return source;
+    }
+
+
+    /**
+     * Set how the highest priority sources of a universe are merged. The
+     * default is HTP.
+     */
+    public void setMergeMode(int universe, MergeMode mode) {
+        MergedUniverse merged = getUniverse(universe);
+        synchronized (merged) {
+            merged.mode = mode;
+            merged.dirty = true;
+        }
+    }
+
+
+    /**
+     * @return the merge mode of a universe.
+     */
+    public MergeMode getMergeMode(int universe) {
+        MergedUniverse merged = getUniverse(universe);
+        synchronized (merged) {
+            return merged.mode;
+        }
+    }
+
+
+    /**
+     * Merge and send every universe which changed since the last flush, in
+     * a single write. This is called by the scheduler thread but can also
+     * be called directly, for example when the merger isn't started.
+     * Universes whose frames the client drops are sent by the next flush.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            for (MergedUniverse merged : universes.values()) {
+                synchronized (merged) {
+                    if (!merged.dirty) {
+                        continue;
+                    }
+                    merged.dirty = false;
+                    // the output frame is only touched here, under flushLock
+                    if (!merge(merged)) {
+                        continue;
+                    }
+                }
+                flushFrames.add(merged.output);
+                flushUniverses.add(merged);
+            }
+
+            if (!flushFrames.isEmpty()) {
+                if (client.streamDmxBatch(flushFrames)) {
+                    framesSent.addAndGet(flushFrames.size());
+                } else {
+                    // merge and send them again next time
+                    for (MergedUniverse merged : flushUniverses) {
+                        synchronized (merged) {
+                            merged.dirty = true;
+                        }
+                    }
+                }
+                flushFrames.clear();
+                flushUniverses.clear();
+            }
+        }
+    }
+
+
+    /**
+     * @return the number of merged frames sent.
+     */
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+
+    /**
+     * Merge the sources of a universe into its output frame.
+     *
+     * @return false if the universe has no sources with data.
+     */
+    private static boolean merge(MergedUniverse merged) {
+        int top = -1;
+        for (Source source : merged.sources) {
+            if (source.length > 0 && source.priority > top) {
+                top = source.priority;
+            }
+        }
+        if (top < 0) {
+            return false;
+        }
+
+        long[] result = merged.values;
+        int length = 0;
+        if (merged.mode == MergeMode.LTP) {
+            Source latest = null;
+            for (Source source : merged.sources) {
+                if (source.length > 0 && source.priority == top
+                        && (latest == null || source.sequence > latest.sequence)) {
+                    latest = source;
+                }
+            }
+            System.arraycopy(latest.values, 0, result, 0, WORDS);
+            length = latest.length;
+        } else {
+            boolean first = true;
+            for (Source source : merged.sources) {
+                if (source.length == 0 || source.priority != top) {
+                    continue;
+                }
+                long[] values = source.values;
+                if (first) {
+                    System.arraycopy(values, 0, result, 0, WORDS);
+                    first = false;
+                } else {
+                    for (int i = 0; i < WORDS; i++) {
+                        result[i] = max(result[i], values[i]);
+                    }
+                }
+                length = Math.max(length, source.length);
+            }
+        }
+
+        DmxFrame output = merged.output;
+        byte[] data = output.getData();
+        int words = (length + 7) >> 3;
+        for (int i = 0; i < words; i++) {
+            long word = result[i];
+            int offset = i << 3;
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                data[offset++] = (byte) (word >>> shift);
+            }
+        }
+        output.setLength(length);
+        output.setPriority(top);
+        return true;
+    }
+
+
+    /**
+     * @return the highest of each of the eight unsigned bytes in two
+     *         words.
+     */
+    static long max(long a, long b) {
+        // the high bit of each byte is set if the low seven bits of a are
+        // at least those of b. Borrows can't cross bytes.
+        long low = (a | HIGH_BITS) - (b & ~HIGH_BITS);
+        long greater = ((a & ~b) | (~(a ^ b) & low)) & HIGH_BITS;
+        long mask = (greater - (greater >>> 7)) | greater;
+        return (a & mask) | (b & ~mask);
+    }
+
+
+    private static void checkPriority(int priority) {
+        if (priority < DmxFrame.MIN_PRIORITY || priority > DmxFrame.MAX_PRIORITY) {
+            throw new IllegalArgumentException("Invalid priority " + priority);
+        }
+    }
+
+
+    private MergedUniverse getUniverse(int universe) {
+        MergedUniverse merged = universes.get(universe);
+        if (merged == null) {
+            MergedUniverse newUniverse = new MergedUniverse(universe);
+            merged = universes.putIfAbsent(universe, newUniverse);
+            if (merged == null) {
+                merged = newUniverse;
+            }
+        }
+        return merged;
+    }
+
+
+    /**
+     * One input to a universe. Sources may be updated from any thread.
+     */
+    public class Source {
+
+        private final MergedUniverse merged;
+
+        /* channel values, eight to a word, guarded by merged */
+        private final long[] values = new long[WORDS];
+
+        private int length = 0;
+
+        private int priority;
+
+        /* when the source was last updated, for LTP */
+        private long sequence = 0;
+
+        private boolean removed = false;
+
+
+        private Source(MergedUniverse merged, int priority) {
+            this.merged = merged;
+            this.priority = priority;
+        }
+
+
+        public int getUniverse() {
+            return merged.universe;
+        }
+
+
+        public int getPriority() {
+            synchronized (merged) {
+                return priority;
+            }
+        }
+
+
+        public void setPriority(int priority) {
+            checkPriority(priority);
+            synchronized (merged) {
+                this.priority = priority;
+                merged.dirty = true;
+            }
+        }
+
+
+        /**
+         * Set the value of a channel, the source grows to include the
+         * channel.
+         *
+         * @param channel offset of the channel, 0 - 511
+         * @param value dmx value 0 - 255
+         */
+        public void set(int channel, int value) {
+            if (channel < 0 || channel >= DmxFrame.MAX_CHANNELS) {
+                throw new IllegalArgumentException("Invalid channel " + channel);
+            }
+            int shift = 56 - ((channel & 7) << 3);
+            synchronized (merged) {
+                int word = channel >> 3;
+                values[word] = (values[word] & ~(0xffL << shift)) | ((long) (value & 0xff) << shift);
+                if (channel >= length) {
+                    length = channel + 1;
+                }
+                updated();
+            }
+        }
+
+
+        /**
+         * Replace the values of the source.
+         */
+        public void setData(byte[] data, int offset, int count) {
+            if (count < 0 || count > DmxFrame.MAX_CHANNELS) {
+                throw new IllegalArgumentException("Invalid frame length " + count);
+            }
+            synchronized (merged) {
+                int end = offset + count;
+                for (int i = 0; i < WORDS; i++) {
+                    long word = 0;
+                    for (int j = 0; j < 8; j++) {
+                        word <<= 8;
+                        if (offset < end) {
+                            word |= data[offset++] & 0xff;
+                        }
+                    }
+                    values[i] = word;
+                }
+                length = count;
+                updated();
+            }
+        }
+
+
+        /**
+         * Replace the values of the source.
+         */
+        public void setData(short[] data) {
+            if (data.length > DmxFrame.MAX_CHANNELS) {
+                throw new IllegalArgumentException("Invalid frame length " + data.length);
+            }
+            synchronized (merged) {
+                int channel = 0;
+                for (int i = 0; i < WORDS; i++) {
+                    long word = 0;
+                    for (int j = 0; j < 8; j++) {
+                        word <<= 8;
+                        if (channel < data.length) {
+                            word |= data[channel++] & 0xff;
+                        }
+                    }
+                    values[i] = word;
+                }
+                length = data.length;
+                updated();
+            }
+        }
+
+
+        /**
+         * Remove the source from its universe.
+         */
+        public void remove() {
+            synchronized (merged) {
+                if (!removed) {
+                    removed = true;
+                    merged.sources.remove(this);
+                    merged.dirty = true;
+                }
+            }
+        }
+
+
+        private void updated() {
+            sequence = ++merged.sequence;
+            if (!removed) {
+                merged.dirty = true;
+            }
+        }
+    }
+
+
+    /**
+     * The sources of a universe and the frame they are merged into.
+     */
+    private static class MergedUniverse {
+
+        private final int universe;
+
+        private final List<Source> sources = new ArrayList<Source>();
+
+        private final long[] values = new long[WORDS];
+
+        private final DmxFrame output;
+
+        private MergeMode mode = MergeMode.HTP;
+
+        private long sequence = 0;
+
+        private boolean dirty = false;
+
+        MergedUniverse(int universe) {
+            this.universe = universe;
+            output = new DmxFrame(universe);
+        }
+    }
+}
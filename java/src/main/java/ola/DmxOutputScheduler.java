@@ -0,0 +1,309 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+
+package ola;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Sends dmx data at a fixed refresh rate, keeping only the latest frame for
+ * each universe.
+ *
+ * Any number of threads may update universes. Each update replaces the
+ * frame waiting to be sent for that universe, so if frames are produced
+ * faster than the refresh rate the older ones are dropped instead of
+ * queueing up. Universes which haven't changed since the last refresh are
+ * not sent.
+ */
+public class DmxOutputScheduler {
+
+    private static Logger logger = Logger.getLogger(DmxOutputScheduler.class.getName());
+
+    public static final double DEFAULT_REFRESH_RATE = 44.0;
+
+    private final OlaClient client;
+
+    private final long periodNanos;
+
+    private final ConcurrentMap<Integer, UniverseSlot> universes = new ConcurrentHashMap<Integer, UniverseSlot>();
+
+    private final Object flushLock = new Object();
+
+    /* frames being sent by flush() and their slots, guarded by flushLock */
+    private final List<DmxFrame> flushFrames = new ArrayList<DmxFrame>();
+
+    private final List<UniverseSlot> flushSlots = new ArrayList<UniverseSlot>();
+
+    private final AtomicLong framesSent = new AtomicLong(0);
+
+    private final AtomicLong framesSuperseded = new AtomicLong(0);
+
+    private ScheduledExecutorService executor;
+
+
+    /**
+     * Create a scheduler which refreshes at the default rate of 44Hz.
+     *
+     * @param client the client to send frames with
+     */
+    public DmxOutputScheduler(OlaClient client) {
+        this(client, DEFAULT_REFRESH_RATE);
+    }
+
+
+    /**
+     * Create a scheduler.
+     *
+     * @param client the client to send frames with
+     * @param refreshRate number of times per second pending frames are sent
+     */
+    public DmxOutputScheduler(OlaClient client, double refreshRate) {
+        if (refreshRate <= 0) {
+            throw new IllegalArgumentException("Invalid refresh rate " + refreshRate);
+        }
+        this.client = client;
+        this.periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / refreshRate);
+    }
+
+
+    /**
+     * Start sending frames.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            logger.warning("Scheduler already started.");
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ola-dmx-output");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                // an exception would cancel the schedule
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    logger.warning("Error sending frames: " + e.getMessage());
+                }
+            }
+        }, 0, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+
+    /**
+     * Stop sending frames. Frames which haven't been sent yet are kept and
+     * go out when the scheduler is started again.
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+
+    /**
+     * Set the next frame for a universe.
+     *
+     * @param universe the id of the universe
+     * @param values dmx data
+     */
+    public void update(int universe, byte[] values) {
+        UniverseSlot slot = getSlot(universe);
+        synchronized (slot) {
+            slot.pending.setData(values, 0, values.length);
+            markDirty(slot);
+        }
+    }
+
+
+    /**
+     * Set the next frame for a universe.
+     *
+     * @param universe the id of the universe
+     * @param values dmx data
+     */
+    public void update(int universe, short[] values) {
+        UniverseSlot slot = getSlot(universe);
+        synchronized (slot) {
+            slot.pending.setData(values);
+            markDirty(slot);
+        }
+    }
+
+
+    /**
+     * Set the next frame for a universe.
+     *
+     * @param universe the id of the universe
+     * @param values dmx data, from the position to the limit of the buffer.
+     */
+    public void update(int universe, ByteBuffer values) {
+        UniverseSlot slot = getSlot(universe);
+        synchronized (slot) {
+            slot.pending.setData(values);
+            markDirty(slot);
+        }
+    }
+
+
+    /**
+     * Set the next frame for the frame's universe. The frame, including
+     * its priority, is copied.
+     *
+     * @param frame dmx data
+     */
+    public void update(DmxFrame frame) {
+        UniverseSlot slot = getSlot(frame.getUniverse());
+        synchronized (slot) {
+            slot.pending.setData(frame.getData(), 0, frame.getLength());
+            slot.pending.setPriority(frame.getPriority());
+            markDirty(slot);
+        }
+    }
+
+
+    /**
+     * Send the latest frame of every universe which changed since the last
+     * flush, in a single write. This is called by the scheduler thread but
+     * can also be called directly, for example when the scheduler isn't
+     * started.
+     *
+     * If the client drops the frames they stay pending and are sent by the
+     * next flush, unless a newer update replaces them first.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            for (UniverseSlot slot : universes.values()) {
+                DmxFrame frame;
+                synchronized (slot) {
+                    if (!slot.dirty) {
+                        continue;
+                    }
+                    frame = slot.pending;
+                    slot.pending = slot.sending;
+                    slot.sending = frame;
+                    slot.pending.setPriority(frame.getPriority());
+                    slot.dirty = false;
+                }
+
+                // updates only touch the pending frame, so this one is ours
+                // until the next flush.
+                flushFrames.add(frame);
+                flushSlots.add(slot);
+            }
+
+            if (!flushFrames.isEmpty()) {
+                if (client.streamDmxBatch(flushFrames)) {
+                    framesSent.addAndGet(flushFrames.size());
+                } else {
+                    for (UniverseSlot slot : flushSlots) {
+                        restore(slot);
+                    }
+                }
+                flushFrames.clear();
+                flushSlots.clear();
+            }
+        }
+    }
+
+
+    /**
+     * @return the number of frames sent.
+     */
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+
+    /**
+     * @return the number of frames which were replaced by a newer frame
+     *         before they were sent.
+     */
+    public long getFramesSuperseded() {
+        return framesSuperseded.get();
+    }
+
+
+    private UniverseSlot getSlot(int universe) {
+        UniverseSlot slot = universes.get(universe);
+        if (slot == null) {
+            UniverseSlot newSlot = new UniverseSlot(universe);
+            slot = universes.putIfAbsent(universe, newSlot);
+            if (slot == null) {
+                slot = newSlot;
+            }
+        }
+        return slot;
+    }
+
+
+    /**
+     * Make a frame which was dropped pending again, if it hasn't been
+     * replaced since.
+     */
+    private void restore(UniverseSlot slot) {
+        synchronized (slot) {
+            if (!slot.dirty) {
+                DmxFrame frame = slot.sending;
+                slot.sending = slot.pending;
+                slot.pending = frame;
+                slot.dirty = true;
+            }
+        }
+    }
+
+
+    private void markDirty(UniverseSlot slot) {
+        if (slot.dirty) {
+            framesSuperseded.incrementAndGet();
+        }
+        slot.dirty = true;
+    }
+
+
+    /**
+     * The frame waiting to be sent for a universe and a spare frame which is
+     * swapped in when the pending frame is sent.
+     */
+    private static class UniverseSlot {
+
+        private DmxFrame pending;
+
+        private DmxFrame sending;
+
+        private boolean dirty = false;
+
+        UniverseSlot(int universe) {
+            pending = new DmxFrame(universe);
+            sending = new DmxFrame(universe);
+        }
+    }
+}
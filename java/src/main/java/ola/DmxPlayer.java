@@ -0,0 +1,305 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Plays a DmxRecording back through OlaClient.streamDmx().
+ *
+ * Each frame is sent at the start time plus its timestamp, measured from
+ * a single reading of System.nanoTime() when playback starts, rather than
+ * by sleeping for the gap since the previous frame. A frame which goes out
+ * late therefore doesn't delay the ones after it, and playback doesn't
+ * drift from the recording however long it runs.
+ *
+ * Playback can start from any time. The player reads forward from the
+ * keyframe before that time to find the state of every universe, sends
+ * it, and then carries on from there.
+ *
+ * If the client drops a frame, because the connection is down or backed
+ * up, the latest state of that universe is sent again before the next
+ * frame. At the end of the recording the player keeps trying until the
+ * final state has been sent or it is stopped.
+ */
+public class DmxPlayer implements Closeable {
+
+    private static Logger logger = Logger.getLogger(DmxPlayer.class.getName());
+
+    /* how often to retry dropped frames once the recording has ended */
+    private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final OlaClient client;
+
+    private final DmxRecording recording;
+
+    private final AtomicLong framesSent = new AtomicLong(0);
+
+    private final AtomicLong framesDropped = new AtomicLong(0);
+
+    private final AtomicLong maxLateness = new AtomicLong(0);
+
+    private volatile long position = 0;
+
+    private volatile boolean running = false;
+
+    private Thread thread;
+
+
+    /**
+     * Open a recording for playback.
+     *
+     * @param client the client to send frames with
+     * @param path the recording
+     */
+    public DmxPlayer(OlaClient client, File path) throws IOException {
+        this(client, new DmxRecording(path));
+    }
+
+
+    /**
+     * Play an open recording. The recording is closed with the player.
+     */
+    public DmxPlayer(OlaClient client, DmxRecording recording) {
+        this.client = client;
+        this.recording = recording;
+    }
+
+
+    /**
+     * @return the recording being played.
+     */
+    public DmxRecording getRecording() {
+        return recording;
+    }
+
+
+    /**
+     * Start playing from the current position.
+     */
+    public synchronized void start() {
+        if (thread != null && thread.isAlive()) {
+            logger.warning("Player already started.");
+            return;
+        }
+        running = true;
+        final long from = position;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    play(from);
+                } catch (IOException e) {
+                    logger.severe("Error reading recording: " + e.getMessage());
+                } finally {
+                    running = false;
+                }
+            }
+        }, "ola-dmx-player");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Stop playing, keeping the position so start() carries on from here.
+     * Waits for the player thread to exit, so no frame is sent after this
+     * returns and getPosition() is that of the last frame sent.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+
+    /**
+     * Move to a time in the recording. If the player is playing it carries
+     * on from the new position.
+     *
+     * @param time the time since the start of the recording
+     */
+    public synchronized void seek(long time, TimeUnit unit) {
+        if (time < 0) {
+            throw new IllegalArgumentException("Invalid time " + time);
+        }
+        boolean playing = running;
+        stop();
+        position = unit.toNanos(time);
+        if (playing) {
+            start();
+        }
+    }
+
+
+    /**
+     * @return true until playback is stopped or reaches the end.
+     */
+    public boolean isPlaying() {
+        return running;
+    }
+
+
+    /**
+     * @return the time of the last frame sent, or the seek position.
+     */
+    public long getPosition(TimeUnit unit) {
+        return unit.convert(position, TimeUnit.NANOSECONDS);
+    }
+
+
+    /**
+     * @return the number of frames sent.
+     */
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+
+    /**
+     * @return the number of frames the client dropped, counting each
+     *         attempt to send a universe's state again.
+     */
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+
+    /**
+     * @return the furthest behind schedule a frame was sent, in
+     *         nanoseconds.
+     */
+    public long getMaxLateness() {
+        return maxLateness.get();
+    }
+
+
+    /**
+     * Stop playing and close the recording.
+     */
+    public void close() throws IOException {
+        stop();
+        recording.close();
+    }
+
+
+    /**
+     * Send the state at a time, then play from it until the end or until
+     * stopped. Runs on the player thread.
+     */
+    private void play(long from) throws IOException {
+        DmxRecording.Cursor cursor = recording.cursorAt(from);
+
+        // the latest frame of each universe, and those not sent yet
+        Map<Integer, DmxFrame> state = new TreeMap<Integer, DmxFrame>();
+        Map<Integer, DmxFrame> unsent = new TreeMap<Integer, DmxFrame>();
+        boolean more;
+        while ((more = cursor.next()) && cursor.getTimestamp() <= from) {
+            cursor.copyTo(getFrame(state, cursor.getUniverse()));
+        }
+        unsent.putAll(state);
+        sendUnsent(unsent);
+
+        long start = System.nanoTime();
+        while (more && running) {
+            if (!cursor.isKeyframe()) {
+                long due = start + cursor.getTimestamp() - from;
+                if (!waitUntil(due)) {
+                    return;
+                }
+                sendUnsent(unsent);
+                DmxFrame frame = getFrame(state, cursor.getUniverse());
+                cursor.copyTo(frame);
+                unsent.remove(frame.getUniverse());
+                if (client.streamDmx(frame)) {
+                    framesSent.incrementAndGet();
+                } else {
+                    framesDropped.incrementAndGet();
+                    unsent.put(frame.getUniverse(), frame);
+                }
+                position = cursor.getTimestamp();
+
+                long lateness = System.nanoTime() - due;
+                if (lateness > maxLateness.get()) {
+                    maxLateness.set(lateness);
+                }
+            }
+            more = cursor.next();
+        }
+
+        while (!unsent.isEmpty() && waitUntil(System.nanoTime() + RETRY_NANOS)) {
+            sendUnsent(unsent);
+        }
+    }
+
+
+    /**
+     * @return the frame holding the state of a universe.
+     */
+    private static DmxFrame getFrame(Map<Integer, DmxFrame> state, int universe) {
+        DmxFrame frame = state.get(universe);
+        if (frame == null) {
+            frame = new DmxFrame(universe);
+            state.put(universe, frame);
+        }
+        return frame;
+    }
+
+
+    /**
+     * Send the universes whose latest frame hasn't gone out, as one batch.
+     */
+    private void sendUnsent(Map<Integer, DmxFrame> unsent) {
+        if (unsent.isEmpty()) {
+            return;
+        }
+        if (client.streamDmxBatch(unsent.values())) {
+            framesSent.addAndGet(unsent.size());
+            unsent.clear();
+        } else {
+            framesDropped.addAndGet(unsent.size());
+        }
+    }
+
+
+    /**
+     * @return false if the player was stopped while waiting.
+     */
+    private boolean waitUntil(long due) {
+        long remaining;
+        while ((remaining = due - System.nanoTime()) > 0) {
+            if (!running) {
+                return false;
+            }
+            LockSupport.parkNanos(this, remaining);
+        }
+        return running;
+    }
+}
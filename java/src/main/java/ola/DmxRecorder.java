@@ -0,0 +1,329 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+import ola.proto.Ola.DmxData;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Records DMX frames to a file which can be played back with a DmxPlayer.
+ *
+ * Frames are appended to memory mapped segments of the file, see
+ * DmxRecording for the format, so recording costs a copy into the page
+ * cache and the heap only holds the latest frame of each universe, for the
+ * keyframes. Frames can be recorded as olad pushes them, by registering
+ * the recorder as a DmxListener, or by polling with capture().
+ *
+ * The recorder may be used from several threads. Frames are timestamped
+ * with System.nanoTime() when they are recorded.
+ */
+public class DmxRecorder implements DmxListener, Closeable {
+
+    private static Logger logger = Logger.getLogger(DmxRecorder.class.getName());
+
+    public static final long DEFAULT_KEYFRAME_INTERVAL_MILLIS = 10000;
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final int segmentSize;
+
+    private final long keyframeIntervalNanos;
+
+    private final long startNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /* the rest are guarded by lock */
+    private final MappedByteBuffer header;
+
+    private MappedByteBuffer segment;
+
+    private long segmentStart;
+
+    /* the latest frame of each universe, written out in each keyframe */
+    private final Map<Integer, byte[]> latest = new TreeMap<Integer, byte[]>();
+
+    private final List<long[]> index = new ArrayList<long[]>();
+
+    private long lastKeyframe;
+
+    private long lastTimestamp = 0;
+
+    private long frameCount = 0;
+
+    private boolean closed = false;
+
+
+    /**
+     * Create a recording, replacing any existing file.
+     */
+    public DmxRecorder(File path) throws IOException {
+        this(path, DEFAULT_KEYFRAME_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Create a recording, replacing any existing file.
+     *
+     * @param keyframeInterval how often the state of every universe is
+     *        written, which bounds how far a seek has to read.
+     */
+    public DmxRecorder(File path, long keyframeInterval, TimeUnit unit) throws IOException {
+        this(path, keyframeInterval, unit, DmxRecording.DEFAULT_SEGMENT_SIZE);
+    }
+
+
+    DmxRecorder(File path, long keyframeInterval, TimeUnit unit, int segmentSize) throws IOException {
+        if (keyframeInterval <= 0) {
+            throw new IllegalArgumentException("Invalid keyframe interval " + keyframeInterval);
+        }
+        if (segmentSize < DmxRecording.HEADER_SIZE + DmxRecording.RECORD_HEADER_SIZE + DmxFrame.MAX_CHANNELS) {
+            throw new IllegalArgumentException("Segment size " + segmentSize + " too small");
+        }
+        this.segmentSize = segmentSize;
+        this.keyframeIntervalNanos = unit.toNanos(keyframeInterval);
+        // the first frame starts with a keyframe
+        lastKeyframe = -keyframeIntervalNanos;
+
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        mapSegment(0);
+        header = segment;
+
+        header.putInt(0, DmxRecording.MAGIC);
+        header.putInt(4, DmxRecording.VERSION);
+        header.putInt(8, segmentSize);
+        header.putInt(12, (int) unit.toMillis(keyframeInterval));
+        header.putLong(16, System.currentTimeMillis());
+        segment.position(DmxRecording.HEADER_SIZE);
+        startNanos = System.nanoTime();
+    }
+
+
+    /**
+     * Record a frame pushed by olad.
+     */
+    public void dmxReceived(int universe, ByteString data) {
+        record(universe, data.asReadOnlyByteBuffer());
+    }
+
+
+    /**
+     * Record a frame.
+     */
+    public void record(DmxFrame frame) {
+        record(frame.getUniverse(), ByteBuffer.wrap(frame.getData(), 0, frame.getLength()));
+    }
+
+
+    /**
+     * Record a frame.
+     *
+     * @param universe the id of the universe
+     * @param data the dmx values, from the position to the limit.
+     */
+    public void record(int universe, ByteBuffer data) {
+        record(universe, data, System.nanoTime() - startNanos);
+    }
+
+
+    /**
+     * Fetch the current data of some universes with getDmx and record it.
+     * Call this periodically to record universes olad doesn't push.
+     *
+     * @return future which completes once every universe has been recorded.
+     */
+    public CompletableFuture<Void> capture(OlaClient client, Collection<Integer> universes) {
+        List<CompletableFuture<DmxData>> replies = new ArrayList<CompletableFuture<DmxData>>(universes.size());
+        for (Integer universe : universes) {
+            CompletableFuture<DmxData> reply = client.getDmxAsync(universe);
+            reply.whenComplete(new BiConsumer<DmxData, Throwable>() {
+                public void accept(DmxData data, Throwable error) {
+                    if (data != null) {
+                        dmxReceived(data.getUniverse(), data.getData());
+                    }
+                }
+            });
+            replies.add(reply);
+        }
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[replies.size()]));
+    }
+
+
+    /**
+     * Record a frame with a given timestamp. A timestamp older than the
+     * last frame's is recorded as the last frame's, so timestamps never go
+     * backwards.
+     */
+    void record(int universe, ByteBuffer data, long timestamp) {
+        int length = Math.min(data.remaining(), DmxFrame.MAX_CHANNELS);
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Recorder closed");
+            }
+            // another thread may have taken a later timestamp but got the
+            // lock first
+            if (timestamp - lastTimestamp < 0) {
+                timestamp = lastTimestamp;
+            }
+            if (timestamp - lastKeyframe >= keyframeIntervalNanos) {
+                writeKeyframe(timestamp);
+            }
+            ByteBuffer source = data.duplicate();
+            source.limit(source.position() + length);
+            writeRecord((byte) 0, universe, timestamp, source);
+
+            byte[] state = latest.get(universe);
+            if (state == null || state.length != length) {
+                state = new byte[length];
+                latest.put(universe, state);
+            }
+            source.position(source.position() - length);
+            source.get(state);
+            frameCount++;
+            lastTimestamp = timestamp;
+        } catch (IOException e) {
+            logger.severe("Error recording frame: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return the number of frames recorded.
+     */
+    public long getFrameCount() {
+        lock.lock();
+        try {
+            return frameCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Write the index and header and close the file.
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            long dataEnd = segmentStart + segment.position();
+            if (segment.hasRemaining()) {
+                segment.put(DmxRecording.END);
+            }
+
+            ByteBuffer entries = ByteBuffer.allocate(index.size() * DmxRecording.INDEX_ENTRY_SIZE);
+            for (long[] entry : index) {
+                entries.putLong(entry[0]);
+                entries.putLong(entry[1]);
+            }
+            entries.flip();
+            long indexOffset = dataEnd;
+            while (entries.hasRemaining()) {
+                channel.write(entries, indexOffset + entries.position());
+            }
+
+            header.putLong(32, indexOffset);
+            header.putInt(40, index.size());
+            header.putLong(48, lastTimestamp);
+            header.putLong(56, frameCount);
+            // written last, a reader which sees it can trust the rest
+            header.putLong(24, dataEnd);
+            header.force();
+            segment.force();
+
+            channel.truncate(indexOffset + index.size() * DmxRecording.INDEX_ENTRY_SIZE);
+        } finally {
+            lock.unlock();
+            file.close();
+        }
+    }
+
+
+    /**
+     * Write the latest frame of every universe and add it to the index.
+     */
+    private void writeKeyframe(long timestamp) throws IOException {
+        ensureSpace(DmxRecording.RECORD_HEADER_SIZE);
+        index.add(new long[] {timestamp, segmentStart + segment.position()});
+        for (Map.Entry<Integer, byte[]> entry : latest.entrySet()) {
+            writeRecord(DmxRecording.KEYFRAME, entry.getKey(), timestamp, ByteBuffer.wrap(entry.getValue()));
+        }
+        lastKeyframe = timestamp;
+    }
+
+
+    private void writeRecord(byte flags, int universe, long timestamp, ByteBuffer data) throws IOException {
+        ensureSpace(DmxRecording.RECORD_HEADER_SIZE + data.remaining());
+        segment.put(DmxRecording.FRAME);
+        segment.put(flags);
+        segment.putShort((short) data.remaining());
+        segment.putInt(universe);
+        segment.putLong(timestamp);
+        segment.put(data);
+    }
+
+
+    /**
+     * Move to the next segment if this one can't fit a record.
+     */
+    private void ensureSpace(int size) throws IOException {
+        if (segment.remaining() >= size) {
+            return;
+        }
+        if (segment.hasRemaining()) {
+            segment.put(DmxRecording.PADDING);
+        }
+        mapSegment(segmentStart + segmentSize);
+    }
+
+
+    private void mapSegment(long start) throws IOException {
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, start, segmentSize);
+        segment.order(ByteOrder.BIG_ENDIAN);
+        segmentStart = start;
+    }
+}
@@ -0,0 +1,398 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A file of DMX frames written by a DmxRecorder, read through memory
+ * mapped segments so recordings of any length can be read without
+ * loading them onto the heap.
+ *
+ * The file starts with a header, followed by records which each hold one
+ * frame and the nanoseconds since recording started. The file is split
+ * into fixed size segments and records never cross a segment boundary,
+ * so each segment can be mapped on its own. At regular intervals the
+ * recorder writes a keyframe, the latest frame of every universe, and the
+ * time and offset of each keyframe are kept in an index at the end of the
+ * file. Seeking finds the keyframe before the time and reads forward from
+ * there. If the recorder wasn't closed, the index is rebuilt by scanning
+ * the records when the file is opened.
+ *
+ * All values are big endian. Header, 64 bytes:
+ * <pre>
+ *   0 int   magic, "OLAR"
+ *   4 int   version
+ *   8 int   segment size
+ *  12 int   keyframe interval in milliseconds
+ *  16 long  wall clock time recording started, in milliseconds
+ *  24 long  offset of the end of the records, 0 if not closed
+ *  32 long  offset of the index
+ *  40 int   number of index entries
+ *  48 long  timestamp of the last record
+ *  56 long  number of frames, not counting keyframes
+ * </pre>
+ * Record, a 16 byte header followed by the data:
+ * <pre>
+ *   0 byte  type, 0 for the end of the records
+ *   1 byte  flags
+ *   2 short data length
+ *   4 int   universe
+ *   8 long  nanoseconds since recording started
+ * </pre>
+ * Index entry: the keyframe's timestamp and offset, both longs.
+ */
+public class DmxRecording implements Closeable {
+
+    static final int MAGIC = 0x4f4c4152;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 64;
+
+    static final int RECORD_HEADER_SIZE = 16;
+
+    static final int INDEX_ENTRY_SIZE = 16;
+
+    static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /* record types */
+    static final byte END = 0;
+
+    static final byte FRAME = 1;
+
+    static final byte PADDING = 2;
+
+    /* record flags */
+    static final byte KEYFRAME = 1;
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final int segmentSize;
+
+    private final long keyframeIntervalMillis;
+
+    private final long startTime;
+
+    private long dataEnd;
+
+    private long duration;
+
+    private long frameCount;
+
+    /* keyframe timestamps and offsets, in time order */
+    private long[] indexTimes;
+
+    private long[] indexOffsets;
+
+
+    /**
+     * Open a recording.
+     *
+     * @throws IOException if the file can't be read or isn't a recording.
+     */
+    public DmxRecording(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                continue;
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt(0) != MAGIC) {
+                throw new IOException(path + " isn't a DMX recording");
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("Unsupported recording version " + header.getInt(4));
+            }
+            segmentSize = header.getInt(8);
+            keyframeIntervalMillis = header.getInt(12);
+            startTime = header.getLong(16);
+            dataEnd = header.getLong(24);
+            if (dataEnd == 0) {
+                scan();
+            } else {
+                readIndex(header.getLong(32), header.getInt(40));
+                duration = header.getLong(48);
+                frameCount = header.getLong(56);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * @return the wall clock time the recording started, in milliseconds
+     *         since the epoch.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+
+    /**
+     * @return the timestamp of the last frame, in nanoseconds.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+
+    /**
+     * @return the number of frames recorded.
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+
+    /**
+     * @return the interval between keyframes, in milliseconds.
+     */
+    public long getKeyframeInterval() {
+        return keyframeIntervalMillis;
+    }
+
+
+    /**
+     * @return the number of keyframes in the index.
+     */
+    public int getKeyframeCount() {
+        return indexTimes.length;
+    }
+
+
+    /**
+     * @return a cursor positioned before the first record.
+     */
+    public Cursor cursor() {
+        return new Cursor(HEADER_SIZE);
+    }
+
+
+    /**
+     * @return a cursor positioned before the keyframe at or before a time,
+     *         so reading forward from it restores the state of every
+     *         universe at that time.
+     */
+    public Cursor cursorAt(long timeNanos) {
+        int entry = Arrays.binarySearch(indexTimes, timeNanos);
+        if (entry < 0) {
+            entry = -entry - 2;
+        } else {
+            // several keyframes can share a timestamp, use the first
+            while (entry > 0 && indexTimes[entry - 1] == timeNanos) {
+                entry--;
+            }
+        }
+        return new Cursor(entry < 0 ? HEADER_SIZE : indexOffsets[entry]);
+    }
+
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+
+    private void readIndex(long offset, int count) throws IOException {
+        ByteBuffer index = ByteBuffer.allocate(count * INDEX_ENTRY_SIZE);
+        while (index.hasRemaining()) {
+            if (channel.read(index, offset + index.position()) < 0) {
+                throw new IOException("Recording index truncated");
+            }
+        }
+        indexTimes = new long[count];
+        indexOffsets = new long[count];
+        for (int i = 0; i < count; i++) {
+            indexTimes[i] = index.getLong(i * INDEX_ENTRY_SIZE);
+            indexOffsets[i] = index.getLong(i * INDEX_ENTRY_SIZE + 8);
+        }
+    }
+
+
+    /**
+     * Rebuild the index and totals of a recording which wasn't closed.
+     */
+    private void scan() throws IOException {
+        int capacity = 64;
+        long[] times = new long[capacity];
+        long[] offsets = new long[capacity];
+        int count = 0;
+        long lastKeyframe = -1;
+
+        Cursor cursor = cursor();
+        while (cursor.next()) {
+            if (cursor.isKeyframe()) {
+                if (cursor.getTimestamp() != lastKeyframe) {
+                    if (count == capacity) {
+                        capacity *= 2;
+                        times = Arrays.copyOf(times, capacity);
+                        offsets = Arrays.copyOf(offsets, capacity);
+                    }
+                    times[count] = cursor.getTimestamp();
+                    offsets[count] = cursor.getOffset();
+                    count++;
+                    lastKeyframe = cursor.getTimestamp();
+                }
+            } else {
+                frameCount++;
+            }
+            duration = cursor.getTimestamp();
+        }
+        dataEnd = cursor.nextOffset;
+        indexTimes = Arrays.copyOf(times, count);
+        indexOffsets = Arrays.copyOf(offsets, count);
+    }
+
+
+    /**
+     * Reads records in order. The data of the current record is only valid
+     * until next() is called.
+     */
+    public class Cursor {
+
+        private MappedByteBuffer segment;
+
+        private long segmentStart = -1;
+
+        private long nextOffset;
+
+        private long offset;
+
+        private byte flags;
+
+        private int universe;
+
+        private long timestamp;
+
+
+        private Cursor(long offset) {
+            nextOffset = offset;
+            this.offset = offset;
+        }
+
+
+        /**
+         * Move to the next record.
+         *
+         * @return false at the end of the recording.
+         */
+        public boolean next() throws IOException {
+            while (true) {
+                long limit = dataEnd == 0 ? channel.size() : dataEnd;
+                if (nextOffset + RECORD_HEADER_SIZE > limit) {
+                    return false;
+                }
+                long start = nextOffset - nextOffset % segmentSize;
+                if (start != segmentStart) {
+                    long size = Math.min(segmentSize, channel.size() - start);
+                    segment = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+                    segment.order(ByteOrder.BIG_ENDIAN);
+                    segmentStart = start;
+                }
+                int position = (int) (nextOffset - start);
+                if (position + RECORD_HEADER_SIZE > segment.limit()) {
+                    // too little space was left for a record
+                    nextOffset = start + segmentSize;
+                    continue;
+                }
+                byte type = segment.get(position);
+                if (type == END) {
+                    return false;
+                }
+                if (type == PADDING) {
+                    nextOffset = start + segmentSize;
+                    continue;
+                }
+                int length = segment.getShort(position + 2) & 0xffff;
+                if (position + RECORD_HEADER_SIZE + length > segment.limit()) {
+                    throw new IOException("Corrupt record at " + nextOffset);
+                }
+                offset = nextOffset;
+                flags = segment.get(position + 1);
+                universe = segment.getInt(position + 4);
+                timestamp = segment.getLong(position + 8);
+                nextOffset += RECORD_HEADER_SIZE + length;
+                return true;
+            }
+        }
+
+
+        /**
+         * @return the file offset of the current record.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+
+        /**
+         * @return true if the current record is part of a keyframe.
+         */
+        public boolean isKeyframe() {
+            return (flags & KEYFRAME) != 0;
+        }
+
+
+        public int getUniverse() {
+            return universe;
+        }
+
+
+        /**
+         * @return nanoseconds between the start of the recording and the
+         *         frame.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+
+        /**
+         * @return the data of the current record, a view of the mapped file.
+         */
+        public ByteBuffer getData() {
+            int position = (int) (offset - segmentStart) + RECORD_HEADER_SIZE;
+            int length = segment.getShort(position - RECORD_HEADER_SIZE + 2) & 0xffff;
+            ByteBuffer view = segment.duplicate();
+            view.limit(position + length);
+            view.position(position);
+            return view;
+        }
+
+
+        /**
+         * Copy the current record into a frame.
+         */
+        public void copyTo(DmxFrame frame) {
+            frame.setUniverse(universe);
+            frame.setData(getData());
+        }
+    }
+}
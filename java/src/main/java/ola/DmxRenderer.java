@@ -0,0 +1,344 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import ola.rpc.LatencyHistogram;
+
+/**
+ * Renders DmxEffects into universes at a fixed rate and sends the result.
+ *
+ * Each tick the universes are split into groups which are rendered in
+ * parallel on a ForkJoinPool, so a universe's effects always run on one
+ * thread at a time and never share data with another group. Every
+ * universe renders into its own DmxFrame, which is reused from tick to
+ * tick and passed straight to streamDmxBatch(), so no frames or data
+ * arrays are allocated per tick; only the small fork/join tasks and the
+ * effect list iterators are. A universe keeps its values once its
+ * effects finish, which is what later fades start from. Only universes
+ * which had an effect to render, or whose last frame was dropped, are
+ * sent.
+ */
+public class DmxRenderer {
+
+    private static Logger logger = Logger.getLogger(DmxRenderer.class.getName());
+
+    /* the most universes rendered by one task */
+    static final int PARTITION_SIZE = 4;
+
+    private final OlaClient client;
+
+    private final long periodNanos;
+
+    private final ForkJoinPool pool;
+
+    private final long epoch = System.nanoTime();
+
+    private final ConcurrentMap<Integer, RenderedUniverse> universes =
+            new ConcurrentHashMap<Integer, RenderedUniverse>();
+
+    /* every universe, in the order they were added, replaced as they are */
+    private volatile RenderedUniverse[] snapshot = new RenderedUniverse[0];
+
+    private final Object renderLock = new Object();
+
+    /* frames being sent by render(), guarded by renderLock */
+    private final List<DmxFrame> renderFrames = new ArrayList<DmxFrame>();
+
+    private final AtomicLong framesSent = new AtomicLong(0);
+
+    private final AtomicLong overruns = new AtomicLong(0);
+
+    private final LatencyHistogram renderTime = new LatencyHistogram();
+
+    private ScheduledExecutorService executor;
+
+
+    /**
+     * Create a renderer which runs at the default rate of 44Hz on the
+     * common ForkJoinPool.
+     *
+     * @param client the client to send frames with
+     */
+    public DmxRenderer(OlaClient client) {
+        this(client, DmxOutputScheduler.DEFAULT_REFRESH_RATE, ForkJoinPool.commonPool());
+    }
+
+
+    /**
+     * Create a renderer.
+     *
+     * @param client the client to send frames with
+     * @param refreshRate number of frames rendered per second
+     * @param pool the pool universes are rendered on
+     */
+    public DmxRenderer(OlaClient client, double refreshRate, ForkJoinPool pool) {
+        if (refreshRate <= 0) {
+            throw new IllegalArgumentException("Invalid refresh rate " + refreshRate);
+        }
+        this.client = client;
+        this.periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / refreshRate);
+        this.pool = pool;
+    }
+
+
+    /**
+     * Start rendering.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            logger.warning("Renderer already started.");
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ola-dmx-renderer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                // an exception would cancel the schedule
+                try {
+                    render(getTime());
+                } catch (RuntimeException e) {
+                    logger.warning("Error rendering frames: " + e.getMessage());
+                }
+                if (System.nanoTime() - start > periodNanos) {
+                    overruns.incrementAndGet();
+                }
+            }
+        }, 0, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+
+    /**
+     * Stop rendering. Effects carry on from the renderer's clock when it is
+     * started again.
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+
+    /**
+     * @return the renderer's clock, in nanoseconds.
+     */
+    public long getTime() {
+        return System.nanoTime() - epoch;
+    }
+
+
+    /**
+     * Add an effect to a universe. It starts on the next tick.
+     *
+     * @param universe the id of the universe
+     * @param effect the effect
+     */
+    public void addEffect(int universe, DmxEffect effect) {
+        getUniverse(universe).effects.add(effect);
+    }
+
+
+    /**
+     * Remove an effect before it has finished. The channels keep their
+     * current values.
+     */
+    public void removeEffect(int universe, DmxEffect effect) {
+        RenderedUniverse rendered = universes.get(universe);
+        if (rendered != null) {
+            rendered.effects.remove(effect);
+        }
+    }
+
+
+    /**
+     * @return the number of effects still running on a universe.
+     */
+    public int getEffectCount(int universe) {
+        RenderedUniverse rendered = universes.get(universe);
+        return rendered == null ? 0 : rendered.effects.size();
+    }
+
+
+    /**
+     * Render every universe for a time and send the ones with effects in a
+     * single write. This is called by the scheduler thread but can also be
+     * called directly, for example when the renderer isn't started.
+     *
+     * @param time the time to render, see getTime()
+     */
+    public void render(long time) {
+        synchronized (renderLock) {
+            long start = System.nanoTime();
+            RenderedUniverse[] all = snapshot;
+            if (all.length <= PARTITION_SIZE) {
+                renderRange(all, 0, all.length, time);
+            } else {
+                pool.invoke(new RenderTask(all, 0, all.length, time));
+            }
+
+            for (RenderedUniverse rendered : all) {
+                if (rendered.unsent) {
+                    renderFrames.add(rendered.frame);
+                }
+            }
+            if (!renderFrames.isEmpty()) {
+                // if the frames are dropped they are sent again next tick,
+                // even when their effects have finished.
+                if (client.streamDmxBatch(renderFrames)) {
+                    framesSent.addAndGet(renderFrames.size());
+                    for (RenderedUniverse rendered : all) {
+                        rendered.unsent = false;
+                    }
+                }
+                renderFrames.clear();
+            }
+            renderTime.record(System.nanoTime() - start);
+        }
+    }
+
+
+    /**
+     * @return the number of frames sent.
+     */
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+
+    /**
+     * @return the number of ticks which took longer than the refresh
+     *         period.
+     */
+    public long getOverruns() {
+        return overruns.get();
+    }
+
+
+    /**
+     * @return how long each tick took to render and send, in nanoseconds.
+     */
+    public LatencyHistogram getRenderTime() {
+        return renderTime;
+    }
+
+
+    private static void renderRange(RenderedUniverse[] all, int from, int to, long time) {
+        for (int i = from; i < to; i++) {
+            RenderedUniverse rendered = all[i];
+            byte[] data = rendered.frame.getData();
+            for (DmxEffect effect : rendered.effects) {
+                rendered.unsent = true;
+                if (!effect.render(time, data)) {
+                    rendered.effects.remove(effect);
+                }
+            }
+        }
+    }
+
+
+    private RenderedUniverse getUniverse(int universe) {
+        RenderedUniverse rendered = universes.get(universe);
+        if (rendered != null) {
+            return rendered;
+        }
+        synchronized (universes) {
+            rendered = universes.get(universe);
+            if (rendered == null) {
+                rendered = new RenderedUniverse(universe);
+                RenderedUniverse[] all = snapshot;
+                RenderedUniverse[] grown = new RenderedUniverse[all.length + 1];
+                System.arraycopy(all, 0, grown, 0, all.length);
+                grown[all.length] = rendered;
+                universes.put(universe, rendered);
+                snapshot = grown;
+            }
+            return rendered;
+        }
+    }
+
+
+    /**
+     * Renders a range of universes, splitting it in half until the ranges
+     * are small.
+     */
+    private static class RenderTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RenderedUniverse[] all;
+
+        private final int from;
+
+        private final int to;
+
+        private final long time;
+
+        RenderTask(RenderedUniverse[] all, int from, int to, long time) {
+            this.all = all;
+            this.from = from;
+            this.to = to;
+            this.time = time;
+        }
+
+        protected void compute() {
+            if (to - from <= PARTITION_SIZE) {
+                renderRange(all, from, to, time);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RenderTask(all, from, middle, time), new RenderTask(all, middle, to, time));
+        }
+    }
+
+
+    /**
+     * The frame a universe is rendered into and its effects.
+     */
+    private static class RenderedUniverse {
+
+        private final DmxFrame frame;
+
+        private final List<DmxEffect> effects = new CopyOnWriteArrayList<DmxEffect>();
+
+        /* true if effects have run since the frame was last sent */
+        private boolean unsent = false;
+
+        RenderedUniverse(int universe) {
+            frame = new DmxFrame(universe);
+            frame.setLength(DmxFrame.MAX_CHANNELS);
+        }
+    }
+}
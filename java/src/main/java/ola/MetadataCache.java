@@ -0,0 +1,273 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+
+package ola;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.google.protobuf.Message;
+
+/**
+ * Caches the replies to the calls which describe olad's configuration:
+ * GetPlugins, GetPluginDescription, GetDeviceInfo, GetCandidatePorts and
+ * GetUniverseInfo.
+ *
+ * Replies are kept for a fixed time to live. Calls made through the
+ * client which change the configuration, such as PatchPort or
+ * SetUniverseName, drop the cached replies they may have changed, both
+ * when the call is made and when it completes. Changes made by other
+ * clients of olad are only seen once the cached reply expires.
+ *
+ * Concurrent calls for the same reply share a single request to olad.
+ * Failed calls aren't cached.
+ */
+public class MetadataCache {
+
+    public static final long DEFAULT_TTL_MILLIS = 5000;
+
+    private static final Map<String, List<String>> INVALIDATIONS = new HashMap<String, List<String>>();
+
+    private static final Set<String> CACHED_METHODS = new HashSet<String>();
+
+    static {
+        INVALIDATIONS.put("PatchPort", Arrays.asList("GetDeviceInfo", "GetCandidatePorts", "GetUniverseInfo"));
+        INVALIDATIONS.put("SetPortPriority", Arrays.asList("GetDeviceInfo", "GetCandidatePorts"));
+        INVALIDATIONS.put("ConfigureDevice", Arrays.asList("GetDeviceInfo", "GetCandidatePorts"));
+        INVALIDATIONS.put("SetUniverseName", Arrays.asList("GetUniverseInfo"));
+        INVALIDATIONS.put("SetMergeMode", Arrays.asList("GetUniverseInfo"));
+        CACHED_METHODS.addAll(Arrays.asList("GetPlugins", "GetPluginDescription", "GetDeviceInfo",
+                "GetCandidatePorts", "GetUniverseInfo"));
+    }
+
+    private final long ttlNanos;
+
+    /* cached replies by method and then by request */
+    private final ConcurrentMap<String, ConcurrentMap<Message, Entry>> methods =
+            new ConcurrentHashMap<String, ConcurrentMap<Message, Entry>>();
+
+    private final AtomicLong hits = new AtomicLong(0);
+
+    private final AtomicLong misses = new AtomicLong(0);
+
+
+    /**
+     * Create a cache which keeps replies for 5 seconds.
+     */
+    public MetadataCache() {
+        this(DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Create a cache.
+     *
+     * @param ttl how long replies are kept
+     */
+    public MetadataCache(long ttl, TimeUnit unit) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Invalid time to live " + ttl);
+        }
+        this.ttlNanos = unit.toNanos(ttl);
+        for (String method : CACHED_METHODS) {
+            methods.put(method, new ConcurrentHashMap<Message, Entry>());
+        }
+    }
+
+
+    /**
+     * @return the methods whose replies are cached.
+     */
+    public static Set<String> getCachedMethods() {
+        return Collections.unmodifiableSet(CACHED_METHODS);
+    }
+
+
+    /**
+     * Drop all cached replies for a method.
+     *
+     * @param method the name of the method, e.g. GetUniverseInfo
+     */
+    public void invalidate(String method) {
+        Map<Message, Entry> entries = methods.get(method);
+        if (entries != null) {
+            entries.clear();
+        }
+    }
+
+
+    /**
+     * Drop all cached replies.
+     */
+    public void clear() {
+        for (Map<Message, Entry> entries : methods.values()) {
+            entries.clear();
+        }
+    }
+
+
+    /**
+     * @return the number of calls answered from the cache.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+
+    /**
+     * @return the number of calls which went to olad.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+
+    /**
+     * @return true if replies to a method are cached.
+     */
+    boolean isCached(String method) {
+        return CACHED_METHODS.contains(method);
+    }
+
+
+    /**
+     * Get a reply from the cache, or from olad if it isn't cached.
+     *
+     * @param method the name of the method
+     * @param request the request
+     * @param call makes the call to olad
+     */
+    <T extends Message> CompletableFuture<T> get(String method, Message request,
+            Supplier<CompletableFuture<T>> call) {
+
+        final ConcurrentMap<Message, Entry> entries = methods.get(method);
+        final Message key = request;
+        final CompletableFuture<T> pending = new CompletableFuture<T>();
+        final Entry newEntry;
+        while (true) {
+            long now = System.nanoTime();
+            Entry entry = entries.get(key);
+            if (entry != null && now - entry.created < ttlNanos) {
+                hits.incrementAndGet();
+                return copy(entry.<T>getReply());
+            }
+            // only the caller whose entry goes in calls olad, the others
+            // wait for its reply.
+            Entry candidate = new Entry(now, pending);
+            if (entry == null ? entries.putIfAbsent(key, candidate) == null
+                    : entries.replace(key, entry, candidate)) {
+                newEntry = candidate;
+                break;
+            }
+        }
+
+        misses.incrementAndGet();
+        evictExpired(entries, newEntry.created);
+        CompletableFuture<T> sent;
+        try {
+            sent = call.get();
+        } catch (RuntimeException e) {
+            entries.remove(key, newEntry);
+            pending.completeExceptionally(e);
+            throw e;
+        }
+        // callers see the reply once the failed entry has been removed
+        sent.whenComplete(new BiConsumer<T, Throwable>() {
+            public void accept(T reply, Throwable error) {
+                if (error != null) {
+                    entries.remove(key, newEntry);
+                    pending.completeExceptionally(error);
+                } else {
+                    pending.complete(reply);
+                }
+            }
+        });
+        return copy(pending);
+    }
+
+
+    /**
+     * Drop the replies which a call may change.
+     *
+     * @param method the name of the method being called
+     */
+    void mutated(String method) {
+        List<String> affected = INVALIDATIONS.get(method);
+        if (affected == null) {
+            return;
+        }
+        for (String cached : affected) {
+            invalidate(cached);
+        }
+    }
+
+
+    private void evictExpired(Map<Message, Entry> entries, long now) {
+        Iterator<Entry> iter = entries.values().iterator();
+        while (iter.hasNext()) {
+            if (now - iter.next().created >= ttlNanos) {
+                iter.remove();
+            }
+        }
+    }
+
+
+    /**
+     * @return a future for the same reply which the caller can't use to
+     *         change the cached future.
+     */
+    private static <T extends Message> CompletableFuture<T> copy(CompletableFuture<T> reply) {
+        if (reply.isDone() && !reply.isCompletedExceptionally()) {
+            return CompletableFuture.completedFuture(reply.getNow(null));
+        }
+        return reply.thenApply(Function.<T>identity());
+    }
+
+
+    /**
+     * A cached reply.
+     */
+    private static class Entry {
+
+        final long created;
+
+        final CompletableFuture<? extends Message> reply;
+
+        Entry(long created, CompletableFuture<? extends Message> reply) {
+            this.created = created;
+            this.reply = reply;
+        }
+
+        @SuppressWarnings("unchecked")
+        <T extends Message> CompletableFuture<T> getReply() {
+            return (CompletableFuture<T>) reply;
+        }
+    }
+}
@@ -16,8 +16,23 @@
 
 package ola;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import ola.proto.Ola.Ack;
 import ola.proto.Ola.DeviceConfigReply;
 import ola.proto.Ola.DeviceConfigRequest;
 import ola.proto.Ola.DeviceInfoReply;
@@ -26,6 +41,7 @@ import ola.proto.Ola.DiscoveryRequest;
 import ola.proto.Ola.DmxData;
 import ola.proto.Ola.MergeMode;
 import ola.proto.Ola.MergeModeRequest;
+import ola.proto.Ola.OlaClientService;
 import ola.proto.Ola.OlaServerService;
 import ola.proto.Ola.OptionalUniverseRequest;
 import ola.proto.Ola.PatchAction;
@@ -39,6 +55,7 @@ import ola.proto.Ola.RDMRequest;
 import ola.proto.Ola.RDMResponse;
 import ola.proto.Ola.RegisterAction;
 import ola.proto.Ola.RegisterDmxRequest;
+import ola.proto.Ola.STREAMING_NO_RESPONSE;
 import ola.proto.Ola.TimeCode;
 import ola.proto.Ola.TimeCodeType;
 import ola.proto.Ola.UID;
@@ -46,60 +63,286 @@ import ola.proto.Ola.UIDListReply;
 import ola.proto.Ola.UniverseInfoReply;
 import ola.proto.Ola.UniverseNameRequest;
 import ola.proto.Ola.UniverseRequest;
+import ola.rpc.AbstractRpcChannel;
+import ola.rpc.ConnectionListener;
+import ola.rpc.RpcException;
+import ola.rpc.RpcMetricsListener;
+import ola.rpc.RpcPayload;
 import ola.rpc.SimpleRpcController;
 import ola.rpc.StreamRpcChannel;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.MethodDescriptor;
 import com.google.protobuf.Message;
 import com.google.protobuf.RpcCallback;
-import com.google.protobuf.RpcChannel;
 import com.google.protobuf.RpcController;
 
+/**
+ * Client for olad.
+ *
+ * A client can be shared by any number of threads. Each call has its own
+ * controller and message id, so blocking calls made from many threads at
+ * once are multiplexed over the one connection, and a thread blocked
+ * waiting for a reply holds no locks. Blocking calls therefore suit one
+ * thread, or virtual thread, per universe or fixture. Interrupting a
+ * thread blocked in a call cancels the call.
+ */
 public class OlaClient {
 
     private static Logger logger = Logger.getLogger(OlaClient.class.getName());
 
     private OlaServerService serverService;
 
-    private RpcController controller;
+    private AbstractRpcChannel channel;
+
+    private MethodDescriptor updateDmxMethod;
+
+    private MethodDescriptor streamDmxMethod;
+
+    private volatile DmxFrameCache frameCache;
+
+    private volatile MetadataCache metadataCache;
+
+    private final ConcurrentMap<Integer, UniverseListeners> dmxListeners =
+            new ConcurrentHashMap<Integer, UniverseListeners>();
+
+    /* controllers for streamed frames, which have no reply to wait for */
+    private final ThreadLocal<SimpleRpcController> streamController = new ThreadLocal<SimpleRpcController>() {
+        protected SimpleRpcController initialValue() {
+            return new SimpleRpcController();
+        }
+    };
 
-    private RpcChannel channel;
+    /* scratch frames used to send arrays without allocating */
+    private final ThreadLocal<DmxFrame> scratchFrame = new ThreadLocal<DmxFrame>() {
+        protected DmxFrame initialValue() {
+            return new DmxFrame(0);
+        }
+    };
 
 
     public OlaClient() throws Exception {
+        this(new StreamRpcChannel());
+    }
+
+
+    /**
+     * Create a client connected to an olad on another host or port.
+     *
+     * @param host the host olad is running on
+     * @param port the rpc port of olad
+     */
+    public OlaClient(String host, int port) throws Exception {
+        this(new StreamRpcChannel(host, port));
+    }
+
+
+    /**
+     * Create a client which uses an existing channel, for example a
+     * NioRpcChannel sharing an event loop with other clients.
+     *
+     * @param channel a connected channel to olad
+     */
+    public OlaClient(AbstractRpcChannel channel) {
 
-        channel = new StreamRpcChannel();
-        controller = new SimpleRpcController();
+        this.channel = channel;
         serverService = OlaServerService.Stub.newStub(channel);
+        channel.setService(OlaClientService.newReflectiveService(new ClientService()));
+        channel.addConnectionListener(new Reconnector());
+        updateDmxMethod = serverService.getDescriptorForType().findMethodByName("UpdateDmxData");
+        streamDmxMethod = serverService.getDescriptorForType().findMethodByName("StreamDmxData");
+    }
+
+
+    /**
+     * Close the connection to olad. Outstanding calls fail.
+     */
+    public void close() {
+        channel.close();
+    }
+
+
+    /**
+     * Skip frames which are identical to the last frame sent for their
+     * universe, apart from a periodic keepalive. This applies to sendDmx,
+     * streamDmx and streamDmxBatch.
+     *
+     * @param cache the cache to check frames against, or null to send every
+     *        frame.
+     */
+    public void setFrameCache(DmxFrameCache cache) {
+        frameCache = cache;
+    }
+
+
+    /**
+     * @return the frame cache, or null if every frame is sent.
+     */
+    public DmxFrameCache getFrameCache() {
+        return frameCache;
+    }
+
+
+    /**
+     * Cache the replies to the calls which describe olad's configuration,
+     * such as getPlugins and getUniverseInfo.
+     *
+     * @param cache the cache to use, or null to always ask olad.
+     */
+    public void setMetadataCache(MetadataCache cache) {
+        metadataCache = cache;
+    }
+
+
+    /**
+     * @return the metadata cache, or null if replies aren't cached.
+     */
+    public MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+
+    /**
+     * Report this client's calls, traffic and connection events, for example
+     * to an RpcMetrics.
+     *
+     * @param listener the listener, or null to stop reporting.
+     */
+    public void setMetricsListener(RpcMetricsListener listener) {
+        channel.setMetricsListener(listener);
+    }
+
+
+    /**
+     * Fail calls which haven't had a response after a time, so a stalled
+     * olad can't block callers forever. olad is sent a REQUEST_CANCEL for
+     * each call which times out.
+     *
+     * @param timeout the timeout, 0 to wait forever, which is the default.
+     */
+    public void setCallTimeout(long timeout, TimeUnit unit) {
+        channel.setDefaultTimeout(timeout, unit);
+    }
+
+
+    /**
+     * Reconnect automatically if the connection to olad is lost, for
+     * example because olad restarted. Once reconnected the client registers
+     * again for the universes it has DmxListeners for and, if a frame cache
+     * is set, resends the latest frame of every universe it outputs. The
+     * metadata cache, if any, is cleared.
+     *
+     * @param initialDelay the delay before the first attempt, 0 to not
+     *        reconnect, which is the default.
+     * @param maxDelay the delay between attempts doubles after each failure
+     *        up to this.
+     */
+    public void setReconnectDelay(long initialDelay, long maxDelay, TimeUnit unit) {
+        channel.setReconnectDelay(initialDelay, maxDelay, unit);
+    }
+
+
+    /**
+     * @return true if the client is connected to olad.
+     */
+    public boolean isConnected() {
+        return channel.isConnected();
     }
 
 
     /**
-     * Generic method for making Rpc Calls.
+     * Generic method for making asynchronous Rpc Calls.
      *
-     * @param method Name of te Rpc Method to call
+     * The returned future is completed on the channel's reader thread, so
+     * dependent actions which block should use the *Async variants of the
+     * CompletableFuture methods. If a metadata cache is set, replies are
+     * taken from it where possible and calls which change olad's
+     * configuration invalidate it.
+     *
+     * @param method Name of the Rpc Method to call
      * @param inputMessage Input RpcMessage
-     * @return Message result message or null if the call failed.
+     * @return future which completes with the result message, or
+     *         exceptionally with an RpcException if the call failed.
      */
-    private Message callRpcMethod(String method, Message inputMessage) {
+    private <T extends Message> CompletableFuture<T> callRpcMethodAsync(final String method,
+            final Message inputMessage) {
 
-        final Message[] outputMessage = new Message[1];
-        controller.reset();
+        final MetadataCache cache = metadataCache;
+        if (cache == null) {
+            return sendRpcRequest(method, inputMessage);
+        }
+        if (cache.isCached(method)) {
+            return cache.get(method, inputMessage, new Supplier<CompletableFuture<T>>() {
+                public CompletableFuture<T> get() {
+                    return sendRpcRequest(method, inputMessage);
+                }
+            });
+        }
 
-        RpcCallback<Message> cb = new RpcCallback<Message>() {
-            public void run(Message arg0) {
-                outputMessage[0] = arg0;
+        // drop what the call may change now, and again once it has been
+        // applied in case a reply from before the change was cached meanwhile.
+        cache.mutated(method);
+        CompletableFuture<T> future = sendRpcRequest(method, inputMessage);
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+            public void accept(T result, Throwable error) {
+                cache.mutated(method);
             }
-        };
+        });
+        return future;
+    }
 
-        serverService.callMethod(serverService.getDescriptorForType().findMethodByName(method), controller, inputMessage, cb);
 
-        if (controller.failed()) {
-            logger.warning("RPC Call failed: " + controller.errorText());
-            return null;
-        }
+    private <T extends Message> CompletableFuture<T> sendRpcRequest(String method, Message inputMessage) {
+        MethodDescriptor descriptor = serverService.getDescriptorForType().findMethodByName(method);
+        FutureCallback<T> cb = new FutureCallback<T>();
+        channel.callMethodAsync(descriptor, cb.controller, inputMessage,
+                serverService.getResponsePrototype(descriptor), cb);
+        return cb.future;
+    }
+
 
-        return outputMessage[0];
+    /**
+     * Make an asynchronous Rpc Call with a request which encodes itself.
+     *
+     * The request is encoded before this method returns and may be reused
+     * straight away.
+     *
+     * @param descriptor the Rpc Method to call
+     * @param payload the request
+     * @return future which completes with the result message, or
+     *         exceptionally with an RpcException if the call failed.
+     */
+    private <T extends Message> CompletableFuture<T> callRpcMethodAsync(MethodDescriptor descriptor, RpcPayload payload) {
+        FutureCallback<T> cb = new FutureCallback<T>();
+        channel.callMethodAsync(descriptor, cb.controller, payload,
+                serverService.getResponsePrototype(descriptor), cb);
+        return cb.future;
+    }
+
+
+    /**
+     * Wait for the result of an asynchronous call. If the thread is
+     * interrupted the call is cancelled.
+     *
+     * @param future the pending call
+     * @return the result message or null if the call failed.
+     */
+    private <T extends Message> T getResult(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // while disconnected every call fails, the channel logged why
+            if (channel.isConnected()) {
+                logger.warning("RPC Call failed: " + e.getCause().getMessage());
+            } else if (logger.isLoggable(Level.FINE)) {
+                logger.fine("RPC Call failed: " + e.getCause().getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            logger.warning("RPC Call interrupted");
+        }
+        return null;
     }
 
 
@@ -110,7 +353,17 @@ public class OlaClient {
      * @return The list of plugings.
      */
     public PluginListReply getPlugins() {
-        return (PluginListReply) callRpcMethod("GetPlugins", PluginListRequest.newBuilder().build());
+        return getResult(getPluginsAsync());
+    }
+
+
+    /**
+     * Asynchronously get a list of plugins from olad.
+     *
+     * @return future list of plugins.
+     */
+    public CompletableFuture<PluginListReply> getPluginsAsync() {
+        return callRpcMethodAsync("GetPlugins", PluginListRequest.newBuilder().build());
     }
 
 
@@ -121,12 +374,23 @@ public class OlaClient {
      * @return The list of plugings.
      */
     public PluginDescriptionReply getPluginDescription(int pluginId) {
+        return getResult(getPluginDescriptionAsync(pluginId));
+    }
+
+
+    /**
+     * Asynchronously get a plugin description from olad.
+     *
+     * @param pluginId number of the plugin for which to receive the description
+     * @return future plugin description.
+     */
+    public CompletableFuture<PluginDescriptionReply> getPluginDescriptionAsync(int pluginId) {
 
         PluginDescriptionRequest request = PluginDescriptionRequest.newBuilder()
                 .setPluginId(pluginId)
                 .build();
 
-        return (PluginDescriptionReply) callRpcMethod("GetPluginDescription", request);
+        return callRpcMethodAsync("GetPluginDescription", request);
     }
 
 
@@ -136,7 +400,17 @@ public class OlaClient {
      * @return The Device Info.
      */
     public DeviceInfoReply getDeviceInfo() {
-        return (DeviceInfoReply) callRpcMethod("GetDeviceInfo", DeviceInfoRequest.newBuilder().build());
+        return getResult(getDeviceInfoAsync());
+    }
+
+
+    /**
+     * Asynchronously get device info from olad.
+     *
+     * @return future Device Info.
+     */
+    public CompletableFuture<DeviceInfoReply> getDeviceInfoAsync() {
+        return callRpcMethodAsync("GetDeviceInfo", DeviceInfoRequest.newBuilder().build());
     }
 
     /**
@@ -146,8 +420,19 @@ public class OlaClient {
      * @return device info
      */
     public DeviceInfoReply getCandidatePorts(int universe) {
+        return getResult(getCandidatePortsAsync(universe));
+    }
+
+
+    /**
+     * Asynchronously get candidate ports for universe.
+     *
+     * @param universe the id of the universe.
+     * @return future device info
+     */
+    public CompletableFuture<DeviceInfoReply> getCandidatePortsAsync(int universe) {
         OptionalUniverseRequest request = OptionalUniverseRequest.newBuilder().setUniverse(universe).build();
-        return (DeviceInfoReply) callRpcMethod("GetCandidatePorts", request);
+        return callRpcMethodAsync("GetCandidatePorts", request);
     }
 
 
@@ -159,11 +444,23 @@ public class OlaClient {
      * @return
      */
     public DeviceConfigReply configureDevice(int device, short[] data) {
+        return getResult(configureDeviceAsync(device, data));
+    }
+
+
+    /**
+     * Asynchronously configure device.
+     *
+     * @param device the id of the device to configure.
+     * @param data device configuration data.
+     * @return future device configuration reply.
+     */
+    public CompletableFuture<DeviceConfigReply> configureDeviceAsync(int device, short[] data) {
         DeviceConfigRequest request = DeviceConfigRequest.newBuilder()
                 .setDeviceAlias(device)
                 .setData(convertToUnsigned(data))
                 .build();
-        return (DeviceConfigReply) callRpcMethod("ConfigureDevice", request);
+        return callRpcMethodAsync("ConfigureDevice", request);
     }
 
 
@@ -174,8 +471,29 @@ public class OlaClient {
      * @return UniverseInfo
      */
     public UniverseInfoReply getUniverseInfo(int universe) {
+        return getResult(getUniverseInfoAsync(universe));
+    }
+
+
+    /**
+     * Asynchronously get universe information.
+     *
+     * @param universe the id of the universe
+     * @return future UniverseInfo
+     */
+    public CompletableFuture<UniverseInfoReply> getUniverseInfoAsync(int universe) {
         OptionalUniverseRequest request = OptionalUniverseRequest.newBuilder().setUniverse(universe).build();
-        return (UniverseInfoReply) callRpcMethod("GetUniverseInfo", request);
+        return callRpcMethodAsync("GetUniverseInfo", request);
+    }
+
+
+    /**
+     * Asynchronously get information about all universes.
+     *
+     * @return future UniverseInfo
+     */
+    public CompletableFuture<UniverseInfoReply> getUniverseInfoAsync() {
+        return callRpcMethodAsync("GetUniverseInfo", OptionalUniverseRequest.newBuilder().build());
     }
 
 
@@ -186,8 +504,19 @@ public class OlaClient {
      * @return UIDListReply
      */
     public UIDListReply getUIDs(int universe) {
+        return getResult(getUIDsAsync(universe));
+    }
+
+
+    /**
+     * Asynchronously get UID's.
+     *
+     * @param universe the id of the universe
+     * @return future UIDListReply
+     */
+    public CompletableFuture<UIDListReply> getUIDsAsync(int universe) {
         UniverseRequest request = UniverseRequest.newBuilder().setUniverse(universe).build();
-        return (UIDListReply) callRpcMethod("GetUIDs", request);
+        return callRpcMethodAsync("GetUIDs", request);
     }
 
 
@@ -199,11 +528,23 @@ public class OlaClient {
      * @return UID List
      */
     public UIDListReply forceDiscovery(int universe, boolean full) {
+        return getResult(forceDiscoveryAsync(universe, full));
+    }
+
+
+    /**
+     * Asynchronously force discovery of a universe.
+     *
+     * @param universe the id of the universe
+     * @param full
+     * @return future UID List
+     */
+    public CompletableFuture<UIDListReply> forceDiscoveryAsync(int universe, boolean full) {
         DiscoveryRequest request = DiscoveryRequest.newBuilder()
                 .setUniverse(universe)
                 .setFull(full)
                 .build();
-        return (UIDListReply) callRpcMethod("ForceDiscovery", request);
+        return callRpcMethodAsync("ForceDiscovery", request);
     }
 
 
@@ -213,7 +554,17 @@ public class OlaClient {
      * @return
      */
     public DmxData getDmx(int universe) {
-        return (DmxData) callRpcMethod("GetDmx", UniverseRequest.newBuilder().setUniverse(universe).build());
+        return getResult(getDmxAsync(universe));
+    }
+
+
+    /**
+     * Asynchronously retrieve dmx data from universe.
+     * @param universe the id of the universe
+     * @return future dmx data
+     */
+    public CompletableFuture<DmxData> getDmxAsync(int universe) {
+        return callRpcMethodAsync("GetDmx", UniverseRequest.newBuilder().setUniverse(universe).build());
     }
 
 
@@ -228,6 +579,20 @@ public class OlaClient {
      * @return true when succeeded.
      */
     public boolean patchPort(int device, int port, PatchAction action, int universe) {
+        return getResult(patchPortAsync(device, port, action, universe)) != null;
+    }
+
+
+    /**
+     * Asynchronously patch a port.
+     *
+     * @param device number
+     * @param port number
+     * @param action PachAction.PATCH or PatchAction.UNPATCH
+     * @param universe number
+     * @return future which completes when the port is patched.
+     */
+    public CompletableFuture<Ack> patchPortAsync(int device, int port, PatchAction action, int universe) {
 
         PatchPortRequest patchRequest = PatchPortRequest.newBuilder()
                 .setPortId(port)
@@ -237,7 +602,7 @@ public class OlaClient {
                 .setIsOutput(true)
                 .build();
 
-        return callRpcMethod("PatchPort", patchRequest) != null;
+        return callRpcMethodAsync("PatchPort", patchRequest);
     }
 
 
@@ -249,13 +614,105 @@ public class OlaClient {
      * @return true when succeeded.
      */
     public boolean sendDmx(int universe, short[] values) {
+        return getResult(sendDmxAsync(universe, values)) != null;
+    }
+
+
+    /**
+     * Asynchronously send dmx data to olad.
+     *
+     * @param universe number
+     * @param values array of dmx data values
+     * @return future which completes when olad has accepted the data.
+     */
+    public CompletableFuture<Ack> sendDmxAsync(int universe, short[] values) {
+        return sendDmxAsync(universe, values, DmxFrame.NO_PRIORITY);
+    }
+
+
+    /**
+     * Send dmx data to olad with a source priority.
+     *
+     * @param universe number
+     * @param values array of dmx data values
+     * @param priority DmxFrame.MIN_PRIORITY - DmxFrame.MAX_PRIORITY
+     * @return true when succeeded.
+     */
+    public boolean sendDmx(int universe, short[] values, int priority) {
+        return getResult(sendDmxAsync(universe, values, priority)) != null;
+    }
+
+
+    /**
+     * Asynchronously send dmx data to olad with a source priority.
+     *
+     * @param universe number
+     * @param values array of dmx data values
+     * @param priority DmxFrame.MIN_PRIORITY - DmxFrame.MAX_PRIORITY, or
+     *        DmxFrame.NO_PRIORITY
+     * @return future which completes when olad has accepted the data.
+     */
+    public CompletableFuture<Ack> sendDmxAsync(int universe, short[] values, int priority) {
+        DmxFrame frame = scratchFrame.get();
+        frame.setUniverse(universe);
+        frame.setData(values);
+        frame.setPriority(priority);
+        return sendDmxAsync(frame);
+    }
 
-        DmxData dmxData = DmxData.newBuilder()
-                .setUniverse(universe)
-                .setData(convertToUnsigned(values))
-                .build();
 
-        return callRpcMethod("UpdateDmxData", dmxData) != null;
+    /**
+     * Send dmx data to olad.
+     *
+     * @param universe number
+     * @param values dmx data values
+     * @return true when succeeded.
+     */
+    public boolean sendDmx(int universe, byte[] values) {
+        DmxFrame frame = scratchFrame.get();
+        frame.setUniverse(universe);
+        frame.setData(values, 0, values.length);
+        frame.setPriority(DmxFrame.NO_PRIORITY);
+        return sendDmx(frame);
+    }
+
+
+    /**
+     * Send a frame of dmx data to olad.
+     *
+     * @param frame the frame to send, may be reused once this returns.
+     * @return true when succeeded.
+     */
+    public boolean sendDmx(DmxFrame frame) {
+        return getResult(sendDmxAsync(frame)) != null;
+    }
+
+
+    /**
+     * Asynchronously send a frame of dmx data to olad.
+     *
+     * @param frame the frame to send, may be reused once this returns.
+     * @return future which completes when olad has accepted the data.
+     */
+    public CompletableFuture<Ack> sendDmxAsync(DmxFrame frame) {
+        final DmxFrameCache cache = frameCache;
+        if (cache == null) {
+            return callRpcMethodAsync(updateDmxMethod, frame);
+        }
+        if (!cache.update(frame)) {
+            return CompletableFuture.completedFuture(Ack.getDefaultInstance());
+        }
+
+        final int universe = frame.getUniverse();
+        CompletableFuture<Ack> future = callRpcMethodAsync(updateDmxMethod, frame);
+        future.whenComplete(new BiConsumer<Ack, Throwable>() {
+            public void accept(Ack ack, Throwable error) {
+                if (error != null) {
+                    cache.invalidate(universe);
+                }
+            }
+        });
+        return future;
     }
 
 
@@ -265,6 +722,16 @@ public class OlaClient {
      * @return true if request succeeded.
      */
     public boolean setPortPriority(int device, int port, int priority, int mode, boolean output) {
+        return getResult(setPortPriorityAsync(device, port, priority, mode, output)) != null;
+    }
+
+
+    /**
+     * Asynchronously set port priority.
+     *
+     * @return future which completes when the priority is set.
+     */
+    public CompletableFuture<Ack> setPortPriorityAsync(int device, int port, int priority, int mode, boolean output) {
         PortPriorityRequest request = PortPriorityRequest.newBuilder()
             .setDeviceAlias(device)
             .setPortId(port)
@@ -273,7 +740,7 @@ public class OlaClient {
             .setIsOutput(output)
             .build();
 
-        return callRpcMethod("SetPortPriority", request) != null;
+        return callRpcMethodAsync("SetPortPriority", request);
     }
 
 
@@ -285,11 +752,23 @@ public class OlaClient {
      * @return true if the call succeeded.
      */
     public boolean setUniverseName(int universe, String name) {
+        return getResult(setUniverseNameAsync(universe, name)) != null;
+    }
+
+
+    /**
+     * Asynchronously set universe name.
+     *
+     * @param universe id of universe for which to set the name.
+     * @param name The name to set.
+     * @return future which completes when the name is set.
+     */
+    public CompletableFuture<Ack> setUniverseNameAsync(int universe, String name) {
         UniverseNameRequest request = UniverseNameRequest.newBuilder()
                 .setUniverse(universe)
                 .setName(name)
                 .build();
-        return callRpcMethod("SetUniverseName", request) != null;
+        return callRpcMethodAsync("SetUniverseName", request);
     }
 
 
@@ -301,11 +780,23 @@ public class OlaClient {
      * @return true if call succeeded.
      */
     public boolean setMergeMode(int universe, MergeMode mode) {
+        return getResult(setMergeModeAsync(universe, mode)) != null;
+    }
+
+
+    /**
+     * Asynchronously define merge mode for a universe.
+     *
+     * @param universe The id of the universe
+     * @param mode, merge mode to use
+     * @return future which completes when the merge mode is set.
+     */
+    public CompletableFuture<Ack> setMergeModeAsync(int universe, MergeMode mode) {
         MergeModeRequest request = MergeModeRequest.newBuilder()
                 .setUniverse(universe)
                 .setMergeMode(mode)
                 .build();
-        return callRpcMethod("SetMergeMode", request) != null;
+        return callRpcMethodAsync("SetMergeMode", request);
     }
 
 
@@ -316,11 +807,87 @@ public class OlaClient {
      * @return true if call succeeded.
      */
     public boolean registerForDmx(int universe, RegisterAction action) {
+        return getResult(registerForDmxAsync(universe, action)) != null;
+    }
+
+
+    /**
+     * Asynchronously register for dmx
+     * @param universe
+     * @param action RegisterAction
+     * @return future which completes when the registration is done.
+     */
+    public CompletableFuture<Ack> registerForDmxAsync(int universe, RegisterAction action) {
         RegisterDmxRequest request = RegisterDmxRequest.newBuilder()
                 .setUniverse(universe)
                 .setAction(action)
                 .build();
-        return callRpcMethod("RegisterForDmx", request) != null;
+        return callRpcMethodAsync("RegisterForDmx", request);
+    }
+
+
+    /**
+     * Register a listener for dmx data sent by olad.
+     *
+     * The client registers with olad when the first listener for a universe
+     * is added.
+     *
+     * @param universe the id of the universe
+     * @param listener called each time new data arrives
+     * @return true if call succeeded.
+     */
+    public boolean registerForDmx(int universe, DmxListener listener) {
+        UniverseListeners listeners = dmxListeners.get(universe);
+        if (listeners == null) {
+            UniverseListeners newListeners = new UniverseListeners();
+            listeners = dmxListeners.putIfAbsent(universe, newListeners);
+            if (listeners == null) {
+                listeners = newListeners;
+            }
+        }
+        // olad sees the register and unregister calls in the same order as
+        // the listeners change.
+        listeners.lock.lock();
+        try {
+            listeners.list.add(listener);
+            if (listeners.list.size() == 1 && !registerForDmx(universe, RegisterAction.REGISTER)) {
+                listeners.list.remove(listener);
+                return false;
+            }
+        } finally {
+            listeners.lock.unlock();
+        }
+        return true;
+    }
+
+
+    /**
+     * Remove a listener added with registerForDmx(int, DmxListener).
+     *
+     * The client unregisters with olad when the last listener for a universe
+     * is removed.
+     *
+     * @param universe the id of the universe
+     * @param listener the listener to remove
+     * @return true if call succeeded.
+     */
+    public boolean unregisterForDmx(int universe, DmxListener listener) {
+        UniverseListeners listeners = dmxListeners.get(universe);
+        if (listeners == null) {
+            return false;
+        }
+        listeners.lock.lock();
+        try {
+            if (!listeners.list.remove(listener)) {
+                return false;
+            }
+            if (listeners.list.isEmpty()) {
+                return registerForDmx(universe, RegisterAction.UNREGISTER);
+            }
+        } finally {
+            listeners.lock.unlock();
+        }
+        return true;
     }
 
 
@@ -331,11 +898,22 @@ public class OlaClient {
      * @return true if call succeeded.
      */
     public boolean setSourceUID(int device, int estaId) {
+        return getResult(setSourceUIDAsync(device, estaId)) != null;
+    }
+
+
+    /**
+     * Asynchronously set source UID for device.
+     * @param device The id of the device
+     * @param estaId the UID to set.
+     * @return future which completes when the UID is set.
+     */
+    public CompletableFuture<Ack> setSourceUIDAsync(int device, int estaId) {
         UID request = UID.newBuilder()
                 .setDeviceId(device)
                 .setEstaId(estaId)
                 .build();
-        return callRpcMethod("SetSourceUID", request) != null;
+        return callRpcMethodAsync("SetSourceUID", request);
     }
 
 
@@ -350,6 +928,21 @@ public class OlaClient {
      * @return true if call succeeded.
      */
     public boolean sendTimeCode(TimeCodeType type, int frames, int hours, int minutes, int seconds) {
+        return getResult(sendTimeCodeAsync(type, frames, hours, minutes, seconds)) != null;
+    }
+
+
+    /**
+     * Asynchronously send TimeCode.
+     *
+     * @param type TimeCodeType
+     * @param frames number of frames
+     * @param hours
+     * @param minutes
+     * @param seconds
+     * @return future which completes when olad has accepted the timecode.
+     */
+    public CompletableFuture<Ack> sendTimeCodeAsync(TimeCodeType type, int frames, int hours, int minutes, int seconds) {
         TimeCode request = TimeCode.newBuilder()
                 .setFrames(frames)
                 .setHours(hours)
@@ -357,7 +950,18 @@ public class OlaClient {
                 .setSeconds(seconds)
                 .setType(type)
                 .build();
-        return callRpcMethod("SendTimeCode", request) != null;
+        return sendTimeCodeAsync(request);
+    }
+
+
+    /**
+     * Asynchronously send TimeCode.
+     *
+     * @param timeCode the timecode, see TimeCodeGenerator.toTimeCode().
+     * @return future which completes when olad has accepted the timecode.
+     */
+    public CompletableFuture<Ack> sendTimeCodeAsync(TimeCode timeCode) {
+        return callRpcMethodAsync("SendTimeCode", timeCode);
     }
 
 
@@ -374,6 +978,23 @@ public class OlaClient {
      * @return RDMResponse
      */
     public RDMResponse sendRDMCommand(UID uid, int subDevice, int paramId, boolean isSet, boolean includeRawResponse, int universe, short[] data) {
+        return getResult(sendRDMCommandAsync(uid, subDevice, paramId, isSet, includeRawResponse, universe, data));
+    }
+
+
+    /**
+     * Asynchronously send RDM Command.
+     *
+     * @param uid
+     * @param subDevice
+     * @param paramId
+     * @param isSet
+     * @param includeRawResponse
+     * @param universe
+     * @param data
+     * @return future RDMResponse
+     */
+    public CompletableFuture<RDMResponse> sendRDMCommandAsync(UID uid, int subDevice, int paramId, boolean isSet, boolean includeRawResponse, int universe, short[] data) {
         RDMRequest request = RDMRequest.newBuilder()
                 .setUid(uid)
                 .setSubDevice(subDevice)
@@ -383,7 +1004,19 @@ public class OlaClient {
                 .setUniverse(universe)
                 .setData(convertToUnsigned(data))
                 .build();
-        return (RDMResponse) callRpcMethod("RDMCommand", request);
+        return sendRDMCommandAsync(request);
+    }
+
+
+    /**
+     * Asynchronously send an RDM request which has already been built. To
+     * send many requests see RdmPipeline.
+     *
+     * @param request the request
+     * @return future RDMResponse
+     */
+    public CompletableFuture<RDMResponse> sendRDMCommandAsync(RDMRequest request) {
+        return callRpcMethodAsync("RDMCommand", request);
     }
 
 
@@ -392,15 +1025,180 @@ public class OlaClient {
      *
      * @param universe the id of the universe
      * @param values dmx data
+     * @return false if the frame was dropped because the connection is
+     *         down or backed up.
      */
-    public void streamDmx(int universe, short[] values) {
+    public boolean streamDmx(int universe, short[] values) {
+        DmxFrame frame = scratchFrame.get();
+        frame.setUniverse(universe);
+        frame.setData(values);
+        frame.setPriority(DmxFrame.NO_PRIORITY);
+        return streamDmx(frame);
+    }
 
-        DmxData dmxData = DmxData.newBuilder()
-                .setUniverse(universe)
-                .setData(convertToUnsigned(values))
-                .build();
 
-        callRpcMethod("StreamDmxData", dmxData);
+    /**
+     * Send dmx data, but don't wait for response.
+     *
+     * @param universe the id of the universe
+     * @param values dmx data
+     * @return false if the frame was dropped because the connection is
+     *         down or backed up.
+     */
+    public boolean streamDmx(int universe, byte[] values) {
+        return streamDmx(universe, values, DmxFrame.NO_PRIORITY);
+    }
+
+
+    /**
+     * Send dmx data with a source priority, but don't wait for response.
+     *
+     * @param universe the id of the universe
+     * @param values dmx data
+     * @param priority DmxFrame.MIN_PRIORITY - DmxFrame.MAX_PRIORITY, or
+     *        DmxFrame.NO_PRIORITY
+     * @return false if the frame was dropped because the connection is
+     *         down or backed up.
+     */
+    public boolean streamDmx(int universe, byte[] values, int priority) {
+        DmxFrame frame = scratchFrame.get();
+        frame.setUniverse(universe);
+        frame.setData(values, 0, values.length);
+        frame.setPriority(priority);
+        return streamDmx(frame);
+    }
+
+
+    /**
+     * Send dmx data, but don't wait for response.
+     *
+     * @param universe the id of the universe
+     * @param values dmx data, from the position to the limit of the buffer.
+     * @return false if the frame was dropped because the connection is
+     *         down or backed up.
+     */
+    public boolean streamDmx(int universe, ByteBuffer values) {
+        DmxFrame frame = scratchFrame.get();
+        frame.setUniverse(universe);
+        frame.setData(values);
+        frame.setPriority(DmxFrame.NO_PRIORITY);
+        return streamDmx(frame);
+    }
+
+
+    /**
+     * Send the values of a universe held in a UniverseStore, but don't wait
+     * for response. The values are copied straight from the store into the
+     * channel's write buffer.
+     *
+     * @param store the store
+     * @param universe the id of the universe, nothing is sent if it isn't
+     *        in the store.
+     * @return false if the universe isn't in the store or the frame was
+     *         dropped.
+     */
+    public boolean streamDmx(UniverseStore store, int universe) {
+        DmxFrame frame = scratchFrame.get();
+        if (!store.copyTo(universe, frame)) {
+            return false;
+        }
+        frame.setPriority(DmxFrame.NO_PRIORITY);
+        return streamDmx(frame);
+    }
+
+
+    /**
+     * Send a frame of dmx data, but don't wait for response.
+     *
+     * The frame is encoded straight into the channel's write buffer, so no
+     * garbage is created for each frame.
+     *
+     * @param frame the frame to send, may be reused once this returns.
+     * @return false if the frame was dropped because the connection is
+     *         down or backed up.
+     */
+    public boolean streamDmx(DmxFrame frame) {
+        DmxFrameCache cache = frameCache;
+        if (cache != null && !cache.update(frame)) {
+            return true;
+        }
+        SimpleRpcController controller = streamController.get();
+        controller.reset();
+        channel.callMethod(streamDmxMethod, controller, frame,
+                STREAMING_NO_RESPONSE.getDefaultInstance(), null);
+        if (controller.failed()) {
+            if (cache != null) {
+                cache.invalidate(frame.getUniverse());
+            }
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Dropped frame for universe " + frame.getUniverse() + ": "
+                        + controller.errorText());
+            }
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Send dmx data for many universes, but don't wait for response.
+     *
+     * The frames are encoded back to back and sent with a single write.
+     *
+     * @param frames dmx data keyed by universe id
+     * @return false if the frames were dropped because the connection is
+     *         down or backed up.
+     */
+    public boolean streamDmxBatch(Map<Integer, byte[]> frames) {
+        DmxFrameCache cache = frameCache;
+        AbstractRpcChannel.Batch batch = channel.beginBatch();
+        DmxFrame frame = scratchFrame.get();
+        for (Map.Entry<Integer, byte[]> entry : frames.entrySet()) {
+            frame.setUniverse(entry.getKey());
+            frame.setData(entry.getValue(), 0, entry.getValue().length);
+            frame.setPriority(DmxFrame.NO_PRIORITY);
+            if (cache == null || cache.update(frame)) {
+                batch.add(streamDmxMethod, frame);
+            }
+        }
+        if (batch.commit()) {
+            return true;
+        }
+        if (cache != null) {
+            for (Integer universe : frames.keySet()) {
+                cache.invalidate(universe);
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Send many frames of dmx data, but don't wait for response.
+     *
+     * The frames are encoded back to back and sent with a single write.
+     *
+     * @param frames the frames to send, may be reused once this returns.
+     * @return false if the frames were dropped because the connection is
+     *         down or backed up.
+     */
+    public boolean streamDmxBatch(Collection<DmxFrame> frames) {
+        DmxFrameCache cache = frameCache;
+        AbstractRpcChannel.Batch batch = channel.beginBatch();
+        for (DmxFrame frame : frames) {
+            if (cache == null || cache.update(frame)) {
+                batch.add(streamDmxMethod, frame);
+            }
+        }
+        if (batch.commit()) {
+            return true;
+        }
+        if (cache != null) {
+            for (DmxFrame frame : frames) {
+                cache.invalidate(frame.getUniverse());
+            }
+        }
+        return false;
     }
 
 
@@ -427,4 +1225,130 @@ public class OlaClient {
         }
         return signed;
     }
+
+
+    /**
+     * Handles requests sent by olad.
+     */
+    private class ClientService implements OlaClientService.Interface {
+
+        public void updateDmxData(RpcController rpcController, DmxData request, RpcCallback<Ack> done) {
+            UniverseListeners listeners = dmxListeners.get(request.getUniverse());
+            if (listeners != null) {
+                for (DmxListener listener : listeners.list) {
+                    try {
+                        listener.dmxReceived(request.getUniverse(), request.getData());
+                    } catch (RuntimeException e) {
+                        logger.warning("DmxListener failed: " + e.getMessage());
+                    }
+                }
+            }
+            done.run(Ack.getDefaultInstance());
+        }
+    }
+
+
+    /**
+     * Restores what olad needs to know about this client after the channel
+     * reconnects.
+     */
+    private class Reconnector implements ConnectionListener {
+
+        public void connectionLost(AbstractRpcChannel lostChannel, String reason) {
+            // the channel logs it, nothing to do until it reconnects
+        }
+
+        public void connectionRestored(AbstractRpcChannel restoredChannel) {
+            MetadataCache metadata = metadataCache;
+            if (metadata != null) {
+                metadata.clear();
+            }
+
+            for (Map.Entry<Integer, UniverseListeners> entry : dmxListeners.entrySet()) {
+                final int universe = entry.getKey();
+                UniverseListeners listeners = entry.getValue();
+                listeners.lock.lock();
+                try {
+                    if (listeners.list.isEmpty()) {
+                        continue;
+                    }
+                    registerForDmxAsync(universe, RegisterAction.REGISTER).whenComplete(new BiConsumer<Ack, Throwable>() {
+                        public void accept(Ack ack, Throwable error) {
+                            if (error != null) {
+                                logger.warning("Unable to register for universe " + universe + ": " + error.getMessage());
+                            }
+                        }
+                    });
+                } finally {
+                    listeners.lock.unlock();
+                }
+            }
+
+            DmxFrameCache cache = frameCache;
+            if (cache != null) {
+                AbstractRpcChannel.Batch batch = channel.beginBatch();
+                for (DmxFrame frame : cache.getFrames()) {
+                    batch.add(streamDmxMethod, frame);
+                }
+                if (!batch.commit()) {
+                    cache.clear();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The listeners for one universe.
+     */
+    private static class UniverseListeners {
+
+        final List<DmxListener> list = new CopyOnWriteArrayList<DmxListener>();
+
+        /* held while the list changes and olad is told about it. A lock
+         * rather than synchronized, so a virtual thread waiting for the
+         * call doesn't pin its carrier thread. */
+        final ReentrantLock lock = new ReentrantLock();
+    }
+
+
+    /**
+     * Completes a future with the result of an Rpc call.
+     */
+    private static class FutureCallback<T extends Message> implements RpcCallback<Message> {
+
+        private final SimpleRpcController controller = new SimpleRpcController();
+
+        private final CompletableFuture<T> future = new CallFuture<T>(controller);
+
+        @SuppressWarnings("unchecked")
+        public void run(Message arg0) {
+            if (controller.failed() || arg0 == null) {
+                future.completeExceptionally(new RpcException(controller.errorText()));
+            } else {
+                future.complete((T) arg0);
+            }
+        }
+    }
+
+
+    /**
+     * The future returned for a call. Cancelling it cancels the call.
+     */
+    private static class CallFuture<T> extends CompletableFuture<T> {
+
+        private final SimpleRpcController controller;
+
+        CallFuture(SimpleRpcController controller) {
+            this.controller = controller;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                controller.startCancel();
+            }
+            return cancelled;
+        }
+    }
 }
@@ -0,0 +1,156 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+
+package ola;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import ola.rpc.AbstractRpcChannel;
+import ola.rpc.NioRpcChannel;
+import ola.rpc.RpcEventLoop;
+import ola.rpc.StreamRpcChannel;
+
+/**
+ * A fixed set of persistent connections to one olad.
+ *
+ * Each connection already pipelines requests, but independent callers
+ * which stream a lot of data share the write queue of a connection. The
+ * pool spreads callers over several connections in turn.
+ *
+ * Frames sent on different connections can overtake each other, so
+ * anything sent for a universe should use the connection returned by
+ * get(int), which is always the same one for that universe.
+ */
+public class OlaClientPool {
+
+    private static Logger logger = Logger.getLogger(OlaClientPool.class.getName());
+
+    private final InetSocketAddress endpoint;
+
+    private final OlaClient[] clients;
+
+    private final AtomicInteger next = new AtomicInteger(0);
+
+
+    /**
+     * Open a pool of blocking socket connections.
+     *
+     * @param endpoint the olad to connect to
+     * @param size number of connections
+     */
+    public OlaClientPool(InetSocketAddress endpoint, int size) throws Exception {
+        this(endpoint, size, null);
+    }
+
+
+    /**
+     * Open a pool of connections.
+     *
+     * @param endpoint the olad to connect to
+     * @param size number of connections
+     * @param loop if not null, the connections are NioRpcChannels driven by
+     *        this event loop
+     */
+    public OlaClientPool(InetSocketAddress endpoint, int size, RpcEventLoop loop) throws Exception {
+        if (size < 1) {
+            throw new IllegalArgumentException("Invalid pool size " + size);
+        }
+        this.endpoint = endpoint;
+        this.clients = new OlaClient[size];
+        try {
+            for (int i = 0; i < size; i++) {
+                AbstractRpcChannel channel;
+                if (loop == null) {
+                    channel = new StreamRpcChannel(endpoint.getHostString(), endpoint.getPort());
+                } else {
+                    channel = new NioRpcChannel(loop, endpoint.getHostString(), endpoint.getPort());
+                }
+                clients[i] = new OlaClient(channel);
+            }
+        } catch (Exception e) {
+            logger.severe("Error opening pool for " + endpoint + ": " + e.getMessage());
+            close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * @return the olad this pool connects to.
+     */
+    public InetSocketAddress getEndpoint() {
+        return endpoint;
+    }
+
+
+    /**
+     * @return the number of connections in the pool.
+     */
+    public int size() {
+        return clients.length;
+    }
+
+
+    /**
+     * @return the next connected client, in round robin order.
+     * @throws IllegalStateException if no client is connected.
+     */
+    public OlaClient get() {
+        for (int i = 0; i < clients.length; i++) {
+            OlaClient client = clients[(next.getAndIncrement() & Integer.MAX_VALUE) % clients.length];
+            if (client.isConnected()) {
+                return client;
+            }
+        }
+        throw new IllegalStateException("No connection to " + endpoint);
+    }
+
+
+    /**
+     * Get the client for a universe. A universe always maps to the same
+     * client, even while it is reconnecting, so frames for the universe are
+     * never reordered.
+     *
+     * @param universe the id of the universe
+     * @return the universe's client
+     */
+    public OlaClient get(int universe) {
+        return clients[(mix(universe) & Integer.MAX_VALUE) % clients.length];
+    }
+
+
+    /**
+     * Spread consecutive universe ids over the connections.
+     */
+    static int mix(int universe) {
+        int h = universe * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+
+    /**
+     * Close all connections.
+     */
+    public void close() {
+        for (OlaClient client : clients) {
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+
+package ola;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+import ola.proto.Ola.Ack;
+import ola.proto.Ola.DmxData;
+import ola.proto.Ola.UniverseInfo;
+import ola.proto.Ola.UniverseInfoReply;
+import ola.rpc.RpcEventLoop;
+
+/**
+ * Client for a set of olad instances, each of which owns some universes.
+ *
+ * Calls for a universe are routed to the olad which owns it, using a pool
+ * of connections per olad. Universes are assigned explicitly with
+ * assignUniverse() or learnt from the daemons with refreshRoutes().
+ */
+public class OlaClusterClient {
+
+    private static Logger logger = Logger.getLogger(OlaClusterClient.class.getName());
+
+    private final Map<InetSocketAddress, OlaClientPool> pools = new LinkedHashMap<InetSocketAddress, OlaClientPool>();
+
+    private final ConcurrentMap<Integer, OlaClientPool> routes = new ConcurrentHashMap<Integer, OlaClientPool>();
+
+
+    /**
+     * Connect to each olad using blocking socket connections.
+     *
+     * @param endpoints the olad instances
+     * @param connectionsPerEndpoint pool size for each olad
+     */
+    public OlaClusterClient(List<InetSocketAddress> endpoints, int connectionsPerEndpoint) throws Exception {
+        this(endpoints, connectionsPerEndpoint, null);
+    }
+
+
+    /**
+     * Connect to each olad.
+     *
+     * @param endpoints the olad instances
+     * @param connectionsPerEndpoint pool size for each olad
+     * @param loop if not null, all connections are NioRpcChannels driven by
+     *        this event loop
+     */
+    public OlaClusterClient(List<InetSocketAddress> endpoints, int connectionsPerEndpoint,
+            RpcEventLoop loop) throws Exception {
+        try {
+            for (InetSocketAddress endpoint : endpoints) {
+                if (!pools.containsKey(endpoint)) {
+                    pools.put(endpoint, new OlaClientPool(endpoint, connectionsPerEndpoint, loop));
+                }
+            }
+        } catch (Exception e) {
+            close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * @return the olad instances this client connects to.
+     */
+    public List<InetSocketAddress> getEndpoints() {
+        return Collections.unmodifiableList(new ArrayList<InetSocketAddress>(pools.keySet()));
+    }
+
+
+    /**
+     * Route a universe to an olad.
+     *
+     * @param universe the id of the universe
+     * @param endpoint one of the olad instances passed to the constructor
+     */
+    public void assignUniverse(int universe, InetSocketAddress endpoint) {
+        OlaClientPool pool = pools.get(endpoint);
+        if (pool == null) {
+            throw new IllegalArgumentException("Unknown endpoint " + endpoint);
+        }
+        routes.put(universe, pool);
+    }
+
+
+    /**
+     * @return the olad which owns a universe, or null if it isn't routed.
+     */
+    public InetSocketAddress getOwner(int universe) {
+        OlaClientPool pool = routes.get(universe);
+        return pool == null ? null : pool.getEndpoint();
+    }
+
+
+    /**
+     * Ask every olad for its universes and route each one to its olad.
+     * If more than one olad has a universe, the first endpoint wins.
+     *
+     * @return future which completes once all daemons have replied. It
+     *         completes exceptionally if any daemon failed to reply, after
+     *         the routes from the others have been applied.
+     */
+    public CompletableFuture<Void> refreshRoutes() {
+        List<CompletableFuture<UniverseInfoReply>> replies = new ArrayList<CompletableFuture<UniverseInfoReply>>();
+        final List<OlaClientPool> order = new ArrayList<OlaClientPool>(pools.values());
+        for (OlaClientPool pool : order) {
+            try {
+                replies.add(pool.get().getUniverseInfoAsync());
+            } catch (IllegalStateException e) {
+                CompletableFuture<UniverseInfoReply> failed = new CompletableFuture<UniverseInfoReply>();
+                failed.completeExceptionally(e);
+                replies.add(failed);
+            }
+        }
+
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+        final List<CompletableFuture<UniverseInfoReply>> pending = replies;
+        CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[replies.size()]))
+                .whenComplete(new BiConsumer<Void, Throwable>() {
+                    public void accept(Void result, Throwable error) {
+                        Map<Integer, OlaClientPool> learnt = new LinkedHashMap<Integer, OlaClientPool>();
+                        for (int i = order.size() - 1; i >= 0; i--) {
+                            UniverseInfoReply reply = pending.get(i).getNow(null);
+                            if (reply == null) {
+                                logger.warning("No universe list from " + order.get(i).getEndpoint());
+                                continue;
+                            }
+                            for (UniverseInfo info : reply.getUniverseList()) {
+                                learnt.put(info.getUniverse(), order.get(i));
+                            }
+                        }
+                        routes.putAll(learnt);
+                        if (error == null) {
+                            done.complete(null);
+                        } else {
+                            done.completeExceptionally(error);
+                        }
+                    }
+                });
+        return done;
+    }
+
+
+    /**
+     * @return the client for a universe on the olad which owns it. All
+     *         calls for the universe use the same connection, so they are
+     *         handled in order.
+     * @throws IllegalArgumentException if the universe isn't routed.
+     */
+    public OlaClient getClient(int universe) {
+        OlaClientPool pool = routes.get(universe);
+        if (pool == null) {
+            throw new IllegalArgumentException("No olad owns universe " + universe);
+        }
+        return pool.get(universe);
+    }
+
+
+    /**
+     * @return a client connected to an olad.
+     * @throws IllegalStateException if no connection to the olad is up.
+     */
+    public OlaClient getClient(InetSocketAddress endpoint) {
+        OlaClientPool pool = pools.get(endpoint);
+        if (pool == null) {
+            throw new IllegalArgumentException("Unknown endpoint " + endpoint);
+        }
+        return pool.get();
+    }
+
+
+    /**
+     * Send dmx data to the olad which owns the universe.
+     *
+     * @see OlaClient#sendDmxAsync(DmxFrame)
+     */
+    public CompletableFuture<Ack> sendDmxAsync(DmxFrame frame) {
+        return getClient(frame.getUniverse()).sendDmxAsync(frame);
+    }
+
+
+    /**
+     * Stream dmx data to the olad which owns the universe.
+     *
+     * @see OlaClient#streamDmx(DmxFrame)
+     */
+    public boolean streamDmx(DmxFrame frame) {
+        return getClient(frame.getUniverse()).streamDmx(frame);
+    }
+
+
+    /**
+     * Get dmx data from the olad which owns the universe.
+     *
+     * @see OlaClient#getDmxAsync(int)
+     */
+    public CompletableFuture<DmxData> getDmxAsync(int universe) {
+        return getClient(universe).getDmxAsync(universe);
+    }
+
+
+    /**
+     * Close all connections.
+     */
+    public void close() {
+        for (OlaClientPool pool : pools.values()) {
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola;
+
+import ola.proto.Ola.RDMRequest;
+import ola.proto.Ola.RDMResponse;
+
+/**
+ * Receives the results of requests sent with an RdmPipeline as they
+ * complete, which may not be the order they were sent in.
+ */
+public interface RdmListener {
+
+    /**
+     * Called when olad replies to a request. The response may be a NACK or
+     * report an error such as RDM_TIMEOUT in its response code. If the
+     * responder replied with ACK_TIMER this is the queued response which
+     * followed. Called on the channel's reader thread or the pipeline's
+     * timer thread, so implementations must not block.
+     *
+     * @param request the request
+     * @param response olad's response
+     */
+    void responseReceived(RDMRequest request, RDMResponse response);
+
+
+    /**
+     * Called when a request fails without a response, for example because
+     * the connection to olad was lost.
+     *
+     * @param request the request
+     * @param reason why the request failed
+     */
+    void requestFailed(RDMRequest request, String reason);
+}
@@ -0,0 +1,527 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ola.proto.Ola.RDMCommandClass;
+import ola.proto.Ola.RDMRequest;
+import ola.proto.Ola.RDMResponse;
+import ola.proto.Ola.RDMResponseCode;
+import ola.proto.Ola.RDMResponseType;
+import ola.proto.Ola.UID;
+import ola.rpc.RpcTimer;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Sends many RDM requests to olad with several in flight at once.
+ *
+ * sendRDMCommand() waits for each response before the next request can be
+ * sent, so fetching a few parameters from hundreds of fixtures is bound by
+ * the round trip time. A pipeline keeps up to a window of requests
+ * outstanding, sending the next as soon as one completes, and reports
+ * each result as it arrives. The window stops olad and the RDM ports
+ * being flooded.
+ *
+ * A responder which can't answer straight away replies with ACK_TIMER and
+ * an estimate of when the response will be ready. The pipeline then waits
+ * that long and fetches the response with GET QUEUED_MESSAGE, retrying
+ * until the queued response arrives. A responder has one queue, so one
+ * fetch loop runs per responder and each queued response goes to the
+ * request waiting for its parameter and command class. Queued responses
+ * which no request is waiting for are skipped.
+ */
+public class RdmPipeline {
+
+    private static Logger logger = Logger.getLogger(RdmPipeline.class.getName());
+
+    public static final int DEFAULT_WINDOW = 16;
+
+    /* E1.20 parameter ids */
+    static final int QUEUED_MESSAGE = 0x0020;
+
+    static final int STATUS_MESSAGES = 0x0030;
+
+    /* E1.20 status type, requests queued messages of any severity */
+    static final int STATUS_ADVISORY = 0x02;
+
+    /* the unit of the ACK_TIMER estimate */
+    private static final long ACK_TIMER_UNIT_MILLIS = 100;
+
+    /* how long to wait before asking again when nothing was queued */
+    private static final long RETRY_DELAY_MILLIS = 100;
+
+    private static final int MAX_QUEUED_MESSAGE_FETCHES = 10;
+
+    private final OlaClient client;
+
+    private final int window;
+
+    private final AtomicLong requestsSent = new AtomicLong(0);
+
+    private final AtomicLong ackTimers = new AtomicLong(0);
+
+    private final AtomicLong queuedMessagesFetched = new AtomicLong(0);
+
+    /* requests waiting for a queued response, guarded by itself */
+    private final Map<Responder, QueuedResponses> queues = new HashMap<Responder, QueuedResponses>();
+
+
+    /**
+     * Create a pipeline with the default window.
+     *
+     * @param client the client to send requests with
+     */
+    public RdmPipeline(OlaClient client) {
+        this(client, DEFAULT_WINDOW);
+    }
+
+
+    /**
+     * Create a pipeline.
+     *
+     * @param client the client to send requests with
+     * @param window the most requests to have in flight at once
+     */
+    public RdmPipeline(OlaClient client, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Invalid window " + window);
+        }
+        this.client = client;
+        this.window = window;
+    }
+
+
+    /**
+     * Build a GET request with no parameter data, the common case when
+     * taking an inventory of fixtures.
+     */
+    public static RDMRequest get(int universe, UID uid, int subDevice, int paramId) {
+        return RDMRequest.newBuilder()
+                .setUniverse(universe)
+                .setUid(uid)
+                .setSubDevice(subDevice)
+                .setParamId(paramId)
+                .setIsSet(false)
+                .setData(ByteString.EMPTY)
+                .build();
+    }
+
+
+    /**
+     * @return the most requests in flight at once.
+     */
+    public int getWindow() {
+        return window;
+    }
+
+
+    /**
+     * @return the number of requests sent, including QUEUED_MESSAGE
+     *         fetches.
+     */
+    public long getRequestsSent() {
+        return requestsSent.get();
+    }
+
+
+    /**
+     * @return the number of ACK_TIMER responses received.
+     */
+    public long getAckTimerCount() {
+        return ackTimers.get();
+    }
+
+
+    /**
+     * @return the number of QUEUED_MESSAGE requests sent.
+     */
+    public long getQueuedMessageCount() {
+        return queuedMessagesFetched.get();
+    }
+
+
+    /**
+     * Send requests, blocking until they have all completed. Results are
+     * passed to the listener as they arrive.
+     *
+     * @param requests the requests to send
+     * @param listener receives each result
+     * @throws InterruptedException if interrupted while waiting, requests
+     *         which were already sent still complete.
+     */
+    public void execute(Collection<RDMRequest> requests, RdmListener listener) throws InterruptedException {
+        execute(requests, listener, null);
+    }
+
+
+    /**
+     * Send requests, blocking until they have all completed.
+     *
+     * @param requests the requests to send
+     * @return the response to each request, in the same order, with null
+     *         for requests which failed.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<RDMResponse> execute(List<RDMRequest> requests) throws InterruptedException {
+        AtomicReferenceArray<RDMResponse> responses = new AtomicReferenceArray<RDMResponse>(requests.size());
+        execute(requests, new RdmListener() {
+            public void responseReceived(RDMRequest request, RDMResponse response) {
+            }
+
+            public void requestFailed(RDMRequest request, String reason) {
+                logger.warning("RDM request for pid " + request.getParamId() + " failed: " + reason);
+            }
+        }, responses);
+        List<RDMResponse> result = new ArrayList<RDMResponse>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            result.add(responses.get(i));
+        }
+        return result;
+    }
+
+
+    /**
+     * Send requests with at most window in flight, and wait for them all
+     * to complete.
+     *
+     * @param responses if not null, each response is stored at the index of
+     *        its request.
+     */
+    private void execute(Collection<RDMRequest> requests, final RdmListener listener,
+            final AtomicReferenceArray<RDMResponse> responses) throws InterruptedException {
+        final Semaphore inFlight = new Semaphore(window);
+        final CountDownLatch done = new CountDownLatch(requests.size());
+        int index = 0;
+        for (final RDMRequest request : requests) {
+            final int requestIndex = index++;
+            inFlight.acquire();
+            send(request).whenComplete(new BiConsumer<RDMResponse, Throwable>() {
+                public void accept(RDMResponse response, Throwable error) {
+                    try {
+                        if (error != null) {
+                            listener.requestFailed(request, error.getMessage());
+                        } else {
+                            if (responses != null) {
+                                responses.set(requestIndex, response);
+                            }
+                            listener.responseReceived(request, response);
+                        }
+                    } catch (RuntimeException e) {
+                        logger.warning("RdmListener failed: " + e.getMessage());
+                    } finally {
+                        inFlight.release();
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+    }
+
+
+    /**
+     * Send a single request, following an ACK_TIMER response with
+     * QUEUED_MESSAGE requests until the real response arrives.
+     *
+     * @param request the request
+     * @return future which completes with the final response, or
+     *         exceptionally if a request failed.
+     */
+    public CompletableFuture<RDMResponse> send(RDMRequest request) {
+        CompletableFuture<RDMResponse> result = new CompletableFuture<RDMResponse>();
+        sendRequest(request, new ResponseHandler(request, result));
+        return result;
+    }
+
+
+    private void sendRequest(RDMRequest request, ResponseHandler handler) {
+        requestsSent.incrementAndGet();
+        client.sendRDMCommandAsync(request).whenComplete(handler);
+    }
+
+
+    /**
+     * Wait for the queued response to a request which got ACK_TIMER,
+     * starting the fetch loop for its responder if none is running.
+     */
+    private void waitForQueuedResponse(ResponseHandler handler, long delayMillis) {
+        RDMRequest request = handler.request;
+        Responder responder = new Responder(request.getUniverse(), request.getUid());
+        synchronized (queues) {
+            handler.readyAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            QueuedResponses queue = queues.get(responder);
+            if (queue == null) {
+                queue = new QueuedResponses(responder);
+                queues.put(responder, queue);
+                queue.schedule(delayMillis);
+            } else if (queue.next != null && queue.next.getDelay(TimeUnit.MILLISECONDS) > delayMillis
+                    && queue.next.cancel(false)) {
+                // the loop was waiting for a request which expects its
+                // response later than this one does
+                queue.schedule(delayMillis);
+            }
+            queue.waiting.add(handler);
+        }
+    }
+
+
+    /**
+     * Follows one request through to its final response.
+     */
+    private class ResponseHandler implements BiConsumer<RDMResponse, Throwable> {
+
+        private final RDMRequest request;
+
+        private final CompletableFuture<RDMResponse> result;
+
+        /* when the queued response is expected, guarded by queues */
+        private long readyAt;
+
+        /* QUEUED_MESSAGE requests sent since then, guarded by queues */
+        private int fetches = 0;
+
+
+        ResponseHandler(RDMRequest request, CompletableFuture<RDMResponse> result) {
+            this.request = request;
+            this.result = result;
+        }
+
+
+        public void accept(RDMResponse response, Throwable error) {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else if (response.getResponseCode() == RDMResponseCode.RDM_COMPLETED_OK
+                    && response.getResponseType() == RDMResponseType.RDM_ACK_TIMER) {
+                ackTimers.incrementAndGet();
+                waitForQueuedResponse(this, ackTimerDelay(response));
+            } else {
+                result.complete(response);
+            }
+        }
+
+
+        /**
+         * @return true if a queued response is the answer to this request.
+         */
+        boolean matches(RDMResponse response) {
+            if (response.getParamId() != request.getParamId()) {
+                return false;
+            }
+            if (response.hasSubDevice() && response.getSubDevice() != request.getSubDevice()) {
+                return false;
+            }
+            return !response.hasCommandClass()
+                    || (response.getCommandClass() == RDMCommandClass.RDM_SET_RESPONSE) == request.getIsSet();
+        }
+    }
+
+
+    /**
+     * Fetches the queued responses of one responder and passes each to the
+     * request waiting for it, until no requests are left waiting. Fields
+     * are guarded by queues.
+     */
+    private class QueuedResponses implements BiConsumer<RDMResponse, Throwable> {
+
+        private final Responder responder;
+
+        private final List<ResponseHandler> waiting = new ArrayList<ResponseHandler>();
+
+        /* the next fetch, or null while one is in flight */
+        private ScheduledFuture<?> next;
+
+        private long sentAt;
+
+
+        QueuedResponses(Responder responder) {
+            this.responder = responder;
+        }
+
+
+        /**
+         * Ask the responder for its next queued response after a delay.
+         * This never sends from the reader thread, which must not block
+         * waiting for a write buffer.
+         */
+        void schedule(long delayMillis) {
+            next = RpcTimer.schedule(new Runnable() {
+                public void run() {
+                    send();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+
+        private void send() {
+            boolean includeRawResponse = false;
+            synchronized (queues) {
+                next = null;
+                sentAt = System.nanoTime();
+                for (ResponseHandler handler : waiting) {
+                    includeRawResponse |= handler.request.getIncludeRawResponse();
+                }
+            }
+            RDMRequest fetch = RDMRequest.newBuilder()
+                    .setUniverse(responder.universe)
+                    .setUid(responder.uid)
+                    .setSubDevice(0)
+                    .setParamId(QUEUED_MESSAGE)
+                    .setIsSet(false)
+                    .setData(ByteString.copyFrom(new byte[] {STATUS_ADVISORY}))
+                    .setIncludeRawResponse(includeRawResponse)
+                    .build();
+            queuedMessagesFetched.incrementAndGet();
+            requestsSent.incrementAndGet();
+            client.sendRDMCommandAsync(fetch).whenComplete(this);
+        }
+
+
+        public void accept(RDMResponse response, Throwable error) {
+            List<ResponseHandler> answered = new ArrayList<ResponseHandler>();
+            List<ResponseHandler> failed = new ArrayList<ResponseHandler>();
+            synchronized (queues) {
+                if (error != null) {
+                    failed.addAll(waiting);
+                    waiting.clear();
+                } else if (response.getResponseCode() != RDMResponseCode.RDM_COMPLETED_OK
+                        || (response.getResponseType() == RDMResponseType.RDM_NACK_REASON
+                            && response.getParamId() == QUEUED_MESSAGE)) {
+                    // the responder refused to return a queued message, so
+                    // every waiting request gets the refusal
+                    answered.addAll(waiting);
+                    waiting.clear();
+                } else {
+                    ResponseHandler match = null;
+                    for (ResponseHandler handler : waiting) {
+                        if (handler.matches(response)) {
+                            match = handler;
+                            break;
+                        }
+                    }
+                    if (match != null && response.getResponseType() == RDMResponseType.RDM_ACK_TIMER) {
+                        // still not ready, the responder has a new estimate
+                        ackTimers.incrementAndGet();
+                        match.readyAt = System.nanoTime()
+                                + TimeUnit.MILLISECONDS.toNanos(ackTimerDelay(response));
+                    } else if (match != null) {
+                        waiting.remove(match);
+                        answered.add(match);
+                    } else if (logger.isLoggable(Level.FINE)) {
+                        logger.fine("Skipping queued response for pid " + response.getParamId()
+                                + " which no request is waiting for");
+                    }
+                    for (ResponseHandler handler : waiting) {
+                        if (handler.readyAt - sentAt <= 0 && ++handler.fetches == MAX_QUEUED_MESSAGE_FETCHES) {
+                            failed.add(handler);
+                        }
+                    }
+                    waiting.removeAll(failed);
+                }
+
+                if (waiting.isEmpty()) {
+                    queues.remove(responder);
+                } else {
+                    schedule(nextDelay(response));
+                }
+            }
+
+            for (ResponseHandler handler : answered) {
+                handler.result.complete(response);
+            }
+            for (ResponseHandler handler : failed) {
+                handler.result.completeExceptionally(error != null ? error
+                        : new IllegalStateException("No queued response for pid " + handler.request.getParamId()
+                                + " after " + handler.fetches + " attempts"));
+            }
+        }
+
+
+        /**
+         * @return how long to wait before the next fetch.
+         */
+        private long nextDelay(RDMResponse response) {
+            // nothing queued yet comes back as an empty STATUS_MESSAGES,
+            // give the responder a little longer
+            long delay = response.getParamId() == STATUS_MESSAGES && response.getData().isEmpty()
+                    ? RETRY_DELAY_MILLIS : 0;
+            long readyAt = Long.MAX_VALUE;
+            for (ResponseHandler handler : waiting) {
+                if (readyAt == Long.MAX_VALUE || handler.readyAt - readyAt < 0) {
+                    readyAt = handler.readyAt;
+                }
+            }
+            // no point asking before any request expects its response
+            return Math.max(delay, TimeUnit.NANOSECONDS.toMillis(readyAt - System.nanoTime()));
+        }
+    }
+
+
+    /**
+     * A responder on a universe.
+     */
+    private static class Responder {
+
+        final int universe;
+
+        final UID uid;
+
+        Responder(int universe, UID uid) {
+            this.universe = universe;
+            this.uid = uid;
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Responder)) {
+                return false;
+            }
+            Responder responder = (Responder) other;
+            return universe == responder.universe && uid.equals(responder.uid);
+        }
+
+        public int hashCode() {
+            return 31 * universe + uid.hashCode();
+        }
+    }
+
+
+    /**
+     * @return the wait in milliseconds given by an ACK_TIMER response.
+     */
+    static long ackTimerDelay(RDMResponse response) {
+        ByteString data = response.getData();
+        if (data.size() < 2) {
+            return ACK_TIMER_UNIT_MILLIS;
+        }
+        int units = ((data.byteAt(0) & 0xff) << 8) | (data.byteAt(1) & 0xff);
+        return units * ACK_TIMER_UNIT_MILLIS;
+    }
+}
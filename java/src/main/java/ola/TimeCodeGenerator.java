@@ -0,0 +1,428 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+import ola.proto.Ola.Ack;
+import ola.proto.Ola.TimeCode;
+import ola.proto.Ola.TimeCodeType;
+import ola.rpc.LatencyHistogram;
+
+/**
+ * Sends TimeCode to olad at the frame rate of a TimeCodeType.
+ *
+ * Frame n is due exactly n frame durations after start(), computed from
+ * the rate as a fraction so 29.97fps doesn't accumulate rounding error.
+ * The generator thread parks until shortly before a frame is due and then
+ * spins on System.nanoTime(), so each frame goes out within a few
+ * microseconds of its due time. A late frame doesn't push back the frames
+ * after it. If the generator falls more than a frame behind, for example
+ * after a long GC pause, it skips to the frame which is due now, as a
+ * timecode source should.
+ *
+ * Frames are sent with sendTimeCodeAsync() so a slow response from olad
+ * never holds up the next frame. How late each frame was sent is recorded
+ * in the jitter histogram.
+ *
+ * Drop frame timecode (TIMECODE_DF) counts frames at 29.97fps and skips
+ * frame numbers 0 and 1 at the start of each minute, except every tenth
+ * minute, so the timecode keeps up with the clock.
+ */
+public class TimeCodeGenerator {
+
+    private static Logger logger = Logger.getLogger(TimeCodeGenerator.class.getName());
+
+    /* how long before a frame is due to stop parking and start spinning */
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /* drop frame counts */
+    private static final int DF_FRAMES_PER_MINUTE = 30 * 60 - 2;
+
+    private static final int DF_FRAMES_PER_10_MINUTES = DF_FRAMES_PER_MINUTE * 10 + 2;
+
+    private final OlaClient client;
+
+    private final TimeCodeType type;
+
+    private final LatencyHistogram jitter = new LatencyHistogram();
+
+    private final AtomicLong framesSent = new AtomicLong(0);
+
+    private final AtomicLong framesSkipped = new AtomicLong(0);
+
+    private final AtomicLong sendFailures = new AtomicLong(0);
+
+    private final BiConsumer<Ack, Throwable> sendCallback = new BiConsumer<Ack, Throwable>() {
+        public void accept(Ack ack, Throwable error) {
+            if (error != null) {
+                sendFailures.incrementAndGet();
+            }
+        }
+    };
+
+    /* the next frame to send, counted from 00:00:00:00 */
+    private volatile long position = 0;
+
+    private volatile boolean running = false;
+
+    private Thread thread;
+
+
+    /**
+     * Create a generator, positioned at 00:00:00:00.
+     *
+     * @param client the client to send timecode with
+     * @param type the frame rate and format
+     */
+    public TimeCodeGenerator(OlaClient client, TimeCodeType type) {
+        this.client = client;
+        this.type = type;
+    }
+
+
+    /**
+     * @return the frame rate and format of the timecode.
+     */
+    public TimeCodeType getType() {
+        return type;
+    }
+
+
+    /**
+     * Start sending timecode from the current position. The first frame is
+     * sent straight away.
+     */
+    public synchronized void start() {
+        if (thread != null && thread.isAlive()) {
+            logger.warning("Generator already started.");
+            return;
+        }
+        running = true;
+        final long from = position;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    generate(from);
+                } finally {
+                    running = false;
+                }
+            }
+        }, "ola-timecode");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Stop sending timecode. start() carries on from the next frame.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+
+    /**
+     * Move to a frame. If the generator is running it carries on from the
+     * new position.
+     *
+     * @param frame the number of frames since 00:00:00:00
+     */
+    public synchronized void locate(long frame) {
+        if (frame < 0 || frame >= getFramesPerDay(type)) {
+            throw new IllegalArgumentException("Invalid frame " + frame);
+        }
+        boolean playing = running;
+        stop();
+        position = frame;
+        if (playing) {
+            start();
+        }
+    }
+
+
+    /**
+     * Move to a timecode. If the generator is running it carries on from
+     * the new position.
+     */
+    public void locate(int hours, int minutes, int seconds, int frames) {
+        locate(toFrame(type, hours, minutes, seconds, frames));
+    }
+
+
+    /**
+     * @return true until the generator is stopped.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+
+    /**
+     * @return the number of the next frame to send.
+     */
+    public long getFrame() {
+        return position;
+    }
+
+
+    /**
+     * @return the next timecode to send.
+     */
+    public TimeCode getPosition() {
+        return toTimeCode(type, position);
+    }
+
+
+    /**
+     * @return the number of frames sent.
+     */
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+
+    /**
+     * @return the number of frames skipped because the generator fell
+     *         behind.
+     */
+    public long getFramesSkipped() {
+        return framesSkipped.get();
+    }
+
+
+    /**
+     * @return the number of frames olad didn't accept.
+     */
+    public long getSendFailures() {
+        return sendFailures.get();
+    }
+
+
+    /**
+     * @return how late each frame was sent, in nanoseconds.
+     */
+    public LatencyHistogram getJitter() {
+        return jitter;
+    }
+
+
+    /**
+     * Send frames until stopped. Runs on the generator thread.
+     */
+    private void generate(long from) {
+        long framesPerDay = getFramesPerDay(type);
+        long dayNanos = getDuration(type, framesPerDay);
+        long start = System.nanoTime();
+        long count = 0;
+
+        while (running) {
+            long due = start + getDuration(type, count);
+            if (!waitUntil(due)) {
+                return;
+            }
+            long frame = (from + count) % framesPerDay;
+            CompletableFuture<Ack> reply = client.sendTimeCodeAsync(toTimeCode(type, frame));
+            reply.whenComplete(sendCallback);
+            framesSent.incrementAndGet();
+
+            long now = System.nanoTime();
+            jitter.record(now - due);
+
+            long next = count + 1;
+            long current = getFrameCount(type, now - start);
+            if (current > next) {
+                framesSkipped.addAndGet(current - next);
+                next = current;
+            }
+            position = (from + next) % framesPerDay;
+
+            if (next >= framesPerDay) {
+                // keep the arithmetic well away from overflow
+                start += dayNanos;
+                next -= framesPerDay;
+            }
+            count = next;
+        }
+    }
+
+
+    /**
+     * Park until shortly before the due time, then spin.
+     *
+     * @return false if the generator was stopped while waiting.
+     */
+    private boolean waitUntil(long due) {
+        long remaining;
+        while ((remaining = due - System.nanoTime()) > SPIN_NANOS) {
+            if (!running) {
+                return false;
+            }
+            LockSupport.parkNanos(this, remaining - SPIN_NANOS);
+        }
+        while (due - System.nanoTime() > 0) {
+            if (!running) {
+                return false;
+            }
+        }
+        return running;
+    }
+
+
+    /**
+     * @return the frames per second used to count timecode, 30 for drop
+     *         frame.
+     */
+    public static int getNominalRate(TimeCodeType type) {
+        switch (type) {
+        case TIMECODE_FILM:
+            return 24;
+        case TIMECODE_EBU:
+            return 25;
+        default:
+            return 30;
+        }
+    }
+
+
+    /**
+     * @return the number of frames from 00:00:00:00 to 24:00:00:00.
+     */
+    public static long getFramesPerDay(TimeCodeType type) {
+        if (type == TimeCodeType.TIMECODE_DF) {
+            return 24L * 6 * DF_FRAMES_PER_10_MINUTES;
+        }
+        return 24L * 60 * 60 * getNominalRate(type);
+    }
+
+
+    /**
+     * @return the time taken by a number of frames, in nanoseconds.
+     */
+    static long getDuration(TimeCodeType type, long frames) {
+        if (type == TimeCodeType.TIMECODE_DF) {
+            return frames * NANOS_PER_SECOND * 1001 / 30000;
+        }
+        return frames * NANOS_PER_SECOND / getNominalRate(type);
+    }
+
+
+    /**
+     * @return the number of whole frames in a time in nanoseconds.
+     */
+    static long getFrameCount(TimeCodeType type, long nanos) {
+        if (type == TimeCodeType.TIMECODE_DF) {
+            return nanos * 30 / (NANOS_PER_SECOND / 1000 * 1001);
+        }
+        return nanos * getNominalRate(type) / NANOS_PER_SECOND;
+    }
+
+
+    /**
+     * Convert a frame number to timecode.
+     *
+     * @param type the frame rate and format
+     * @param frame the number of frames since 00:00:00:00
+     * @return the timecode.
+     */
+    public static TimeCode toTimeCode(TimeCodeType type, long frame) {
+        long count = frame % getFramesPerDay(type);
+        if (type == TimeCodeType.TIMECODE_DF) {
+            long tens = count / DF_FRAMES_PER_10_MINUTES;
+            long rest = count % DF_FRAMES_PER_10_MINUTES;
+            count += 18 * tens;
+            if (rest > 1) {
+                count += 2 * ((rest - 2) / DF_FRAMES_PER_MINUTE);
+            }
+        }
+        int rate = getNominalRate(type);
+        return TimeCode.newBuilder()
+                .setHours((int) (count / (rate * 3600)))
+                .setMinutes((int) (count / (rate * 60) % 60))
+                .setSeconds((int) (count / rate % 60))
+                .setFrames((int) (count % rate))
+                .setType(type)
+                .build();
+    }
+
+
+    /**
+     * Convert timecode to a frame number.
+     *
+     * @return the number of frames since 00:00:00:00.
+     * @throws IllegalArgumentException if the timecode isn't valid for the
+     *         type.
+     */
+    public static long toFrame(TimeCodeType type, int hours, int minutes, int seconds, int frames) {
+        int rate = getNominalRate(type);
+        if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59 || seconds < 0 || seconds > 59
+                || frames < 0 || frames >= rate) {
+            throw new IllegalArgumentException("Invalid timecode " + format(hours, minutes, seconds, frames));
+        }
+        long count = ((hours * 60L + minutes) * 60 + seconds) * rate + frames;
+        if (type == TimeCodeType.TIMECODE_DF) {
+            if (seconds == 0 && frames < 2 && minutes % 10 != 0) {
+                throw new IllegalArgumentException("Dropped frame " + format(hours, minutes, seconds, frames));
+            }
+            long totalMinutes = hours * 60L + minutes;
+            count -= 2 * (totalMinutes - totalMinutes / 10);
+        }
+        return count;
+    }
+
+
+    /**
+     * Convert timecode to a frame number.
+     */
+    public static long toFrame(TimeCode timeCode) {
+        return toFrame(timeCode.getType(), timeCode.getHours(), timeCode.getMinutes(),
+                timeCode.getSeconds(), timeCode.getFrames());
+    }
+
+
+    /**
+     * @return the timecode as HH:MM:SS:FF, or HH:MM:SS;FF for drop frame.
+     */
+    public static String toString(TimeCode timeCode) {
+        String text = format(timeCode.getHours(), timeCode.getMinutes(), timeCode.getSeconds(),
+                timeCode.getFrames());
+        if (timeCode.getType() == TimeCodeType.TIMECODE_DF) {
+            return text.substring(0, 8) + ";" + text.substring(9);
+        }
+        return text;
+    }
+
+
+    private static String format(int hours, int minutes, int seconds, int frames) {
+        return String.format("%02d:%02d:%02d:%02d", hours, minutes, seconds, frames);
+    }
+}
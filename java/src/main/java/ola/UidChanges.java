@@ -0,0 +1,78 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola;
+
+import java.util.Collections;
+import java.util.List;
+
+import ola.proto.Ola.UID;
+
+/**
+ * The UIDs which appeared on or disappeared from a universe between two
+ * discoveries.
+ */
+public class UidChanges {
+
+    private final int universe;
+
+    private final List<UID> added;
+
+    private final List<UID> removed;
+
+
+    UidChanges(int universe, List<UID> added, List<UID> removed) {
+        this.universe = universe;
+        this.added = Collections.unmodifiableList(added);
+        this.removed = Collections.unmodifiableList(removed);
+    }
+
+
+    /**
+     * @return the id of the universe.
+     */
+    public int getUniverse() {
+        return universe;
+    }
+
+
+    /**
+     * @return UIDs found which weren't there before.
+     */
+    public List<UID> getAdded() {
+        return added;
+    }
+
+
+    /**
+     * @return UIDs which were there before but weren't found.
+     */
+    public List<UID> getRemoved() {
+        return removed;
+    }
+
+
+    /**
+     * @return true if nothing changed.
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+
+    public String toString() {
+        return "universe " + universe + ": " + added.size() + " added, " + removed.size() + " removed";
+    }
+}
@@ -0,0 +1,170 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ola.proto.Ola.UID;
+
+/**
+ * An index of the RDM devices found on each universe.
+ *
+ * UIDs can be looked up by universe and by manufacturer, and the universe
+ * a UID is on can be found without scanning every universe. Each update
+ * replaces the UIDs of one universe and returns what changed, so callers
+ * only need to act on devices which were added or removed.
+ *
+ * Lookups may run on any thread while an update is in progress; they see
+ * each universe either before or after the update. Updates are serialised.
+ */
+public class UidInventory {
+
+    private final ConcurrentMap<Integer, Set<UID>> universes = new ConcurrentHashMap<Integer, Set<UID>>();
+
+    private final ConcurrentMap<UID, Integer> uidUniverses = new ConcurrentHashMap<UID, Integer>();
+
+    private final ConcurrentMap<Integer, Set<UID>> manufacturers = new ConcurrentHashMap<Integer, Set<UID>>();
+
+
+    /**
+     * Replace the UIDs found on a universe.
+     *
+     * A UID which moved from another universe is removed from that one,
+     * and is reported as added here but not as removed from the other.
+     *
+     * @param universe the id of the universe
+     * @param uids every UID now on the universe
+     * @return the UIDs added and removed.
+     */
+    public synchronized UidChanges update(int universe, Collection<UID> uids) {
+        Set<UID> current = new HashSet<UID>(uids);
+        Set<UID> previous = universes.get(universe);
+        if (previous == null) {
+            previous = Collections.emptySet();
+        }
+
+        List<UID> added = new ArrayList<UID>();
+        for (UID uid : current) {
+            if (!previous.contains(uid)) {
+                added.add(uid);
+            }
+        }
+        List<UID> removed = new ArrayList<UID>();
+        for (UID uid : previous) {
+            if (!current.contains(uid)) {
+                removed.add(uid);
+            }
+        }
+
+        for (UID uid : removed) {
+            if (uidUniverses.remove(uid, universe)) {
+                removeManufacturer(uid);
+            }
+        }
+        for (UID uid : added) {
+            Integer oldUniverse = uidUniverses.put(uid, universe);
+            if (oldUniverse != null) {
+                Set<UID> moved = new HashSet<UID>(universes.get(oldUniverse));
+                moved.remove(uid);
+                universes.put(oldUniverse, Collections.unmodifiableSet(moved));
+            } else {
+                addManufacturer(uid);
+            }
+        }
+        universes.put(universe, Collections.unmodifiableSet(current));
+        return new UidChanges(universe, added, removed);
+    }
+
+
+    /**
+     * Forget a universe, for example when it is deleted.
+     *
+     * @return the UIDs which were on the universe, reported as removed.
+     */
+    public UidChanges remove(int universe) {
+        return update(universe, Collections.<UID>emptySet());
+    }
+
+
+    /**
+     * @return the universe a UID was found on, or null if it wasn't found.
+     */
+    public Integer getUniverse(UID uid) {
+        return uidUniverses.get(uid);
+    }
+
+
+    /**
+     * @return the UIDs found on a universe.
+     */
+    public Set<UID> getUids(int universe) {
+        Set<UID> uids = universes.get(universe);
+        return uids == null ? Collections.<UID>emptySet() : uids;
+    }
+
+
+    /**
+     * @return the UIDs found with a manufacturer's ESTA id.
+     */
+    public Set<UID> getUidsByManufacturer(int estaId) {
+        Set<UID> uids = manufacturers.get(estaId);
+        return uids == null ? Collections.<UID>emptySet() : Collections.unmodifiableSet(uids);
+    }
+
+
+    /**
+     * @return the universes which have been discovered.
+     */
+    public Set<Integer> getUniverses() {
+        return Collections.unmodifiableSet(universes.keySet());
+    }
+
+
+    /**
+     * @return the number of UIDs on all universes.
+     */
+    public int size() {
+        return uidUniverses.size();
+    }
+
+
+    private void addManufacturer(UID uid) {
+        Set<UID> uids = manufacturers.get(uid.getEstaId());
+        if (uids == null) {
+            uids = Collections.newSetFromMap(new ConcurrentHashMap<UID, Boolean>());
+            manufacturers.put(uid.getEstaId(), uids);
+        }
+        uids.add(uid);
+    }
+
+
+    private void removeManufacturer(UID uid) {
+        Set<UID> uids = manufacturers.get(uid.getEstaId());
+        if (uids != null) {
+            uids.remove(uid);
+            if (uids.isEmpty()) {
+                manufacturers.remove(uid.getEstaId());
+            }
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Holds the current dmx values of many universes in one byte array, for
+ * sharing between threads.
+ *
+ * Each universe has a 512 byte slot in the slab and a StampedLock used as
+ * a seqlock. Readers copy a slot under an optimistic read stamp and retry
+ * if a write happened meanwhile, so they never block the writer, take no
+ * locks and allocate nothing. A writer holds the slot's write lock for
+ * the duration of a copy. If a reader keeps losing to writers it falls
+ * back to a read lock so it can't starve.
+ *
+ * Slots are assigned the first time a universe is written and never
+ * freed. Universes are found through a small open addressing table which
+ * is replaced, not modified, when a universe is added, so lookups don't
+ * lock either.
+ *
+ * The store is a DmxListener, so it can be registered with
+ * OlaClient.registerForDmx() to hold the latest data pushed by olad. It
+ * can be sent with OlaClient.streamDmx(UniverseStore, int).
+ */
+public class UniverseStore implements DmxListener {
+
+    private static final int SLOT_SIZE = DmxFrame.MAX_CHANNELS;
+
+    /* optimistic attempts before a reader takes the read lock */
+    private static final int OPTIMISTIC_ATTEMPTS = 16;
+
+    private final int capacity;
+
+    private final byte[] slab;
+
+    private final StampedLock[] locks;
+
+    /* guarded by the slot's lock */
+    private final int[] lengths;
+
+    private final long[] versions;
+
+    private volatile Table table;
+
+
+    /**
+     * Create a store.
+     *
+     * @param capacity the most universes the store can hold
+     */
+    public UniverseStore(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        this.capacity = capacity;
+        slab = new byte[capacity * SLOT_SIZE];
+        locks = new StampedLock[capacity];
+        for (int i = 0; i < capacity; i++) {
+            locks[i] = new StampedLock();
+        }
+        lengths = new int[capacity];
+        versions = new long[capacity];
+        table = new Table(Integer.highestOneBit(capacity * 2 - 1) << 1);
+    }
+
+
+    /**
+     * @return the most universes the store can hold.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    /**
+     * @return the number of universes in the store.
+     */
+    public int size() {
+        return table.size;
+    }
+
+
+    /**
+     * @return true if the universe has been written.
+     */
+    public boolean contains(int universe) {
+        return table.find(universe) >= 0;
+    }
+
+
+    /**
+     * @return the ids of the universes in the store, in the order they were
+     *         added.
+     */
+    public int[] getUniverses() {
+        Table current = table;
+        return Arrays.copyOf(current.order, current.size);
+    }
+
+
+    /* (non-Javadoc)
+     * @see ola.DmxListener#dmxReceived(int, com.google.protobuf.ByteString)
+     */
+    public void dmxReceived(int universe, ByteString data) {
+        write(universe, data);
+    }
+
+
+    /**
+     * Replace the values of a universe with data pushed by olad.
+     */
+    public void write(int universe, ByteString data) {
+        int length = Math.min(data.size(), SLOT_SIZE);
+        int slot = getSlot(universe);
+        StampedLock lock = locks[slot];
+        long stamp = lock.writeLock();
+        try {
+            data.copyTo(slab, 0, slot * SLOT_SIZE, length);
+            lengths[slot] = length;
+            versions[slot]++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+
+    /**
+     * Replace the values of a universe.
+     */
+    public void write(int universe, byte[] values, int offset, int count) {
+        if (count < 0 || count > SLOT_SIZE) {
+            throw new IllegalArgumentException("Invalid frame length " + count);
+        }
+        int slot = getSlot(universe);
+        StampedLock lock = locks[slot];
+        long stamp = lock.writeLock();
+        try {
+            System.arraycopy(values, offset, slab, slot * SLOT_SIZE, count);
+            lengths[slot] = count;
+            versions[slot]++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+
+    /**
+     * Replace the values of the frame's universe.
+     */
+    public void write(DmxFrame frame) {
+        write(frame.getUniverse(), frame.getData(), 0, frame.getLength());
+    }
+
+
+    /**
+     * Set the value of one channel, the universe grows to include the
+     * channel.
+     *
+     * @param channel offset of the channel, 0 - 511
+     * @param value dmx value 0 - 255
+     */
+    public void set(int universe, int channel, int value) {
+        if (channel < 0 || channel >= SLOT_SIZE) {
+            throw new IllegalArgumentException("Invalid channel " + channel);
+        }
+        int slot = getSlot(universe);
+        StampedLock lock = locks[slot];
+        long stamp = lock.writeLock();
+        try {
+            slab[slot * SLOT_SIZE + channel] = (byte) value;
+            if (channel >= lengths[slot]) {
+                lengths[slot] = channel + 1;
+            }
+            versions[slot]++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+
+    /**
+     * Copy the values of a universe.
+     *
+     * @param values the array to copy to, at least as long as the
+     *        universe's values, MAX_CHANNELS is always enough.
+     * @return the number of values, or -1 if the universe isn't in the
+     *         store.
+     */
+    public int read(int universe, byte[] values) {
+        int slot = table.find(universe);
+        if (slot < 0) {
+            return -1;
+        }
+        StampedLock lock = locks[slot];
+        int offset = slot * SLOT_SIZE;
+        for (int i = 0; i < OPTIMISTIC_ATTEMPTS; i++) {
+            long stamp = lock.tryOptimisticRead();
+            int length = lengths[slot];
+            System.arraycopy(slab, offset, values, 0, Math.min(length, values.length));
+            if (lock.validate(stamp)) {
+                checkLength(length, values);
+                return length;
+            }
+        }
+
+        long stamp = lock.readLock();
+        try {
+            int length = lengths[slot];
+            checkLength(length, values);
+            System.arraycopy(slab, offset, values, 0, length);
+            return length;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+
+    /**
+     * Copy the values of a universe into a frame, ready to send.
+     *
+     * @return false if the universe isn't in the store.
+     */
+    public boolean copyTo(int universe, DmxFrame frame) {
+        int length = read(universe, frame.getData());
+        if (length < 0) {
+            return false;
+        }
+        frame.setUniverse(universe);
+        frame.setLength(length);
+        return true;
+    }
+
+
+    /**
+     * @return the value of a channel, 0 - 255, or 0 if it hasn't been
+     *         written.
+     */
+    public int get(int universe, int channel) {
+        int slot = table.find(universe);
+        if (slot < 0 || channel < 0 || channel >= SLOT_SIZE) {
+            return 0;
+        }
+        StampedLock lock = locks[slot];
+        long stamp = lock.tryOptimisticRead();
+        int value = slab[slot * SLOT_SIZE + channel] & 0xff;
+        if (lock.validate(stamp)) {
+            return value;
+        }
+        stamp = lock.readLock();
+        try {
+            return slab[slot * SLOT_SIZE + channel] & 0xff;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+
+    /**
+     * @return a number which changes each time the universe is written, so
+     *         readers can skip universes which haven't changed. 0 if the
+     *         universe isn't in the store.
+     */
+    public long getVersion(int universe) {
+        int slot = table.find(universe);
+        if (slot < 0) {
+            return 0;
+        }
+        StampedLock lock = locks[slot];
+        long stamp = lock.tryOptimisticRead();
+        long version = versions[slot];
+        if (lock.validate(stamp)) {
+            return version;
+        }
+        stamp = lock.readLock();
+        try {
+            return versions[slot];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+
+    private static void checkLength(int length, byte[] values) {
+        if (length > values.length) {
+            throw new IllegalArgumentException("Array too short for " + length + " values");
+        }
+    }
+
+
+    /**
+     * @return the slot of a universe, assigning one if needed.
+     */
+    private int getSlot(int universe) {
+        int slot = table.find(universe);
+        if (slot >= 0) {
+            return slot;
+        }
+        synchronized (this) {
+            Table current = table;
+            slot = current.find(universe);
+            if (slot >= 0) {
+                return slot;
+            }
+            if (current.size == capacity) {
+                throw new IllegalStateException("Store is full, capacity " + capacity);
+            }
+            table = current.add(universe);
+            return current.size;
+        }
+    }
+
+
+    /**
+     * An immutable map from universe id to slot.
+     */
+    private static class Table {
+
+        private final int mask;
+
+        private final int[] keys;
+
+        /* slot + 1, 0 for an empty entry */
+        private final int[] slots;
+
+        /* universe ids by slot */
+        private final int[] order;
+
+        private final int size;
+
+        Table(int tableSize) {
+            mask = tableSize - 1;
+            keys = new int[tableSize];
+            slots = new int[tableSize];
+            order = new int[tableSize];
+            size = 0;
+        }
+
+        private Table(Table other, int universe) {
+            mask = other.mask;
+            keys = other.keys.clone();
+            slots = other.slots.clone();
+            order = other.order.clone();
+            size = other.size + 1;
+            int i = hash(universe) & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = universe;
+            slots[i] = size;
+            order[other.size] = universe;
+        }
+
+        Table add(int universe) {
+            return new Table(this, universe);
+        }
+
+        int find(int universe) {
+            int i = hash(universe) & mask;
+            while (slots[i] != 0) {
+                if (keys[i] == universe) {
+                    return slots[i] - 1;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        private static int hash(int universe) {
+            int h = universe * 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
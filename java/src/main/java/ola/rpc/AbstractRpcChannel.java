@@ -0,0 +1,1247 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola.rpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ola.proto.Ola.STREAMING_NO_RESPONSE;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.Service;
+
+/**
+ * The transport independent part of an RPC Channel to olad.
+ *
+ * Requests are matched to their responses using the message id, which
+ * allows many requests to be in flight on the same connection.
+ * callMethod() blocks until the response has been received. callMethodAsync()
+ * returns as soon as the request has been queued; the callback is then run
+ * on the thread which reads from the connection, so it must not block or
+ * make blocking calls on this channel.
+ *
+ * Messages are encoded by the calling thread into one of a fixed set of
+ * buffers and queued. The transport writes queued buffers to the
+ * connection in order, splits what it reads into messages with an
+ * RpcDecoder and hands each one to handleNewMessage().
+ *
+ * Requests sent by olad, such as OlaClientService.UpdateDmxData, are passed
+ * to the service registered with setService(), and the response is sent
+ * back once the service runs its callback.
+ *
+ * Methods which return STREAMING_NO_RESPONSE are sent as STREAM_REQUEST
+ * messages and never wait. If all the write buffers are in use, because
+ * the connection can't keep up, the streamed message is dropped rather
+ * than blocking the caller.
+ *
+ * A call can have a deadline, set with the channel's default timeout or
+ * per call with SimpleRpcController.setTimeout(). When it passes, or the
+ * call is cancelled with the controller, a REQUEST_CANCEL is sent to olad
+ * and the call fails without waiting any longer. A response which arrives
+ * afterwards is ignored.
+ *
+ * If the connection is lost, for example because olad restarted, the
+ * channel can reconnect by itself. Attempts are made on a reconnect
+ * thread, never on a caller's or the timer thread, starting after the
+ * initial delay set with setReconnectDelay() and doubling the delay after
+ * each failure up to the maximum. ConnectionListeners are told when the
+ * connection is lost and restored so they can restore any state olad has
+ * forgotten.
+ *
+ * Calls made while the channel is down fail straight away. The lost
+ * connection is logged once; streamed messages sent meanwhile are only
+ * counted as dropped.
+ */
+public abstract class AbstractRpcChannel implements RpcChannel {
+
+    private static Logger logger = Logger.getLogger(AbstractRpcChannel.class.getName());
+
+    protected static final int HEADER_SIZE = 4;
+
+    /* how long a transport waits for olad to accept a connection */
+    protected static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private static final int PROTOCOL_VERSION = 1;
+
+    private static final int VERSION_MASK = 0xf0000000;
+
+    private static final int SIZE_MASK = 0x0fffffff;
+
+    private static final int TYPE_FIELD = 1;
+
+    private static final int ID_FIELD = 2;
+
+    private static final int NAME_FIELD = 3;
+
+    private static final int BUFFER_FIELD = 4;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int WRITE_QUEUE_SIZE = 64;
+
+    private static final int MAX_DUMP_SIZE = 256;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final int WRITE_BUFFER_SIZE = 1024;
+
+    private final boolean directBuffers;
+
+    /* encoded messages waiting to be written, with room for the pooled
+     * buffers and as many extra ones */
+    private final BlockingQueue<ByteBuffer> writeQueue = new ArrayBlockingQueue<ByteBuffer>(2 * WRITE_QUEUE_SIZE);
+
+    /* buffers available for encoding, returned once written */
+    private final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<ByteBuffer>(WRITE_QUEUE_SIZE);
+
+    /* buffers allocated because the pool was empty when waiting wasn't
+     * allowed, see acquireBuffer() */
+    private final AtomicInteger extraBuffers = new AtomicInteger(0);
+
+    private final AtomicLong droppedMessages = new AtomicLong(0);
+
+    private final ConcurrentMap<String, byte[]> methodNames = new ConcurrentHashMap<String, byte[]>();
+
+    private final AtomicInteger sequence = new AtomicInteger(0);
+
+    private final ConcurrentMap<Integer, RpcCall> pendingCalls = new ConcurrentHashMap<Integer, RpcCall>();
+
+    private volatile Service service;
+
+    private volatile boolean open = false;
+
+    private volatile boolean openedBefore = false;
+
+    private volatile RpcMetricsListener metricsListener;
+
+    private volatile long defaultTimeoutNanos = 0;
+
+    private final List<ConnectionListener> connectionListeners = new CopyOnWriteArrayList<ConnectionListener>();
+
+    /* true once close() has been called, until connect() is called again */
+    private volatile boolean closed = false;
+
+    private volatile long reconnectDelayNanos = 0;
+
+    private volatile long maxReconnectDelayNanos = 0;
+
+    /* serialises connection attempts, and guards reconnectTask. A lock
+     * rather than synchronized, so a virtual thread connecting doesn't pin
+     * its carrier thread while the socket connects. */
+    private final ReentrantLock connectLock = new ReentrantLock();
+
+    private Future<?> reconnectTask;
+
+
+    /**
+     * @param directBuffers if true the write buffers are allocated outside
+     *        the heap, which suits transports that write ByteBuffers.
+     */
+    protected AbstractRpcChannel(boolean directBuffers) {
+        this.directBuffers = directBuffers;
+        for (int i = 0; i < WRITE_QUEUE_SIZE; i++) {
+            freeBuffers.add(allocateBuffer(WRITE_BUFFER_SIZE));
+        }
+    }
+
+
+    /**
+     * Connect to olad, if the channel isn't already connected. A channel
+     * which was closed can be connected again.
+     *
+     * @throws IOException if the connection fails.
+     */
+    public void connect() throws IOException {
+        closed = false;
+        connectLock.lock();
+        try {
+            cancelReconnect();
+            if (open) {
+                logger.warning("Channel already connected.");
+                return;
+            }
+            openConnection();
+        } finally {
+            connectLock.unlock();
+        }
+    }
+
+
+    /**
+     * Close the channel. Outstanding calls fail and the channel doesn't
+     * reconnect.
+     */
+    public void close() {
+        closed = true;
+        connectLock.lock();
+        try {
+            cancelReconnect();
+        } finally {
+            connectLock.unlock();
+        }
+        closeConnection();
+    }
+
+
+    /**
+     * Open the connection to olad and call channelOpened() once messages
+     * can be sent.
+     *
+     * @throws IOException if the connection fails.
+     */
+    protected abstract void openConnection() throws IOException;
+
+
+    /**
+     * Close the connection to olad, if it is open, and call
+     * channelClosed().
+     */
+    protected abstract void closeConnection();
+
+
+    /**
+     * Called after a message has been added to the write queue.
+     */
+    protected abstract void messageQueued();
+
+
+    /**
+     * @return true if the channel is connected to olad.
+     */
+    public boolean isConnected() {
+        return open;
+    }
+
+
+    /**
+     * Set the service which handles requests sent by olad.
+     *
+     * @param service the service, or null to reject requests.
+     */
+    public void setService(Service service) {
+        this.service = service;
+    }
+
+
+    /**
+     * Report calls, traffic and connection events to a listener.
+     *
+     * @param listener the listener, or null to stop reporting.
+     */
+    public void setMetricsListener(RpcMetricsListener listener) {
+        metricsListener = listener;
+    }
+
+
+    /**
+     * @return the metrics listener, or null if there is none.
+     */
+    public RpcMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+
+    /**
+     * Fail calls which haven't had a response after a time. Calls made
+     * with a SimpleRpcController which has its own timeout use that
+     * instead.
+     *
+     * @param timeout the timeout, 0 to wait forever
+     */
+    public void setDefaultTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Invalid timeout " + timeout);
+        }
+        defaultTimeoutNanos = unit.toNanos(timeout);
+    }
+
+
+    /**
+     * Reconnect automatically if the connection to olad is lost. The first
+     * attempt is made after the initial delay, and the delay doubles after
+     * each failed attempt until it reaches the maximum.
+     *
+     * @param initialDelay the delay before the first attempt, 0 to not
+     *        reconnect, which is the default.
+     * @param maxDelay the longest delay between attempts
+     */
+    public void setReconnectDelay(long initialDelay, long maxDelay, TimeUnit unit) {
+        if (initialDelay < 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Invalid reconnect delay " + initialDelay + " - " + maxDelay);
+        }
+        reconnectDelayNanos = unit.toNanos(initialDelay);
+        maxReconnectDelayNanos = unit.toNanos(maxDelay);
+    }
+
+
+    /**
+     * Be told when the connection to olad is lost and restored.
+     */
+    public void addConnectionListener(ConnectionListener listener) {
+        connectionListeners.add(listener);
+    }
+
+
+    /**
+     * Remove a listener added with addConnectionListener().
+     */
+    public void removeConnectionListener(ConnectionListener listener) {
+        connectionListeners.remove(listener);
+    }
+
+
+    /**
+     * @return the number of requests which are waiting for a response.
+     */
+    public int getPendingCallCount() {
+        return pendingCalls.size();
+    }
+
+
+    /**
+     * @return the number of streamed messages dropped because the write
+     *         queue was full or the channel was disconnected.
+     */
+    public long getDroppedMessageCount() {
+        return droppedMessages.get();
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.google.protobuf.RpcChannel#callMethod(com.google.protobuf.Descriptors.MethodDescriptor, com.google.protobuf.RpcController, com.google.protobuf.Message, com.google.protobuf.Message, com.google.protobuf.RpcCallback)
+     */
+    public void callMethod(MethodDescriptor method, RpcController controller,
+            Message requestMessage, Message responseMessage, RpcCallback<Message> done) {
+        callMethod(method, controller, new MessagePayload(requestMessage), responseMessage, done);
+    }
+
+
+    /**
+     * Call a method with a request which encodes itself, blocking until the
+     * response has been received.
+     *
+     * @param method the method to call
+     * @param controller controller for this call
+     * @param request the encoded request
+     * @param responseMessage prototype of the response
+     * @param done callback to run on completion
+     */
+    public void callMethod(MethodDescriptor method, RpcController controller,
+            RpcPayload request, Message responseMessage, RpcCallback<Message> done) {
+
+        RpcCall call = startCall(method, controller, request, responseMessage, done);
+        if (call == null) {
+            return;
+        }
+
+        try {
+            call.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // tell olad too, nobody is waiting for the response now
+            cancelCall(call, "Interrupted while waiting for response");
+        }
+    }
+
+
+    /**
+     * Send a request to olad without waiting for the response.
+     *
+     * The callback is run on the channel's I/O thread once the response
+     * arrives, or with null if the call fails. Calls which time out are
+     * failed on the channels' shared timer thread.
+     *
+     * @param method the method to call
+     * @param controller controller for this call, must not be shared with
+     *        other outstanding calls
+     * @param requestMessage the request
+     * @param responseMessage prototype of the response
+     * @param done callback to run on completion
+     */
+    public void callMethodAsync(MethodDescriptor method, RpcController controller,
+            Message requestMessage, Message responseMessage, RpcCallback<Message> done) {
+        startCall(method, controller, new MessagePayload(requestMessage), responseMessage, done);
+    }
+
+
+    /**
+     * Send a request which encodes itself without waiting for the response.
+     *
+     * The request is encoded before this method returns, so the caller may
+     * reuse it straight away.
+     *
+     * @see #callMethodAsync(MethodDescriptor, RpcController, Message, Message, RpcCallback)
+     */
+    public void callMethodAsync(MethodDescriptor method, RpcController controller,
+            RpcPayload request, Message responseMessage, RpcCallback<Message> done) {
+        startCall(method, controller, request, responseMessage, done);
+    }
+
+
+    /**
+     * Start a batch of streamed calls which are written to the socket
+     * together.
+     *
+     * Like single streamed calls this never waits: if no write buffer is
+     * free the whole batch is dropped. The batch holds a write buffer until
+     * it is committed, so every batch must be committed.
+     *
+     * @return the new batch
+     */
+    public Batch beginBatch() {
+        ByteBuffer buffer = null;
+        if (open) {
+            buffer = freeBuffers.poll();
+            if (buffer != null) {
+                buffer.clear();
+            }
+        }
+        return new Batch(buffer);
+    }
+
+
+    /**
+     * Send the request and register it as outstanding.
+     *
+     * @return the outstanding call or null if no response is expected.
+     */
+    private RpcCall startCall(MethodDescriptor method, RpcController controller,
+            RpcPayload request, Message responseMessage, RpcCallback<Message> done) {
+
+        int messageId = sequence.getAndIncrement();
+
+        boolean streaming = method.getOutputType() == STREAMING_NO_RESPONSE.getDescriptor();
+
+        RpcMetricsListener listener = metricsListener;
+        RpcCall call = null;
+        if (!streaming) {
+            // register before sending, the response may arrive before
+            // sendMessage returns.
+            call = new RpcCall(messageId, method.getName(), controller, responseMessage, done);
+            if (listener != null) {
+                listener.callStarted(method.getName());
+            }
+            RpcCall old = pendingCalls.put(messageId, call);
+            if (old != null) {
+                logger.warning("response " + messageId + " already pending, failing now");
+                failCall(old, null, "Duplicate request found");
+            }
+            watchCall(call, controller);
+        }
+
+        try {
+            boolean queued = sendMessage(streaming ? Rpc.Type.STREAM_REQUEST : Rpc.Type.REQUEST,
+                    messageId, method.getName(), request, streaming);
+            if (streaming && !queued) {
+                controller.setFailed("Write queue full");
+            }
+            if (streaming && listener != null) {
+                if (queued) {
+                    listener.messageStreamed(method.getName());
+                } else {
+                    listener.messageDropped(method.getName());
+                }
+            }
+        } catch (Exception e) {
+            if (open) {
+                logger.severe("Error sending rpc message: " + e.getMessage());
+            } else if (streaming) {
+                // the lost connection was logged once, just count these
+                droppedMessages.incrementAndGet();
+                if (listener != null) {
+                    listener.messageDropped(method.getName());
+                }
+            }
+            if (call != null) {
+                if (pendingCalls.remove(messageId, call)) {
+                    failCall(call, null, e.getMessage());
+                }
+            } else {
+                controller.setFailed(e.getMessage());
+                if (done != null) {
+                    done.run(null);
+                }
+            }
+            return null;
+        }
+
+        return call;
+    }
+
+
+    /**
+     * Arrange for a call to be cancelled by its controller or when its
+     * deadline passes.
+     */
+    private void watchCall(final RpcCall call, RpcController controller) {
+        long timeout = defaultTimeoutNanos;
+        if (controller instanceof SimpleRpcController) {
+            SimpleRpcController simpleController = (SimpleRpcController) controller;
+            if (simpleController.getTimeoutNanos() > 0) {
+                timeout = simpleController.getTimeoutNanos();
+            }
+            simpleController.setCancelHandler(new Runnable() {
+                public void run() {
+                    cancelCall(call, "Call cancelled");
+                }
+            });
+        }
+
+        if (timeout > 0) {
+            final long millis = TimeUnit.NANOSECONDS.toMillis(timeout);
+            call.setTimer(RpcTimer.schedule(new Runnable() {
+                public void run() {
+                    cancelCall(call, "Timed out after " + millis + "ms waiting for " + call.getMethodName());
+                }
+            }, timeout, TimeUnit.NANOSECONDS));
+        }
+    }
+
+
+    /**
+     * Stop waiting for a call's response, tell olad and fail the call.
+     */
+    private void cancelCall(RpcCall call, String reason) {
+        if (!pendingCalls.remove(call.getId(), call)) {
+            return;
+        }
+        try {
+            sendMessage(Rpc.Type.REQUEST_CANCEL, call.getId(), call.getMethodName(),
+                    new BytesPayload(ByteString.EMPTY), true);
+        } catch (Exception e) {
+            logger.fine("Unable to send cancel for " + call.getMethodName() + ": " + e.getMessage());
+        }
+        failCall(call, Rpc.Type.REQUEST_CANCEL, reason);
+    }
+
+
+    /**
+     * Mark the channel as connected, messages can be queued from now on.
+     */
+    protected void channelOpened() {
+        open = true;
+        RpcMetricsListener listener = metricsListener;
+        if (listener != null) {
+            listener.connected(openedBefore);
+        }
+        openedBefore = true;
+    }
+
+
+    /**
+     * Mark the channel as closed. Queued messages are discarded and
+     * outstanding calls are failed. Unless close() was called the
+     * ConnectionListeners are told and a reconnect is scheduled.
+     *
+     * @param reason error text for the failed calls
+     */
+    protected void channelClosed(String reason) {
+        boolean wasOpen = open;
+        open = false;
+        RpcMetricsListener listener = metricsListener;
+        if (wasOpen && listener != null) {
+            listener.disconnected(reason);
+        }
+        ByteBuffer queued;
+        while ((queued = writeQueue.poll()) != null) {
+            releaseBuffer(queued);
+        }
+        failPendingCalls(reason);
+
+        if (wasOpen && !closed) {
+            logger.warning("Disconnected from olad: " + reason);
+            for (ConnectionListener connectionListener : connectionListeners) {
+                try {
+                    connectionListener.connectionLost(this, reason);
+                } catch (RuntimeException e) {
+                    logger.warning("ConnectionListener failed: " + e.getMessage());
+                }
+            }
+            scheduleReconnect(reconnectDelayNanos);
+        }
+    }
+
+
+    /**
+     * Schedule a reconnection attempt. The timer hands the attempt to a
+     * reconnect thread, as connecting can block.
+     *
+     * @param delay nanoseconds until the attempt, 0 to not reconnect
+     */
+    private void scheduleReconnect(final long delay) {
+        if (delay <= 0) {
+            return;
+        }
+        connectLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            cancelReconnect();
+            reconnectTask = RpcTimer.schedule(new Runnable() {
+                public void run() {
+                    ReconnectExecutor.INSTANCE.execute(new Runnable() {
+                        public void run() {
+                            reconnect(delay);
+                        }
+                    });
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        } finally {
+            connectLock.unlock();
+        }
+    }
+
+
+    /**
+     * Try to reconnect, and try again later with a longer delay if that
+     * fails. Runs on a reconnect thread.
+     */
+    private void reconnect(long delay) {
+        connectLock.lock();
+        try {
+            reconnectTask = null;
+            if (closed || open) {
+                return;
+            }
+            openConnection();
+        } catch (IOException e) {
+            long nextDelay = Math.min(delay * 2, maxReconnectDelayNanos);
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Reconnect failed, retrying in " + TimeUnit.NANOSECONDS.toMillis(nextDelay)
+                        + "ms: " + e.getMessage());
+            }
+            scheduleReconnect(nextDelay);
+            return;
+        } finally {
+            connectLock.unlock();
+        }
+        logger.info("Reconnected to olad");
+        for (ConnectionListener connectionListener : connectionListeners) {
+            try {
+                connectionListener.connectionRestored(this);
+            } catch (RuntimeException e) {
+                logger.warning("ConnectionListener failed: " + e.getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * Cancel a scheduled reconnection attempt, called with connectLock
+     * held.
+     */
+    private void cancelReconnect() {
+        if (reconnectTask != null) {
+            reconnectTask.cancel(false);
+            reconnectTask = null;
+        }
+    }
+
+
+    /**
+     * @return the next buffer to write, waiting until one is queued.
+     */
+    protected ByteBuffer takeQueuedMessage() throws InterruptedException {
+        return writeQueue.take();
+    }
+
+
+    /**
+     * @return the next buffer to write, or null if the queue is empty.
+     */
+    protected ByteBuffer pollQueuedMessage() {
+        return writeQueue.poll();
+    }
+
+
+    /**
+     * @return true if there are messages waiting to be written.
+     */
+    protected boolean hasQueuedMessages() {
+        return !writeQueue.isEmpty();
+    }
+
+
+    /**
+     * Return a buffer to the pool once it has been written.
+     */
+    protected void releaseBuffer(ByteBuffer buffer) {
+        if (!freeBuffers.offer(buffer)) {
+            // the pool is full again, so this one was extra
+            extraBuffers.decrementAndGet();
+        }
+    }
+
+
+    /**
+     * @return true if called on the thread which writes the queued
+     *         messages. It must never wait for a write buffer, as it is the
+     *         thread which frees them.
+     */
+    protected boolean inIoThread() {
+        return false;
+    }
+
+
+    /**
+     * Count bytes written to the connection.
+     */
+    protected void recordBytesSent(int count) {
+        RpcMetricsListener listener = metricsListener;
+        if (listener != null && count > 0) {
+            listener.bytesSent(count);
+        }
+    }
+
+
+    /**
+     * Count bytes read from the connection.
+     */
+    protected void recordBytesReceived(int count) {
+        RpcMetricsListener listener = metricsListener;
+        if (listener != null && count > 0) {
+            listener.bytesReceived(count);
+        }
+    }
+
+
+    /**
+     * @return the message size from an rpc header.
+     */
+    protected static int decodeSize(int header) {
+        return header & SIZE_MASK;
+    }
+
+
+    /**
+     * Log the start of a buffer in hex at FINEST level, as one log record.
+     */
+    protected static void dump(String prefix, ByteBuffer buffer, int length) {
+        if (!logger.isLoggable(Level.FINEST)) {
+            return;
+        }
+        int shown = Math.min(length, MAX_DUMP_SIZE);
+        StringBuilder text = new StringBuilder(prefix.length() + 32 + shown * 3);
+        text.append(prefix).append(' ').append(length).append(" bytes:");
+        for (int i = 0; i < shown; i++) {
+            int value = buffer.get(i) & 0xff;
+            text.append(' ').append(HEX_DIGITS[value >> 4]).append(HEX_DIGITS[value & 0xf]);
+        }
+        if (shown < length) {
+            text.append(" ...");
+        }
+        logger.finest(text.toString());
+    }
+
+
+    private ByteBuffer allocateBuffer(int size) {
+        ByteBuffer buffer = directBuffers ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        return buffer.order(ByteOrder.nativeOrder());
+    }
+
+
+    /**
+     * Dispatch a message received from olad.
+     *
+     * @param msg the decoder holding the message
+     */
+    protected void handleNewMessage(RpcDecoder msg) {
+
+        if (logger.isLoggable(Level.FINEST)) {
+            ByteBuffer message = msg.getMessage();
+            dump("Received", message, message.limit());
+        }
+        if (msg.getType() == null) {
+            logger.warning("not sure of msg type for message " + msg.getId());
+            return;
+        }
+
+        switch (msg.getType()) {
+            case REQUEST:
+                handleRequest(msg, false);
+                break;
+            case STREAM_REQUEST:
+                handleRequest(msg, true);
+                break;
+            case RESPONSE:
+                handleResponse(msg);
+                break;
+            case RESPONSE_CANCEL:
+                logger.info("Received a canceled response");
+                handleFailedResponse(msg, msg.getPayloadAsString());
+                break;
+            case RESPONSE_FAILED:
+                handleFailedResponse(msg, msg.getPayloadAsString());
+                break;
+            case RESPONSE_NOT_IMPLEMENTED:
+                logger.info("Received a non-implemented response");
+                handleFailedResponse(msg, "Not Implemented");
+                break;
+            default:
+                logger.warning("not sure of msg type " + msg.getType());
+                break;
+        }
+    }
+
+
+    /**
+     * Handle a new RPC method call from olad.
+     *
+     * @param msg the request
+     * @param streaming true if no response should be sent
+     */
+    private void handleRequest(RpcDecoder msg, final boolean streaming) {
+
+        Service handler = service;
+        if (handler == null) {
+            logger.warning("no service registered");
+            return;
+        }
+
+        MethodDescriptor method = handler.getDescriptorForType().findMethodByName(msg.getName());
+        if (method == null) {
+            logger.warning("failed to get method descriptor for " + msg.getName());
+            sendResponse(Rpc.Type.RESPONSE_NOT_IMPLEMENTED, msg.getId(), new BytesPayload(ByteString.EMPTY));
+            return;
+        }
+
+        if (streaming && method.getOutputType() != STREAMING_NO_RESPONSE.getDescriptor()) {
+            logger.warning("Streaming request received for " + method.getName()
+                    + ", but the output type isn't STREAMING_NO_RESPONSE");
+            return;
+        }
+
+        Message request;
+        try {
+            request = msg.parsePayload(handler.getRequestPrototype(method));
+        } catch (Exception e) {
+            logger.warning("parsing of request pb failed: " + e.getMessage());
+            return;
+        }
+
+        final int id = msg.getId();
+        final SimpleRpcController requestController = new SimpleRpcController();
+        RpcCallback<Message> done = new RpcCallback<Message>() {
+            public void run(Message response) {
+                if (streaming) {
+                    return;
+                }
+                if (requestController.failed() || response == null) {
+                    String error = requestController.errorText() == null ? "" : requestController.errorText();
+                    sendResponse(Rpc.Type.RESPONSE_FAILED, id,
+                            new BytesPayload(ByteString.copyFromUtf8(error)));
+                } else {
+                    sendResponse(Rpc.Type.RESPONSE, id, new MessagePayload(response));
+                }
+            }
+        };
+
+        handler.callMethod(method, requestController, request, done);
+    }
+
+
+    /**
+     * Send the response to a request from olad.
+     */
+    private void sendResponse(Rpc.Type type, int id, RpcPayload body) {
+        try {
+            sendMessage(type, id, null, body, false);
+        } catch (Exception e) {
+            logger.warning("Error sending rpc response: " + e.getMessage());
+        }
+    }
+
+
+    private void failCall(RpcCall call, Rpc.Type type, String reason) {
+        RpcMetricsListener listener = metricsListener;
+        if (listener != null) {
+            listener.callFailed(call.getMethodName(), type, call.getElapsedTime());
+        }
+        call.fail(reason);
+    }
+
+
+    private void handleResponse(RpcDecoder msg) {
+        RpcCall call = pendingCalls.remove(msg.getId());
+        if (call == null) {
+            // the call may have timed out or been cancelled
+            logger.fine("Received response with id " + msg.getId() + " but no request is pending");
+            return;
+        }
+
+        Message response;
+        try {
+            response = msg.parsePayload(call.getResponsePrototype());
+        } catch (InvalidProtocolBufferException e) {
+            failCall(call, null, "Failed to parse response for " + call.getMethodName() + ": " + e.getMessage());
+            return;
+        }
+        RpcMetricsListener listener = metricsListener;
+        if (listener != null) {
+            listener.callCompleted(call.getMethodName(), call.getElapsedTime());
+        }
+        call.complete(response);
+    }
+
+
+    private void handleFailedResponse(RpcDecoder msg, String reason) {
+        RpcCall call = pendingCalls.remove(msg.getId());
+        if (call != null) {
+            failCall(call, msg.getType(), reason);
+        }
+    }
+
+
+    /**
+     * Fail all outstanding calls.
+     *
+     * @param reason error text
+     */
+    protected void failPendingCalls(String reason) {
+        List<RpcCall> calls = new ArrayList<RpcCall>(pendingCalls.values());
+        for (RpcCall call : calls) {
+            if (pendingCalls.remove(call.getId(), call)) {
+                failCall(call, null, reason);
+            }
+        }
+    }
+
+
+    /**
+     * Queue an rpc message for sending to olad.
+     *
+     * The header and the RpcMessage are encoded into one of the reusable
+     * write buffers so no intermediate messages or arrays are created.
+     *
+     * @param type the message type
+     * @param id the message id
+     * @param name the method name, null for responses
+     * @param body the request
+     * @param droppable if true the message is dropped rather than waiting
+     *        for a free write buffer
+     * @return true if the message was queued, false if it was dropped.
+     * @throws Exception
+     */
+    private boolean sendMessage(Rpc.Type type, int id, String name, RpcPayload body,
+            boolean droppable) throws Exception {
+
+        // responses are sent from the thread which handled the request,
+        // which for some transports is the I/O thread
+        boolean mayWait = type == Rpc.Type.REQUEST && !inIoThread();
+        ByteBuffer buffer = acquireBuffer(name, droppable, mayWait);
+        if (buffer == null) {
+            return false;
+        }
+        buffer = encodeMessage(buffer, type, id, name == null ? null : getMethodName(name), body);
+        buffer.flip();
+
+        // there are as many queue slots as buffers, so this always succeeds
+        writeQueue.offer(buffer);
+        messageQueued();
+        return true;
+    }
+
+
+    /**
+     * Take a free write buffer.
+     *
+     * A message which can't be dropped but mustn't wait gets a newly
+     * allocated buffer if the pool is empty, up to as many again as the
+     * pool holds.
+     *
+     * @param name the method being sent, for logging
+     * @param droppable if true don't wait for a buffer
+     * @param mayWait if false and droppable is false, don't wait for a
+     *        buffer but allocate one
+     * @return the cleared buffer, or null if droppable is true and no buffer
+     *         is free.
+     * @throws IOException if the channel is closed, the wait is
+     *         interrupted or no buffer could be allocated.
+     */
+    private ByteBuffer acquireBuffer(String name, boolean droppable, boolean mayWait) throws IOException {
+
+        if (!open) {
+            throw new IOException("Channel closed");
+        }
+
+        ByteBuffer buffer;
+        if (droppable) {
+            buffer = freeBuffers.poll();
+            if (buffer == null) {
+                droppedMessages.incrementAndGet();
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Write queue full, dropping " + name);
+                }
+                return null;
+            }
+        } else if (mayWait) {
+            try {
+                buffer = freeBuffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting to send " + name);
+            }
+        } else {
+            buffer = freeBuffers.poll();
+            if (buffer == null) {
+                if (extraBuffers.incrementAndGet() > WRITE_QUEUE_SIZE) {
+                    extraBuffers.decrementAndGet();
+                    throw new IOException("Write queue full");
+                }
+                buffer = allocateBuffer(WRITE_BUFFER_SIZE);
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+
+    /**
+     * @return the UTF-8 encoding of a method name.
+     */
+    private byte[] getMethodName(String name) {
+        byte[] nameBytes = methodNames.get(name);
+        if (nameBytes == null) {
+            nameBytes = name.getBytes(UTF8);
+            methodNames.put(name, nameBytes);
+        }
+        return nameBytes;
+    }
+
+
+    /**
+     * Append the header and RpcMessage to a buffer. The name field is left
+     * out if nameBytes is null.
+     *
+     * @return the buffer, which is replaced by a larger copy if the message
+     *         doesn't fit.
+     */
+    private ByteBuffer encodeMessage(ByteBuffer buffer, Rpc.Type type, int id,
+            byte[] nameBytes, RpcPayload body) {
+
+        int bodySize = body.getSerializedSize();
+        int size = RpcEncoder.int32FieldSize(TYPE_FIELD, type.getNumber())
+                + RpcEncoder.uint32FieldSize(ID_FIELD, id)
+                + (nameBytes == null ? 0 : RpcEncoder.bytesFieldSize(NAME_FIELD, nameBytes.length))
+                + RpcEncoder.bytesFieldSize(BUFFER_FIELD, bodySize);
+
+        if (size > SIZE_MASK) {
+            throw new IllegalArgumentException("Message too large: " + size + " bytes");
+        }
+
+        int headerContent = (PROTOCOL_VERSION << 28) & VERSION_MASK;
+        headerContent |= size & SIZE_MASK;
+
+        if (buffer.remaining() < HEADER_SIZE + size) {
+            ByteBuffer larger = allocateBuffer(
+                    Math.max(buffer.position() + HEADER_SIZE + size, buffer.capacity() * 2));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+
+        buffer.putInt(headerContent);
+        RpcEncoder.writeInt32Field(buffer, TYPE_FIELD, type.getNumber());
+        RpcEncoder.writeUInt32Field(buffer, ID_FIELD, id);
+        if (nameBytes != null) {
+            RpcEncoder.writeBytesField(buffer, NAME_FIELD, nameBytes, 0, nameBytes.length);
+        }
+        RpcEncoder.writeBytesFieldHeader(buffer, BUFFER_FIELD, bodySize);
+        body.writeTo(buffer);
+        return buffer;
+    }
+
+
+    /**
+     * Adapts a Message to an RpcPayload.
+     */
+    private static class MessagePayload implements RpcPayload {
+
+        private final Message message;
+
+        MessagePayload(Message message) {
+            this.message = message;
+        }
+
+        public int getSerializedSize() {
+            return message.getSerializedSize();
+        }
+
+        public void writeTo(ByteBuffer buffer) {
+            if (!buffer.hasArray()) {
+                buffer.put(message.toByteArray());
+                return;
+            }
+            int size = message.getSerializedSize();
+            CodedOutputStream output = CodedOutputStream.newInstance(
+                    buffer.array(), buffer.arrayOffset() + buffer.position(), size);
+            try {
+                message.writeTo(output);
+                output.checkNoSpaceLeft();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to serialize " + message.getDescriptorForType().getName(), e);
+            }
+            buffer.position(buffer.position() + size);
+        }
+    }
+
+
+    /**
+     * Adapts raw bytes to an RpcPayload.
+     */
+    private static class BytesPayload implements RpcPayload {
+
+        private final ByteString bytes;
+
+        BytesPayload(ByteString bytes) {
+            this.bytes = bytes;
+        }
+
+        public int getSerializedSize() {
+            return bytes.size();
+        }
+
+        public void writeTo(ByteBuffer buffer) {
+            bytes.copyTo(buffer);
+        }
+    }
+
+
+    /**
+     * A group of streamed calls which are encoded back to back into one
+     * write buffer and sent with a single write once committed.
+     */
+    public class Batch {
+
+        private ByteBuffer buffer;
+
+        private int count = 0;
+
+
+        private Batch(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+
+        /**
+         * Add a streamed call to the batch. The request is encoded
+         * immediately and may be reused once this returns.
+         *
+         * @param method a method which returns STREAMING_NO_RESPONSE
+         * @param request the request
+         */
+        public void add(MethodDescriptor method, RpcPayload request) {
+            if (method.getOutputType() != STREAMING_NO_RESPONSE.getDescriptor()) {
+                throw new IllegalArgumentException(method.getName() + " is not a streaming method");
+            }
+            count++;
+            RpcMetricsListener listener = metricsListener;
+            if (buffer == null) {
+                droppedMessages.incrementAndGet();
+                if (listener != null) {
+                    listener.messageDropped(method.getName());
+                }
+                return;
+            }
+            if (listener != null) {
+                listener.messageStreamed(method.getName());
+            }
+            buffer = encodeMessage(buffer, Rpc.Type.STREAM_REQUEST, sequence.getAndIncrement(),
+                    getMethodName(method.getName()), request);
+        }
+
+
+        /**
+         * @return the number of calls added to the batch.
+         */
+        public int size() {
+            return count;
+        }
+
+
+        /**
+         * Queue the batch for writing. The batch can't be used afterwards.
+         *
+         * @return true if the batch was queued or is empty, false if it was
+         *         dropped because no write buffer was free or the channel
+         *         closed.
+         */
+        public boolean commit() {
+            ByteBuffer encoded = buffer;
+            buffer = null;
+            if (encoded == null) {
+                return count == 0;
+            }
+            if (encoded.position() == 0) {
+                releaseBuffer(encoded);
+                return true;
+            }
+            if (!open) {
+                releaseBuffer(encoded);
+                droppedMessages.addAndGet(count);
+                return false;
+            }
+            encoded.flip();
+            writeQueue.offer(encoded);
+            messageQueued();
+            return true;
+        }
+    }
+
+
+    /**
+     * Runs the reconnection attempts of all channels. Threads are started
+     * as needed, so one slow connect doesn't hold up the others, and exit
+     * once idle.
+     */
+    private static class ReconnectExecutor {
+
+        static final ExecutorService INSTANCE = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ola-rpc-reconnect");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
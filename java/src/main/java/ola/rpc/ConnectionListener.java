@@ -0,0 +1,45 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola.rpc;
+
+/**
+ * Told when a channel's connection to olad is lost and when it is
+ * restored by an automatic reconnect.
+ *
+ * connectionLost() runs on the thread which noticed the failure, and
+ * connectionRestored() on the thread which reconnected. Neither should
+ * block, but both may make asynchronous calls.
+ */
+public interface ConnectionListener {
+
+    /**
+     * The connection was lost. Outstanding calls have already failed.
+     * Closing the channel with close() doesn't count as losing it.
+     *
+     * @param channel the channel which lost its connection
+     * @param reason why the connection was lost
+     */
+    void connectionLost(AbstractRpcChannel channel, String reason);
+
+
+    /**
+     * The channel reconnected and calls can be made again. olad may have
+     * restarted, so anything registered with it may need to be repeated.
+     *
+     * @param channel the channel which reconnected
+     */
+    void connectionRestored(AbstractRpcChannel channel);
+}
@@ -0,0 +1,270 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola.rpc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * RPC Channel over a non-blocking SocketChannel, driven by an RpcEventLoop.
+ *
+ * Many channels can share one event loop, so a single thread handles the
+ * I/O for connections to many olad instances. Callbacks run on the event
+ * loop thread. When the channel reconnects the new socket is registered
+ * with the same event loop.
+ */
+public class NioRpcChannel extends AbstractRpcChannel {
+
+    private static Logger logger = Logger.getLogger(NioRpcChannel.class.getName());
+
+    private final RpcEventLoop loop;
+
+    private final String host;
+
+    private final int port;
+
+    private volatile SocketChannel socketChannel;
+
+    /* the key of the current connection, only used on the loop thread */
+    private SelectionKey key;
+
+    /* read state, only used on the loop thread */
+    private RpcDecoder decoder = new RpcDecoder();
+
+    /* the message being written, only used on the loop thread */
+    private ByteBuffer currentWrite;
+
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+    private final Runnable enableWrite = new Runnable() {
+        public void run() {
+            if (key != null && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    };
+
+
+    /**
+     * Connect to olad. The connection is established before this returns,
+     * or fails if olad doesn't accept it within 5 seconds. After that all
+     * I/O happens on the event loop.
+     *
+     * @param loop the event loop which performs the I/O
+     * @param host the host olad is running on
+     * @param port the rpc port of olad
+     * @throws IOException if the connection fails.
+     */
+    public NioRpcChannel(RpcEventLoop loop, String host, int port) throws IOException {
+        super(true);
+        this.loop = loop;
+        this.host = host;
+        this.port = port;
+        connect();
+    }
+
+
+    /* (non-Javadoc)
+     * @see ola.rpc.AbstractRpcChannel#openConnection()
+     */
+    protected void openConnection() throws IOException {
+        final SocketChannel newChannel = SocketChannel.open();
+        try {
+            // SocketChannel.connect() has no timeout, the socket adaptor's does
+            newChannel.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            newChannel.configureBlocking(false);
+        } catch (IOException e) {
+            logger.severe("Error connecting to olad on " + host + ":" + port);
+            newChannel.close();
+            throw e;
+        }
+
+        socketChannel = newChannel;
+        channelOpened();
+        loop.execute(new Runnable() {
+            public void run() {
+                register(newChannel);
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see ola.rpc.AbstractRpcChannel#closeConnection()
+     */
+    protected void closeConnection() {
+        if (!isConnected()) {
+            return;
+        }
+        final SocketChannel oldChannel = socketChannel;
+        channelClosed("Channel closed");
+        loop.execute(new Runnable() {
+            public void run() {
+                closeSocket(oldChannel);
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see ola.rpc.AbstractRpcChannel#inIoThread()
+     */
+    protected boolean inIoThread() {
+        return loop.inLoopThread();
+    }
+
+
+    /* (non-Javadoc)
+     * @see ola.rpc.AbstractRpcChannel#messageQueued()
+     */
+    protected void messageQueued() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.execute(enableWrite);
+        }
+    }
+
+
+    /**
+     * Register a new connection with the selector, called on the loop
+     * thread.
+     */
+    private void register(SocketChannel newChannel) {
+        if (newChannel != socketChannel || !newChannel.isOpen()) {
+            // closed before it could be registered
+            return;
+        }
+        decoder = new RpcDecoder();
+        try {
+            key = newChannel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+            if (hasQueuedMessages()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            logger.severe("Error registering channel: " + e.getMessage());
+            fail(newChannel, "Error registering channel");
+        }
+    }
+
+
+    /**
+     * Read and dispatch as many messages as are available, called on the
+     * loop thread.
+     */
+    void handleRead() {
+        SocketChannel current = (SocketChannel) key.channel();
+        try {
+            int count;
+            do {
+                count = decoder.readFrom(current);
+                if (count < 0) {
+                    throw new EOFException("Connection closed by olad");
+                }
+                recordBytesReceived(count);
+                while (decoder.next()) {
+                    handleNewMessage(decoder);
+                }
+            } while (count > 0 && isConnected());
+        } catch (IOException e) {
+            if (isConnected()) {
+                logger.severe("Error reading rpc message: " + e.getMessage());
+            }
+            fail(current, "Connection to olad lost");
+        }
+    }
+
+
+    /**
+     * Write queued messages until the socket buffer is full or the queue is
+     * empty, called on the loop thread.
+     */
+    void handleWrite() {
+        SocketChannel current = (SocketChannel) key.channel();
+        try {
+            while (true) {
+                if (currentWrite == null) {
+                    currentWrite = pollQueuedMessage();
+                    if (currentWrite == null) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        writeScheduled.set(false);
+                        // a message may have been queued before the flag was
+                        // cleared, in which case no wakeup was scheduled.
+                        if (!hasQueuedMessages() || !writeScheduled.compareAndSet(false, true)) {
+                            return;
+                        }
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        continue;
+                    }
+                    dump("Sending", currentWrite, currentWrite.limit());
+                }
+
+                recordBytesSent(current.write(currentWrite));
+                if (currentWrite.hasRemaining()) {
+                    // socket buffer full, wait until it is writable again
+                    return;
+                }
+                releaseBuffer(currentWrite);
+                currentWrite = null;
+            }
+        } catch (IOException e) {
+            if (isConnected()) {
+                logger.severe("Error writing rpc message: " + e.getMessage());
+            }
+            fail(current, "Connection to olad lost");
+        }
+    }
+
+
+    /**
+     * Handle a failed connection, called on the loop thread.
+     */
+    private void fail(SocketChannel oldChannel, String reason) {
+        if (!oldChannel.isOpen()) {
+            return;
+        }
+        // close the socket first, channelClosed() may start a reconnect
+        closeSocket(oldChannel);
+        if (oldChannel == socketChannel) {
+            channelClosed(reason);
+        }
+    }
+
+
+    /**
+     * Close a connection's socket, called on the loop thread.
+     */
+    private void closeSocket(SocketChannel oldChannel) {
+        if (key != null && key.channel() == oldChannel) {
+            key.cancel();
+            key = null;
+            if (currentWrite != null) {
+                releaseBuffer(currentWrite);
+                currentWrite = null;
+            }
+            writeScheduled.set(false);
+        }
+        try {
+            oldChannel.close();
+        } catch (IOException e) {
+            logger.warning("Error closing socket. " + e.getMessage());
+        }
+    }
+}
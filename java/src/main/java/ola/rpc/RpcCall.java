@@ -0,0 +1,155 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola.rpc;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+
+/**
+ * An outstanding request which is waiting for a response from olad.
+ *
+ * A call completes exactly once, either with a response or with a failure.
+ */
+class RpcCall {
+
+    private final int id;
+
+    private final String methodName;
+
+    private final RpcController controller;
+
+    private final Message responsePrototype;
+
+    private final RpcCallback<Message> done;
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    private final AtomicBoolean completed = new AtomicBoolean(false);
+
+    private final long startTime = System.nanoTime();
+
+    private volatile Future<?> timer;
+
+
+    RpcCall(int id, String methodName, RpcController controller,
+            Message responsePrototype, RpcCallback<Message> done) {
+        this.id = id;
+        this.methodName = methodName;
+        this.controller = controller;
+        this.responsePrototype = responsePrototype;
+        this.done = done;
+    }
+
+
+    int getId() {
+        return id;
+    }
+
+
+    String getMethodName() {
+        return methodName;
+    }
+
+
+    /**
+     * @return nanoseconds since the call was created.
+     */
+    long getElapsedTime() {
+        return System.nanoTime() - startTime;
+    }
+
+
+    /**
+     * Set the timer which fails the call if it takes too long. The timer is
+     * cancelled once the call completes.
+     */
+    void setTimer(Future<?> timer) {
+        this.timer = timer;
+        if (completed.get()) {
+            timer.cancel(false);
+        }
+    }
+
+
+    private void cancelTimer() {
+        Future<?> current = timer;
+        if (current != null) {
+            current.cancel(false);
+        }
+    }
+
+
+    /**
+     * @return an instance of the response type, used to parse the response.
+     */
+    Message getResponsePrototype() {
+        return responsePrototype;
+    }
+
+
+    /**
+     * Complete the call with the response received from olad.
+     *
+     * @param response the parsed response
+     */
+    void complete(Message response) {
+        if (!completed.compareAndSet(false, true)) {
+            return;
+        }
+        cancelTimer();
+        try {
+            if (done != null) {
+                done.run(response);
+            }
+        } finally {
+            latch.countDown();
+        }
+    }
+
+
+    /**
+     * Fail the call.
+     *
+     * @param reason error text reported through the controller.
+     */
+    void fail(String reason) {
+        if (!completed.compareAndSet(false, true)) {
+            return;
+        }
+        cancelTimer();
+        try {
+            controller.setFailed(reason);
+            if (done != null) {
+                done.run(null);
+            }
+        } finally {
+            latch.countDown();
+        }
+    }
+
+
+    /**
+     * Block until the call has completed.
+     */
+    void await() throws InterruptedException {
+        latch.await();
+    }
+}
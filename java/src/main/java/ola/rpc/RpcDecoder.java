@@ -0,0 +1,356 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola.rpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+/**
+ * Splits the bytes read from a connection to olad into rpc messages.
+ *
+ * Bytes are read into a single reusable buffer, however they are split up
+ * by the connection, and each complete message is decoded in place. Once
+ * every buffered byte has been consumed the next read starts at the front
+ * of the buffer again; a partial message left at the end is moved to the
+ * front only when there is no room to finish it, and the buffer only grows
+ * for messages larger than it.
+ *
+ * The RpcMessage fields are decoded without building an RpcMessage, and
+ * the payload is parsed directly from the buffer into the request or
+ * response type, so no per message arrays are allocated. The current
+ * message is only valid until the next read.
+ */
+public class RpcDecoder {
+
+    private static final int INITIAL_SIZE = 4096;
+
+    private static final int HEADER_SIZE = AbstractRpcChannel.HEADER_SIZE;
+
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    private static final int TYPE_TAG = 1 << 3;
+
+    private static final int ID_TAG = 2 << 3;
+
+    private static final int NAME_TAG = (3 << 3) | 2;
+
+    private static final int BUFFER_TAG = (4 << 3) | 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private byte[] buffer;
+
+    /* wraps buffer, for reads from channels */
+    private ByteBuffer view;
+
+    private int readIndex = 0;
+
+    private int writeIndex = 0;
+
+    /* the current message */
+    private int messageOffset;
+
+    private int messageLength;
+
+    private Rpc.Type type;
+
+    private int id;
+
+    private String name;
+
+    private int payloadOffset;
+
+    private int payloadLength;
+
+
+    public RpcDecoder() {
+        this(INITIAL_SIZE);
+    }
+
+
+    /**
+     * @param initialSize the initial buffer size, it grows as needed.
+     */
+    public RpcDecoder(int initialSize) {
+        setBuffer(new byte[Math.max(initialSize, HEADER_SIZE)]);
+    }
+
+
+    /**
+     * Read whatever is available from a stream, blocking until at least one
+     * byte arrives.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream.
+     */
+    public int readFrom(InputStream input) throws IOException {
+        prepareWrite();
+        int count = input.read(buffer, writeIndex, buffer.length - writeIndex);
+        if (count > 0) {
+            writeIndex += count;
+        }
+        return count;
+    }
+
+
+    /**
+     * Read whatever is available from a channel.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream.
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        prepareWrite();
+        view.limit(buffer.length);
+        view.position(writeIndex);
+        int count = channel.read(view);
+        if (count > 0) {
+            writeIndex += count;
+        }
+        return count;
+    }
+
+
+    /**
+     * Add bytes which have already been read.
+     */
+    public void write(byte[] data, int offset, int length) {
+        while (length > 0) {
+            prepareWrite();
+            int count = Math.min(length, buffer.length - writeIndex);
+            System.arraycopy(data, offset, buffer, writeIndex, count);
+            writeIndex += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+
+    /**
+     * Decode the next complete message, if there is one.
+     *
+     * @return true if a message was decoded, false if more bytes are needed.
+     * @throws InvalidProtocolBufferException if the message is corrupt.
+     */
+    public boolean next() throws InvalidProtocolBufferException {
+        int size = bufferedMessageSize();
+        if (size < 0 || writeIndex - readIndex < HEADER_SIZE + size) {
+            return false;
+        }
+
+        messageOffset = readIndex + HEADER_SIZE;
+        messageLength = size;
+        readIndex += HEADER_SIZE + size;
+        decode();
+        return true;
+    }
+
+
+    /**
+     * @return the type of the current message, or null if it isn't one
+     *         this client knows.
+     */
+    public Rpc.Type getType() {
+        return type;
+    }
+
+
+    /**
+     * @return the id of the current message.
+     */
+    public int getId() {
+        return id;
+    }
+
+
+    /**
+     * @return the method name of the current message, or null if it has
+     *         none.
+     */
+    public String getName() {
+        return name;
+    }
+
+
+    /**
+     * @return the size of the current message's payload.
+     */
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+
+    /**
+     * Parse the payload of the current message.
+     *
+     * @param prototype an instance of the payload type
+     * @return the payload
+     * @throws InvalidProtocolBufferException if the payload isn't a valid
+     *         message of that type.
+     */
+    public Message parsePayload(Message prototype) throws InvalidProtocolBufferException {
+        return prototype.newBuilderForType().mergeFrom(buffer, payloadOffset, payloadLength).build();
+    }
+
+
+    /**
+     * @return the payload of the current message as text, used for errors.
+     */
+    public String getPayloadAsString() {
+        return new String(buffer, payloadOffset, payloadLength, UTF8);
+    }
+
+
+    /**
+     * @return a buffer holding the encoded current message, without the
+     *         header.
+     */
+    ByteBuffer getMessage() {
+        return ByteBuffer.wrap(buffer, messageOffset, messageLength).slice();
+    }
+
+
+    /**
+     * @return the number of bytes buffered which haven't been decoded.
+     */
+    public int getBufferedBytes() {
+        return writeIndex - readIndex;
+    }
+
+
+    /**
+     * @return the size of the buffer.
+     */
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+
+    /**
+     * @return the size from the header of the next message, or -1 if the
+     *         header hasn't been read yet.
+     */
+    private int bufferedMessageSize() {
+        if (writeIndex - readIndex < HEADER_SIZE) {
+            return -1;
+        }
+        int i = readIndex;
+        int header;
+        if (LITTLE_ENDIAN) {
+            header = (buffer[i] & 0xff) | (buffer[i + 1] & 0xff) << 8
+                    | (buffer[i + 2] & 0xff) << 16 | (buffer[i + 3] & 0xff) << 24;
+        } else {
+            header = (buffer[i] & 0xff) << 24 | (buffer[i + 1] & 0xff) << 16
+                    | (buffer[i + 2] & 0xff) << 8 | (buffer[i + 3] & 0xff);
+        }
+        return AbstractRpcChannel.decodeSize(header);
+    }
+
+
+    /**
+     * Make room to read into. The current message may be overwritten.
+     */
+    private void prepareWrite() {
+        if (readIndex == writeIndex) {
+            readIndex = 0;
+            writeIndex = 0;
+        }
+
+        int size = bufferedMessageSize();
+        int needed = size < 0 ? HEADER_SIZE : HEADER_SIZE + size;
+        boolean full = writeIndex == buffer.length;
+        if (!full && buffer.length - readIndex >= needed) {
+            return;
+        }
+
+        byte[] target = buffer;
+        if (buffer.length < needed || (full && readIndex == 0)) {
+            target = new byte[Math.max(needed, buffer.length * 2)];
+        }
+        int buffered = writeIndex - readIndex;
+        System.arraycopy(buffer, readIndex, target, 0, buffered);
+        readIndex = 0;
+        writeIndex = buffered;
+        if (target != buffer) {
+            setBuffer(target);
+        }
+    }
+
+
+    private void setBuffer(byte[] buffer) {
+        this.buffer = buffer;
+        this.view = ByteBuffer.wrap(buffer);
+    }
+
+
+    /**
+     * Decode the fields of the current RpcMessage.
+     */
+    private void decode() throws InvalidProtocolBufferException {
+        CodedInputStream input = CodedInputStream.newInstance(buffer, messageOffset, messageLength);
+        boolean hasType = false;
+        boolean hasId = false;
+        type = null;
+        id = 0;
+        name = null;
+        payloadOffset = messageOffset;
+        payloadLength = 0;
+
+        try {
+            while (true) {
+                int tag = input.readTag();
+                switch (tag) {
+                    case 0:
+                        if (!hasType || !hasId) {
+                            throw new InvalidProtocolBufferException("RpcMessage is missing required fields");
+                        }
+                        return;
+                    case TYPE_TAG:
+                        type = Rpc.Type.valueOf(input.readEnum());
+                        hasType = true;
+                        break;
+                    case ID_TAG:
+                        id = input.readUInt32();
+                        hasId = true;
+                        break;
+                    case NAME_TAG:
+                        name = input.readString();
+                        break;
+                    case BUFFER_TAG:
+                        payloadLength = input.readRawVarint32();
+                        payloadOffset = messageOffset + input.getTotalBytesRead();
+                        input.skipRawBytes(payloadLength);
+                        break;
+                    default:
+                        if (!input.skipField(tag)) {
+                            return;
+                        }
+                        break;
+                }
+            }
+        } catch (InvalidProtocolBufferException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new InvalidProtocolBufferException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola.rpc;
+
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * Helpers to write protobuf fields directly into a ByteBuffer without
+ * allocating intermediate messages.
+ */
+public final class RpcEncoder {
+
+    private static final int WIRETYPE_VARINT = 0;
+
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+
+    private RpcEncoder() {
+    }
+
+
+    /**
+     * @return the encoded size of an int32 field.
+     */
+    public static int int32FieldSize(int field, int value) {
+        return CodedOutputStream.computeInt32Size(field, value);
+    }
+
+
+    /**
+     * @return the encoded size of a uint32 field.
+     */
+    public static int uint32FieldSize(int field, int value) {
+        return CodedOutputStream.computeUInt32Size(field, value);
+    }
+
+
+    /**
+     * @return the encoded size of a bytes field holding length bytes.
+     */
+    public static int bytesFieldSize(int field, int length) {
+        return CodedOutputStream.computeTagSize(field)
+                + CodedOutputStream.computeRawVarint32Size(length) + length;
+    }
+
+
+    /**
+     * Write an int32 field. Negative values are sign extended to 64 bits, as
+     * protobuf does.
+     */
+    public static void writeInt32Field(ByteBuffer buffer, int field, int value) {
+        writeRawVarint32(buffer, (field << 3) | WIRETYPE_VARINT);
+        if (value >= 0) {
+            writeRawVarint32(buffer, value);
+        } else {
+            writeRawVarint64(buffer, value);
+        }
+    }
+
+
+    /**
+     * Write a uint32 field.
+     */
+    public static void writeUInt32Field(ByteBuffer buffer, int field, int value) {
+        writeRawVarint32(buffer, (field << 3) | WIRETYPE_VARINT);
+        writeRawVarint32(buffer, value);
+    }
+
+
+    /**
+     * Write the tag and length of a bytes field. The caller writes the
+     * length bytes of content afterwards.
+     */
+    public static void writeBytesFieldHeader(ByteBuffer buffer, int field, int length) {
+        writeRawVarint32(buffer, (field << 3) | WIRETYPE_LENGTH_DELIMITED);
+        writeRawVarint32(buffer, length);
+    }
+
+
+    /**
+     * Write a bytes field.
+     */
+    public static void writeBytesField(ByteBuffer buffer, int field, byte[] data, int offset, int length) {
+        writeBytesFieldHeader(buffer, field, length);
+        buffer.put(data, offset, length);
+    }
+
+
+    private static void writeRawVarint32(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+
+    private static void writeRawVarint64(ByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
@@ -0,0 +1,166 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola.rpc;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * A single thread which performs the I/O for any number of
+ * NioRpcChannels using a Selector.
+ *
+ * Callbacks for all channels on the loop run on the loop thread, so they
+ * must not block or make blocking calls on any of the loop's channels.
+ */
+public class RpcEventLoop {
+
+    private static Logger logger = Logger.getLogger(RpcEventLoop.class.getName());
+
+    private final Selector selector;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private Thread thread;
+
+    private volatile boolean running = false;
+
+
+    /**
+     * Create a new event loop. Call start() before connecting channels.
+     *
+     * @throws IOException if the selector can't be opened.
+     */
+    public RpcEventLoop() throws IOException {
+        selector = Selector.open();
+    }
+
+
+    /**
+     * Start the loop thread.
+     */
+    public synchronized void start() {
+        if (running) {
+            logger.warning("Event loop already started.");
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, "ola-rpc-event-loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Stop the loop thread and close all channels registered with it.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * @return true if called from the loop thread.
+     */
+    public boolean inLoopThread() {
+        return Thread.currentThread() == thread;
+    }
+
+
+    /**
+     * Run a task on the loop thread.
+     */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+
+    Selector getSelector() {
+        return selector;
+    }
+
+
+    private void loop() {
+        try {
+            while (running) {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioRpcChannel channel = (NioRpcChannel) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        channel.handleRead();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        channel.handleWrite();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // shutting down
+        } catch (IOException e) {
+            logger.severe("Error in event loop: " + e.getMessage());
+        }
+
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            ((NioRpcChannel) key.attachment()).close();
+        }
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.warning("Error closing selector. " + e.getMessage());
+        }
+    }
+
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.warning("Event loop task failed: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola.rpc;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects call counts, latencies, failures, traffic and connection events
+ * from one or more channels, and publishes them over JMX.
+ *
+ * Install it with setMetricsListener() on the channels to measure.
+ * Latencies are recorded per method and overall in LatencyHistograms.
+ * Recording never blocks or allocates, apart from the first call to each
+ * method.
+ */
+public class RpcMetrics implements RpcMetricsListener, RpcMetricsMBean {
+
+    private final ConcurrentMap<String, MethodStats> methods = new ConcurrentHashMap<String, MethodStats>();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final AtomicLong calls = new AtomicLong(0);
+
+    private final AtomicLong completed = new AtomicLong(0);
+
+    private final AtomicLong failedResponses = new AtomicLong(0);
+
+    private final AtomicLong notImplemented = new AtomicLong(0);
+
+    private final AtomicLong cancelledResponses = new AtomicLong(0);
+
+    private final AtomicLong cancelledRequests = new AtomicLong(0);
+
+    private final AtomicLong localFailures = new AtomicLong(0);
+
+    private final AtomicLong streamed = new AtomicLong(0);
+
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    private final AtomicLong bytesSent = new AtomicLong(0);
+
+    private final AtomicLong bytesReceived = new AtomicLong(0);
+
+    private final AtomicLong connects = new AtomicLong(0);
+
+    private final AtomicLong reconnects = new AtomicLong(0);
+
+    private final AtomicLong disconnects = new AtomicLong(0);
+
+    private ObjectName objectName;
+
+
+    /**
+     * Register with the platform MBean server as
+     * ola.rpc:type=RpcMetrics,name=<name>.
+     *
+     * @param name distinguishes this instance from others in the process
+     */
+    public synchronized void registerMBean(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        objectName = new ObjectName("ola.rpc:type=RpcMetrics,name=" + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+    }
+
+
+    /**
+     * Remove the MBean registered by registerMBean().
+     */
+    public synchronized void unregisterMBean() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+
+    public void callStarted(String method) {
+        calls.incrementAndGet();
+        getStats(method).calls.incrementAndGet();
+    }
+
+
+    public void callCompleted(String method, long latencyNanos) {
+        completed.incrementAndGet();
+        latency.record(latencyNanos);
+        getStats(method).latency.record(latencyNanos);
+    }
+
+
+    public void callFailed(String method, Rpc.Type type, long latencyNanos) {
+        completed.incrementAndGet();
+        if (type == null) {
+            localFailures.incrementAndGet();
+        } else if (type == Rpc.Type.RESPONSE_NOT_IMPLEMENTED) {
+            notImplemented.incrementAndGet();
+        } else if (type == Rpc.Type.RESPONSE_CANCEL) {
+            cancelledResponses.incrementAndGet();
+        } else if (type == Rpc.Type.REQUEST_CANCEL) {
+            cancelledRequests.incrementAndGet();
+        } else {
+            failedResponses.incrementAndGet();
+        }
+        getStats(method).failures.incrementAndGet();
+    }
+
+
+    public void messageStreamed(String method) {
+        streamed.incrementAndGet();
+        getStats(method).calls.incrementAndGet();
+    }
+
+
+    public void messageDropped(String method) {
+        dropped.incrementAndGet();
+        getStats(method).failures.incrementAndGet();
+    }
+
+
+    public void bytesSent(int count) {
+        bytesSent.addAndGet(count);
+    }
+
+
+    public void bytesReceived(int count) {
+        bytesReceived.addAndGet(count);
+    }
+
+
+    public void connected(boolean reconnect) {
+        connects.incrementAndGet();
+        if (reconnect) {
+            reconnects.incrementAndGet();
+        }
+    }
+
+
+    public void disconnected(String reason) {
+        disconnects.incrementAndGet();
+    }
+
+
+    /**
+     * @return the overall latency histogram, in nanoseconds.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+
+    /**
+     * @return the latency histogram for a method, in nanoseconds, or null if
+     *         the method hasn't been called.
+     */
+    public LatencyHistogram getLatency(String method) {
+        MethodStats stats = methods.get(method);
+        return stats == null ? null : stats.latency;
+    }
+
+
+    public long getCallCount() {
+        return calls.get();
+    }
+
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+
+    public long getInFlightCount() {
+        return calls.get() - completed.get();
+    }
+
+
+    public long getFailedResponseCount() {
+        return failedResponses.get();
+    }
+
+
+    public long getNotImplementedCount() {
+        return notImplemented.get();
+    }
+
+
+    public long getCancelledResponseCount() {
+        return cancelledResponses.get();
+    }
+
+
+    public long getCancelledRequestCount() {
+        return cancelledRequests.get();
+    }
+
+
+    public long getLocalFailureCount() {
+        return localFailures.get();
+    }
+
+
+    public long getStreamedCount() {
+        return streamed.get();
+    }
+
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+
+    public long getConnectCount() {
+        return connects.get();
+    }
+
+
+    public long getReconnectCount() {
+        return reconnects.get();
+    }
+
+
+    public long getDisconnectCount() {
+        return disconnects.get();
+    }
+
+
+    public double getMeanLatencyMicros() {
+        return latency.getMean() / 1000;
+    }
+
+
+    public long getLatencyP50Micros() {
+        return toMicros(latency.getValueAtPercentile(50));
+    }
+
+
+    public long getLatencyP99Micros() {
+        return toMicros(latency.getValueAtPercentile(99));
+    }
+
+
+    public long getLatencyP999Micros() {
+        return toMicros(latency.getValueAtPercentile(99.9));
+    }
+
+
+    public long getMaxLatencyMicros() {
+        return toMicros(latency.getMax());
+    }
+
+
+    public String[] getMethods() {
+        return methods.keySet().toArray(new String[0]);
+    }
+
+
+    public long getMethodCallCount(String method) {
+        MethodStats stats = methods.get(method);
+        return stats == null ? 0 : stats.calls.get();
+    }
+
+
+    public long getMethodFailureCount(String method) {
+        MethodStats stats = methods.get(method);
+        return stats == null ? 0 : stats.failures.get();
+    }
+
+
+    public long getMethodLatencyMicros(String method, double percentile) {
+        MethodStats stats = methods.get(method);
+        return stats == null ? 0 : toMicros(stats.latency.getValueAtPercentile(percentile));
+    }
+
+
+    /**
+     * Zero all counters and histograms. Calls in flight when this is called
+     * make the in flight count negative until they complete.
+     */
+    public void reset() {
+        methods.clear();
+        latency.reset();
+        for (AtomicLong counter : new AtomicLong[] {calls, completed, failedResponses, notImplemented,
+                cancelledResponses, cancelledRequests, localFailures, streamed, dropped, bytesSent, bytesReceived,
+                connects, reconnects, disconnects}) {
+            counter.set(0);
+        }
+    }
+
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+
+    private MethodStats getStats(String method) {
+        MethodStats stats = methods.get(method);
+        if (stats == null) {
+            MethodStats newStats = new MethodStats();
+            stats = methods.putIfAbsent(method, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+
+    /**
+     * Counters for one method.
+     */
+    private static class MethodStats {
+
+        final AtomicLong calls = new AtomicLong(0);
+
+        final AtomicLong failures = new AtomicLong(0);
+
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+}
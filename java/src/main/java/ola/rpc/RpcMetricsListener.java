@@ -0,0 +1,102 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola.rpc;
+
+/**
+ * Receives events from an RPC channel, for metrics.
+ *
+ * Events are delivered on whichever thread caused them: the calling thread
+ * for sends, and the channel's I/O thread for responses, reads and writes.
+ * Implementations must be thread safe and must not block.
+ *
+ * @see RpcMetrics
+ */
+public interface RpcMetricsListener {
+
+    /**
+     * A request which expects a response has been queued.
+     *
+     * @param method the name of the method
+     */
+    void callStarted(String method);
+
+
+    /**
+     * A response has been received.
+     *
+     * @param method the name of the method
+     * @param latencyNanos time since the call was started
+     */
+    void callCompleted(String method, long latencyNanos);
+
+
+    /**
+     * A call failed.
+     *
+     * @param method the name of the method
+     * @param type the type of the response from olad, RESPONSE_FAILED,
+     *        RESPONSE_NOT_IMPLEMENTED or RESPONSE_CANCEL; REQUEST_CANCEL if
+     *        the client gave up on the call because it timed out or was
+     *        cancelled; or null if the call failed in the client for
+     *        another reason, for example because the connection was lost.
+     * @param latencyNanos time since the call was started
+     */
+    void callFailed(String method, Rpc.Type type, long latencyNanos);
+
+
+    /**
+     * A streamed request, which has no response, has been queued.
+     *
+     * @param method the name of the method
+     */
+    void messageStreamed(String method);
+
+
+    /**
+     * A streamed request was dropped because the write queue was full.
+     *
+     * @param method the name of the method
+     */
+    void messageDropped(String method);
+
+
+    /**
+     * Bytes have been written to the connection.
+     */
+    void bytesSent(int count);
+
+
+    /**
+     * Bytes have been read from the connection.
+     */
+    void bytesReceived(int count);
+
+
+    /**
+     * The channel has connected to olad.
+     *
+     * @param reconnect true if the channel had been connected before
+     */
+    void connected(boolean reconnect);
+
+
+    /**
+     * The channel has lost its connection to olad or was closed.
+     *
+     * @param reason why the connection closed
+     */
+    void disconnected(String reason);
+}
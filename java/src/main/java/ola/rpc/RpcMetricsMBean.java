@@ -0,0 +1,72 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola.rpc;
+
+/**
+ * JMX view of RpcMetrics. Latencies are in microseconds.
+ */
+public interface RpcMetricsMBean {
+
+    long getCallCount();
+
+    long getCompletedCount();
+
+    long getInFlightCount();
+
+    long getFailedResponseCount();
+
+    long getNotImplementedCount();
+
+    long getCancelledResponseCount();
+
+    long getCancelledRequestCount();
+
+    long getLocalFailureCount();
+
+    long getStreamedCount();
+
+    long getDroppedCount();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getConnectCount();
+
+    long getReconnectCount();
+
+    long getDisconnectCount();
+
+    double getMeanLatencyMicros();
+
+    long getLatencyP50Micros();
+
+    long getLatencyP99Micros();
+
+    long getLatencyP999Micros();
+
+    long getMaxLatencyMicros();
+
+    String[] getMethods();
+
+    long getMethodCallCount(String method);
+
+    long getMethodFailureCount(String method);
+
+    long getMethodLatencyMicros(String method, double percentile);
+
+    void reset();
+}
@@ -0,0 +1,41 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola.rpc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A request body which serializes itself straight into the channel's write
+ * buffer, rather than being built into a Message first.
+ *
+ * The bytes written must be the protobuf encoding of the request message
+ * for the method being called.
+ */
+public interface RpcPayload {
+
+    /**
+     * @return the number of bytes writeTo() will write.
+     */
+    int getSerializedSize();
+
+    /**
+     * Write the encoded request at the buffer's current position.
+     *
+     * @param buffer destination, with at least getSerializedSize() bytes
+     *        remaining.
+     */
+    void writeTo(ByteBuffer buffer);
+}
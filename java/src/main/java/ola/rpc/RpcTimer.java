@@ -0,0 +1,67 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola.rpc;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the short timed tasks of all channels and clients on one daemon
+ * thread: call deadlines, reconnect delays and the waits between RDM
+ * requests. Tasks must not block, anything slow should be handed to
+ * another executor.
+ *
+ * Cancelled tasks are removed straight away, so most timers, which are
+ * cancelled when their call completes, don't build up in the queue.
+ */
+public final class RpcTimer {
+
+    private RpcTimer() {
+    }
+
+
+    /**
+     * Run a task once after a delay.
+     *
+     * @return future which can be used to cancel the task.
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return Holder.INSTANCE.schedule(task, delay, unit);
+    }
+
+
+    /**
+     * Creates the thread on first use.
+     */
+    private static class Holder {
+
+        static final ScheduledThreadPoolExecutor INSTANCE = createTimer();
+
+        private static ScheduledThreadPoolExecutor createTimer() {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ola-rpc-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            timer.setRemoveOnCancelPolicy(true);
+            return timer;
+        }
+    }
+}
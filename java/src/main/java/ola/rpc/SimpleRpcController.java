@@ -15,18 +15,57 @@
  *************************************************************************/
 package ola.rpc;
 
+import java.util.concurrent.TimeUnit;
+
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcController;
 
 /**
  * Simple Rpc Controller implementation.
+ *
+ * A call made with this controller can be given a timeout, after which it
+ * fails, and can be cancelled with startCancel(). In both cases the channel
+ * sends a REQUEST_CANCEL to olad and fails the call straight away.
+ *
+ * A controller belongs to one call at a time. Its state is set on the
+ * channel's I/O or timer thread and read by the caller, so the fields are
+ * volatile; a controller may be reset and reused once its call is done.
  */
 public class SimpleRpcController implements RpcController {
 
-    private boolean failed = false;
-    private boolean cancelled = false;
-    private String error = null;
-    private RpcCallback<Object> callback = null;
+    private volatile boolean failed = false;
+    private volatile boolean cancelled = false;
+    private volatile String error = null;
+    private volatile RpcCallback<Object> callback = null;
+    private volatile long timeoutNanos = 0;
+    private volatile Runnable cancelHandler = null;
+
+    /**
+     * Fail the call if no response has arrived after a time. This overrides
+     * the channel's default timeout.
+     *
+     * @param timeout the timeout, 0 to use the channel's default
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Invalid timeout " + timeout);
+        }
+        timeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * @return the timeout in nanoseconds, 0 if none is set.
+     */
+    public long getTimeoutNanos() {
+        return timeoutNanos;
+    }
+
+    /**
+     * Set by the channel to cancel the call in progress.
+     */
+    void setCancelHandler(Runnable handler) {
+        cancelHandler = handler;
+    }
 
     /* (non-Javadoc)
      * @see com.google.protobuf.RpcController#errorText()
@@ -64,14 +103,16 @@ public class SimpleRpcController implements RpcController {
         cancelled = false;
         error = null;
         callback = null;
+        timeoutNanos = 0;
+        cancelHandler = null;
     }
 
     /* (non-Javadoc)
      * @see com.google.protobuf.RpcController#setFailed(java.lang.String)
      */
     public void setFailed(String reason) {
-        failed = true;
         error = reason;
+        failed = true;
     }
 
     /* (non-Javadoc)
@@ -79,6 +120,13 @@ public class SimpleRpcController implements RpcController {
      */
     public void startCancel() {
         cancelled = true;
-        callback.run(null);
+        Runnable handler = cancelHandler;
+        if (handler != null) {
+            handler.run();
+        }
+        RpcCallback<Object> notify = callback;
+        if (notify != null) {
+            notify.run(null);
+        }
     }
 }
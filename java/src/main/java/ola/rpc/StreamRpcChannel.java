@@ -15,32 +15,30 @@
  *************************************************************************/
 package ola.rpc;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.logging.Level;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
-import ola.proto.Ola.STREAMING_NO_RESPONSE;
-import ola.rpc.Rpc.RpcMessage;
-
-import com.google.protobuf.Descriptors.MethodDescriptor;
-import com.google.protobuf.DynamicMessage;
-import com.google.protobuf.Message;
-import com.google.protobuf.RpcCallback;
-import com.google.protobuf.RpcChannel;
-import com.google.protobuf.RpcController;
-
 /**
- * Basic RPC Channel implementation.  All calls are done
- * synchronously.
+ * RPC Channel over a blocking socket.
+ *
+ * Responses and requests from olad are read by a dedicated reader thread,
+ * which is also where callbacks run. Queued messages are written by a
+ * writer thread, which only flushes the stream once the queue is empty so
+ * messages queued together go out in as few writes as possible. Each
+ * connection has its own threads, so threads left over from a lost
+ * connection can't interfere with a new one.
  *
- * The RPC Channel is hard coded to localhost 9010 where the
+ * By default the RPC Channel connects to localhost 9010 where the
  * olad daemon is running.
  */
-public class StreamRpcChannel implements RpcChannel {
+public class StreamRpcChannel extends AbstractRpcChannel {
 
     private static Logger logger = Logger.getLogger(StreamRpcChannel.class.getName());
 
@@ -48,19 +46,11 @@ public class StreamRpcChannel implements RpcChannel {
 
     public static final String HOST = "localhost";
 
-    private static final int PROTOCOL_VERSION = 1;
-
-    private static final int VERSION_MASK = 0xf0000000;
-
-    private static final int SIZE_MASK = 0x0fffffff;
+    private final String host;
 
-    private Socket socket = null;
+    private final int port;
 
-    private BufferedOutputStream bos;
-
-    private BufferedInputStream bis;
-
-    private int sequence = 0;
+    private volatile Connection connection;
 
 
     /**
@@ -68,156 +58,185 @@ public class StreamRpcChannel implements RpcChannel {
      * @throws Exception
      */
     public StreamRpcChannel() throws Exception {
-        connect();
+        this(HOST, PORT);
     }
 
 
     /**
-     * Open connection to olad daemon.
+     * Create new Rpc Channel Connection to an olad on another host or port.
      *
+     * @param host the host olad is running on
+     * @param port the rpc port of olad
      * @throws Exception
      */
-    public void connect() throws Exception {
+    public StreamRpcChannel(String host, int port) throws Exception {
+        super(false);
+        this.host = host;
+        this.port = port;
+        connect();
+    }
 
-        if (socket != null && socket.isConnected()) {
-            logger.warning("Socket already connected.");
-            return;
-        }
 
+    /* (non-Javadoc)
+     * @see ola.rpc.AbstractRpcChannel#openConnection()
+     */
+    protected void openConnection() throws IOException {
+
+        Socket socket = new Socket();
         try {
-            socket = new Socket(HOST, PORT);
-            bos = new BufferedOutputStream(socket.getOutputStream());
-            bis = new BufferedInputStream(socket.getInputStream());
-        } catch (Exception e) {
-            logger.severe("Error connecting. Make sure the olad daemon is running on port 9010");
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            logger.severe("Error connecting. Make sure the olad daemon is running on " + host + ":" + port);
+            socket.close();
             throw e;
         }
+
+        Connection newConnection = new Connection(socket);
+        connection = newConnection;
+        channelOpened();
+        newConnection.start();
     }
 
 
-    /**
-     * Close Rpc Channel.
+    /* (non-Javadoc)
+     * @see ola.rpc.AbstractRpcChannel#closeConnection()
      */
-    public void close() {
-
-        if (socket != null && socket.isConnected()) {
-            try {
-                socket.close();
-            } catch (Exception e) {
-                logger.warning("Error closing socket. " + e.getMessage());
-            }
+    protected void closeConnection() {
+        Connection current = connection;
+        if (current != null) {
+            current.close("Channel closed");
         }
     }
 
 
     /* (non-Javadoc)
-     * @see com.google.protobuf.RpcChannel#callMethod(com.google.protobuf.Descriptors.MethodDescriptor, com.google.protobuf.RpcController, com.google.protobuf.Message, com.google.protobuf.Message, com.google.protobuf.RpcCallback)
+     * @see ola.rpc.AbstractRpcChannel#messageQueued()
      */
-    public void callMethod(MethodDescriptor method, RpcController controller,
-            Message requestMessage, Message responseMessage, RpcCallback<Message> done) {
-
-        int messageId = sequence++;
-
-        RpcMessage message = RpcMessage.newBuilder()
-                .setType(Rpc.Type.REQUEST)
-                .setId(messageId)
-                .setName(method.getName())
-                .setBuffer(requestMessage.toByteString())
-                .build();
+    protected void messageQueued() {
+        // the writer thread is waiting on the queue
+    }
 
-        try {
 
-            sendMessage(message);
-            if (responseMessage.getDescriptorForType().getName().equals("STREAMING_NO_RESPONSE")) {
-                // don't wait for response on streaming messages..
-                return;
-            }
+    /**
+     * A socket to olad and the threads which read and write it.
+     */
+    private class Connection {
 
-            RpcMessage response = readMessage();
+        private final Socket socket;
 
-            if (response.getType().equals(Rpc.Type.RESPONSE)) {
-                if (response.getId() != messageId) {
-                    controller.setFailed("Received message with id " + response.getId() + " , but was expecting " + messageId);
-                } else {
-                    responseMessage = DynamicMessage.parseFrom(responseMessage.getDescriptorForType(), response.getBuffer());
-                    if (done != null) {
-                        done.run(responseMessage);
-                    }
-                }
-            } else {
-                controller.setFailed("No valid response received !");
-            }
+        private final InputStream input;
 
+        private final BufferedOutputStream output;
 
-        } catch (Exception e) {
+        private final RpcDecoder decoder = new RpcDecoder();
 
-            logger.severe("Error sending rpc message: " + e.getMessage());
-            controller.setFailed(e.getMessage());
-            done.run(null);
-        }
+        private volatile Thread readerThread;
 
+        private volatile Thread writerThread;
 
-    }
+        private final AtomicBoolean running = new AtomicBoolean(true);
 
 
-    /**
-     * Send rpc message to olad.
-     *
-     * @param msg RpcMessage
-     * @throws Exception
-     */
-    private void sendMessage(RpcMessage msg) throws Exception {
-
-        byte[] data = msg.toByteArray();
-
-        int headerContent = (PROTOCOL_VERSION << 28) & VERSION_MASK;
-        headerContent |= data.length & SIZE_MASK;
-        byte[] header = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder()).putInt(headerContent).array();
-
-        if (logger.isLoggable(Level.FINEST)) {
-            logger.info("Sending header " + header.length + " bytes");
-            for (byte b : header) {
-                System.out.format("0x%x ", b);
-             }
-            logger.info("Sending data " + data.length + " bytes");
-            for (byte b : data) {
-                 System.out.format("0x%x ", b);
-              }
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            input = socket.getInputStream();
+            output = new BufferedOutputStream(socket.getOutputStream());
         }
 
-        bos.write(header);
-        bos.write(data);
-        bos.flush();
-    }
 
+        void start() {
+            readerThread = new Thread(new Runnable() {
+                public void run() {
+                    readLoop();
+                }
+            }, "ola-rpc-reader");
+            readerThread.setDaemon(true);
+            readerThread.start();
 
-    /**
-     * @return RpcMessage read back from olad.
-     *
-     * @throws Exception
-     */
-    private RpcMessage readMessage() throws Exception {
+            writerThread = new Thread(new Runnable() {
+                public void run() {
+                    writeLoop();
+                }
+            }, "ola-rpc-writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
 
-        byte[] header = new byte[4];
-        bis.read(header);
 
-        int headerValue = ByteBuffer.wrap(header).order(ByteOrder.nativeOrder()).getInt();
-        int size = headerValue  & SIZE_MASK;
+        /**
+         * Close the socket and stop the threads. The channel is only marked
+         * as closed if this is still its current connection.
+         */
+        void close(String reason) {
+            if (!running.compareAndSet(true, false)) {
+                return;
+            }
+            if (writerThread != null) {
+                writerThread.interrupt();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.warning("Error closing socket. " + e.getMessage());
+            }
+            if (connection == this) {
+                channelClosed(reason);
+            }
+        }
 
-        byte[] data = new byte[size];
-        bis.read(data);
 
-        if (logger.isLoggable(Level.FINEST)) {
-            logger.info("Received header ");
-            for (byte b : header) {
-                    System.out.format("0x%x ", b);
-            }
-            logger.info("Received data ");
-            for (byte b : data) {
-                    System.out.format("0x%x ", b);
+        /**
+         * Read messages from olad until the connection is closed. TCP may
+         * split a message across reads, so bytes are accumulated in the
+         * decoder until whole messages are available.
+         */
+        private void readLoop() {
+            try {
+                while (running.get()) {
+                    int count = decoder.readFrom(input);
+                    if (count < 0) {
+                        throw new EOFException("Connection closed by olad");
+                    }
+                    recordBytesReceived(count);
+                    while (decoder.next()) {
+                        handleNewMessage(decoder);
+                    }
+                }
+            } catch (Exception e) {
+                if (running.get()) {
+                    logger.severe("Error reading rpc message: " + e.getMessage());
+                }
             }
+            close("Connection to olad lost");
         }
 
-        return RpcMessage.parseFrom(data);
+
+        /**
+         * Write queued messages to olad until the connection is closed.
+         */
+        private void writeLoop() {
+            try {
+                while (running.get()) {
+                    ByteBuffer buffer = takeQueuedMessage();
+                    try {
+                        dump("Sending", buffer, buffer.limit());
+                        output.write(buffer.array(), 0, buffer.limit());
+                        recordBytesSent(buffer.limit());
+                    } finally {
+                        releaseBuffer(buffer);
+                    }
+                    if (!hasQueuedMessages()) {
+                        output.flush();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // the connection is being closed
+            } catch (Exception e) {
+                if (running.get()) {
+                    logger.severe("Error writing rpc message: " + e.getMessage());
+                    close("Connection to olad lost");
+                }
+            }
+        }
     }
 }
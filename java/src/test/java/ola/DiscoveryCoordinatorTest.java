@@ -0,0 +1,171 @@
+package ola;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ola.proto.Ola.DiscoveryRequest;
+import ola.proto.Ola.MergeMode;
+import ola.proto.Ola.UID;
+import ola.proto.Ola.UIDListReply;
+import ola.proto.Ola.UniverseInfo;
+import ola.proto.Ola.UniverseInfoReply;
+import ola.proto.Ola.UniverseRequest;
+import ola.rpc.StreamRpcChannel;
+import ola.testing.FakeOlad;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.Message;
+
+/**
+ * Test discovery across many universes against a FakeOlad.
+ */
+public class DiscoveryCoordinatorTest {
+
+    private FakeOlad olad;
+
+    private StreamRpcChannel channel;
+
+    private OlaClient client;
+
+    /* the devices on each universe */
+    private final Map<Integer, List<UID>> rig = new ConcurrentHashMap<Integer, List<UID>>();
+
+    private final AtomicInteger maxPending = new AtomicInteger(0);
+
+    @Before
+    public void setUp() throws Exception {
+        olad = new FakeOlad().start();
+        channel = new StreamRpcChannel(olad.getHost(), olad.getPort());
+        client = new OlaClient(channel);
+
+        olad.setHandler("ForceDiscovery", new FakeOlad.Handler() {
+            public Message handle(Message request) {
+                int pending = channel.getPendingCallCount();
+                if (pending > maxPending.get()) {
+                    maxPending.set(pending);
+                }
+                return reply(((DiscoveryRequest) request).getUniverse());
+            }
+        });
+        olad.setHandler("GetUIDs", new FakeOlad.Handler() {
+            public Message handle(Message request) {
+                return reply(((UniverseRequest) request).getUniverse());
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        olad.stop();
+    }
+
+    private Message reply(int universe) {
+        List<UID> uids = rig.get(universe);
+        if (uids == null) {
+            return null;
+        }
+        return UIDListReply.newBuilder().setUniverse(universe).addAllUid(uids).build();
+    }
+
+    private static UID uid(int estaId, int deviceId) {
+        return UID.newBuilder().setEstaId(estaId).setDeviceId(deviceId).build();
+    }
+
+    @Test
+    public void testParallelDiscovery() throws Exception {
+        List<Integer> universes = new ArrayList<Integer>();
+        for (int universe = 1; universe <= 10; universe++) {
+            rig.put(universe, Arrays.asList(uid(universe, 1), uid(universe, 2)));
+            universes.add(universe);
+        }
+        olad.setLatency(20, 20, TimeUnit.MILLISECONDS);
+
+        DiscoveryCoordinator coordinator = new DiscoveryCoordinator(client);
+        List<UidChanges> changes = coordinator.discover(universes, true).get(5, TimeUnit.SECONDS);
+        assertEquals(10, changes.size());
+        for (UidChanges universeChanges : changes) {
+            assertEquals(2, universeChanges.getAdded().size());
+        }
+        assertEquals(20, coordinator.getInventory().size());
+        assertEquals(Integer.valueOf(7), coordinator.getInventory().getUniverse(uid(7, 2)));
+        assertTrue("discovery ran serially", maxPending.get() > 1);
+    }
+
+    @Test
+    public void testIncrementalChanges() throws Exception {
+        rig.put(1, Arrays.asList(uid(1, 1), uid(1, 2)));
+        rig.put(2, Arrays.asList(uid(2, 1)));
+        DiscoveryCoordinator coordinator = new DiscoveryCoordinator(client);
+        coordinator.discover(Arrays.asList(1, 2), true).get(5, TimeUnit.SECONDS);
+
+        rig.put(1, Arrays.asList(uid(1, 1), uid(1, 3)));
+        List<UidChanges> changes = coordinator.discover(Arrays.asList(1, 2), false).get(5, TimeUnit.SECONDS);
+        assertEquals(2, changes.size());
+        for (UidChanges universeChanges : changes) {
+            if (universeChanges.getUniverse() == 1) {
+                assertEquals(Arrays.asList(uid(1, 3)), universeChanges.getAdded());
+                assertEquals(Arrays.asList(uid(1, 2)), universeChanges.getRemoved());
+            } else {
+                assertTrue(universeChanges.isEmpty());
+            }
+        }
+
+        rig.put(2, Arrays.asList(uid(2, 1), uid(2, 5)));
+        changes = coordinator.refresh(Arrays.asList(2)).get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(uid(2, 5)), changes.get(0).getAdded());
+        assertEquals(2, coordinator.getInventory().getUidsByManufacturer(2).size());
+    }
+
+    @Test
+    public void testFailedUniverseKeepsUids() throws Exception {
+        rig.put(1, Arrays.asList(uid(1, 1)));
+        rig.put(2, Arrays.asList(uid(2, 1)));
+        DiscoveryCoordinator coordinator = new DiscoveryCoordinator(client);
+        coordinator.discover(Arrays.asList(1, 2), true).get(5, TimeUnit.SECONDS);
+
+        rig.remove(2);
+        List<UidChanges> changes = coordinator.discover(Arrays.asList(1, 2), true).get(5, TimeUnit.SECONDS);
+        assertEquals(1, changes.size());
+        assertEquals(1, changes.get(0).getUniverse());
+        assertEquals(Integer.valueOf(2), coordinator.getInventory().getUniverse(uid(2, 1)));
+    }
+
+    @Test
+    public void testDiscoverAll() throws Exception {
+        rig.put(1, Arrays.asList(uid(1, 1)));
+        rig.put(3, Arrays.asList(uid(3, 1)));
+        olad.setHandler("GetUniverseInfo", new FakeOlad.Handler() {
+            public Message handle(Message request) {
+                UniverseInfoReply.Builder reply = UniverseInfoReply.newBuilder();
+                for (int universe = 1; universe <= 3; universe++) {
+                    reply.addUniverse(UniverseInfo.newBuilder()
+                            .setUniverse(universe)
+                            .setName("Universe " + universe)
+                            .setMergeMode(MergeMode.HTP)
+                            .setInputPortCount(0)
+                            .setOutputPortCount(universe == 2 ? 0 : 1)
+                            .setRdmDevices(0));
+                }
+                return reply.build();
+            }
+        });
+
+        DiscoveryCoordinator coordinator = new DiscoveryCoordinator(client);
+        List<UidChanges> changes = coordinator.discoverAll(true).get(5, TimeUnit.SECONDS);
+        assertEquals(2, changes.size());
+        assertEquals(2, coordinator.getInventory().size());
+        assertEquals(0, olad.getRequestCount("GetUIDs"));
+    }
+}
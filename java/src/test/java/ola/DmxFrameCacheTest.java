@@ -0,0 +1,114 @@
+package ola;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test suppression of repeated dmx frames.
+ */
+public class DmxFrameCacheTest {
+
+    private static DmxFrame frame(int universe, int length, int value) {
+        DmxFrame frame = new DmxFrame(universe);
+        frame.setLength(length);
+        for (int i = 0; i < length; i++) {
+            frame.set(i, value);
+        }
+        return frame;
+    }
+
+    @Test
+    public void testIdenticalFramesAreSuppressed() throws Exception {
+        DmxFrameCache cache = new DmxFrameCache(1, TimeUnit.HOURS);
+        assertTrue(cache.update(frame(1, 512, 10)));
+        assertFalse(cache.update(frame(1, 512, 10)));
+        assertFalse(cache.update(frame(1, 512, 10)));
+        assertEquals(1, cache.getFramesPassed());
+        assertEquals(2, cache.getFramesSuppressed());
+    }
+
+    @Test
+    public void testChangesAreSent() throws Exception {
+        DmxFrameCache cache = new DmxFrameCache(1, TimeUnit.HOURS);
+        assertTrue(cache.update(frame(1, 512, 10)));
+
+        DmxFrame changed = frame(1, 512, 10);
+        changed.set(511, 11);
+        assertTrue(cache.update(changed));
+        assertFalse(cache.update(changed));
+
+        assertTrue(cache.update(frame(1, 511, 10)));
+        assertTrue(cache.update(frame(2, 511, 10)));
+    }
+
+    @Test
+    public void testEveryChannelCompared() throws Exception {
+        DmxFrameCache cache = new DmxFrameCache(1, TimeUnit.HOURS);
+        // the lengths aren't all a multiple of the word size
+        for (int length : new int[] {13, 512}) {
+            cache.update(frame(1, length, 10));
+            for (int channel = 0; channel < length; channel++) {
+                DmxFrame changed = frame(1, length, 10);
+                changed.set(channel, 11);
+                assertTrue("change at " + channel + " missed", cache.update(changed));
+                assertTrue(cache.update(frame(1, length, 10)));
+            }
+            assertFalse(cache.update(frame(1, length, 10)));
+        }
+    }
+
+    @Test
+    public void testKeepalive() throws Exception {
+        DmxFrameCache cache = new DmxFrameCache(20, TimeUnit.MILLISECONDS);
+        assertTrue(cache.update(frame(1, 100, 10)));
+        assertFalse(cache.update(frame(1, 100, 10)));
+        Thread.sleep(30);
+        assertTrue(cache.update(frame(1, 100, 10)));
+        assertFalse(cache.update(frame(1, 100, 10)));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        DmxFrameCache cache = new DmxFrameCache(1, TimeUnit.HOURS);
+        assertTrue(cache.update(frame(1, 100, 10)));
+        assertTrue(cache.update(frame(2, 100, 10)));
+        cache.invalidate(1);
+        assertTrue(cache.update(frame(1, 100, 10)));
+        assertFalse(cache.update(frame(2, 100, 10)));
+        cache.clear();
+        assertTrue(cache.update(frame(1, 100, 10)));
+        assertTrue(cache.update(frame(2, 100, 10)));
+    }
+
+    @Test
+    public void testGetFrames() throws Exception {
+        DmxFrameCache cache = new DmxFrameCache(1, TimeUnit.HOURS);
+        assertTrue(cache.getFrames().isEmpty());
+        cache.update(frame(1, 100, 10));
+        cache.update(frame(2, 20, 30));
+        cache.update(frame(1, 50, 40));
+        cache.invalidate(2);
+
+        List<DmxFrame> frames = cache.getFrames();
+        assertEquals(2, frames.size());
+        Collections.sort(frames, new Comparator<DmxFrame>() {
+            public int compare(DmxFrame a, DmxFrame b) {
+                return a.getUniverse() - b.getUniverse();
+            }
+        });
+        assertEquals(1, frames.get(0).getUniverse());
+        assertEquals(50, frames.get(0).getLength());
+        assertEquals(40, frames.get(0).get(49));
+        assertEquals(2, frames.get(1).getUniverse());
+        assertEquals(20, frames.get(1).getLength());
+        assertEquals(30, frames.get(1).get(0));
+    }
+}
@@ -0,0 +1,102 @@
+package ola;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import ola.proto.Ola.DmxData;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Test encoding of dmx frames.
+ */
+public class DmxFrameTest {
+
+    private byte[] encode(DmxFrame frame) {
+        ByteBuffer buffer = ByteBuffer.allocate(frame.getSerializedSize());
+        frame.writeTo(buffer);
+        assertEquals(0, buffer.remaining());
+        return buffer.array();
+    }
+
+    @Test
+    public void testEncodingMatchesDmxData() throws Exception {
+        DmxFrame frame = new DmxFrame(3);
+        frame.setData(new short[] {0, 127, 128, 255});
+
+        DmxData expected = DmxData.newBuilder()
+                .setUniverse(3)
+                .setData(ByteString.copyFrom(new byte[] {0, 127, (byte) 128, (byte) 255}))
+                .build();
+
+        assertArrayEquals(expected.toByteArray(), encode(frame));
+    }
+
+    @Test
+    public void testFullUniverse() throws Exception {
+        DmxFrame frame = new DmxFrame(70000);
+        for (int i = 0; i < DmxFrame.MAX_CHANNELS; i++) {
+            frame.set(i, i);
+        }
+
+        DmxData data = DmxData.parseFrom(encode(frame));
+        assertEquals(70000, data.getUniverse());
+        assertEquals(DmxFrame.MAX_CHANNELS, data.getData().size());
+        assertEquals(255, data.getData().byteAt(255) & 0xff);
+        assertEquals(0, data.getData().byteAt(256) & 0xff);
+    }
+
+    @Test
+    public void testNegativeUniverse() throws Exception {
+        DmxFrame frame = new DmxFrame(-1);
+        frame.setData(new byte[] {1, 2}, 0, 2);
+        assertEquals(-1, DmxData.parseFrom(encode(frame)).getUniverse());
+    }
+
+    @Test
+    public void testSetDataFromBuffer() {
+        ByteBuffer values = ByteBuffer.wrap(new byte[] {9, 8, 7, 6});
+        values.position(1);
+
+        DmxFrame frame = new DmxFrame(1);
+        frame.setData(values);
+        assertEquals(3, frame.getLength());
+        assertEquals(8, frame.get(0));
+        assertEquals(1, values.position());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyChannels() {
+        new DmxFrame(1).setData(new byte[DmxFrame.MAX_CHANNELS + 1], 0, DmxFrame.MAX_CHANNELS + 1);
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        DmxFrame frame = new DmxFrame(2);
+        frame.setData(new byte[] {10, 20}, 0, 2);
+        frame.setPriority(150);
+
+        DmxData expected = DmxData.newBuilder()
+                .setUniverse(2)
+                .setData(ByteString.copyFrom(new byte[] {10, 20}))
+                .setPriority(150)
+                .build();
+        assertArrayEquals(expected.toByteArray(), encode(frame));
+
+        frame.setPriority(DmxFrame.NO_PRIORITY);
+        assertFalse(DmxData.parseFrom(encode(frame)).hasPriority());
+
+        try {
+            frame.setPriority(201);
+            fail("Invalid priority accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package ola;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import ola.proto.Ola.MergeMode;
+import ola.rpc.StreamRpcChannel;
+import ola.testing.FakeOlad;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test merging sources against a FakeOlad.
+ */
+public class DmxMergerTest {
+
+    private FakeOlad olad;
+
+    private OlaClient client;
+
+    private DmxMerger merger;
+
+    @Before
+    public void setUp() throws Exception {
+        olad = new FakeOlad().start();
+        client = new OlaClient(new StreamRpcChannel(olad.getHost(), olad.getPort()));
+        merger = new DmxMerger(client);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        merger.stop();
+        client.close();
+        olad.stop();
+    }
+
+    /**
+     * Flush and wait until olad has the data.
+     */
+    private byte[] flush(int universe) throws Exception {
+        merger.flush();
+        // a blocking call on the same connection is answered after the
+        // streamed frames have been handled.
+        client.getUniverseInfo(universe);
+        return olad.getDmx(universe);
+    }
+
+    private void waitForConnection(boolean connected) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.isConnected() != connected) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for the connection");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testMax() {
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            long a = random.nextLong();
+            long b = random.nextLong();
+            if (i % 3 == 0) {
+                // equal high bits in some bytes
+                b = (b & 0x7f7f7f7f7f7f7f7fL) | (a & 0x8080808080808080L);
+            }
+            long max = DmxMerger.max(a, b);
+            for (int shift = 0; shift < 64; shift += 8) {
+                int x = (int) (a >>> shift) & 0xff;
+                int y = (int) (b >>> shift) & 0xff;
+                assertEquals(Math.max(x, y), (int) (max >>> shift) & 0xff);
+            }
+        }
+    }
+
+    @Test
+    public void testHtp() throws Exception {
+        DmxMerger.Source first = merger.addSource(1, 100);
+        DmxMerger.Source second = merger.addSource(1, 100);
+        first.setData(new byte[] {10, (byte) 200, 0, 5}, 0, 4);
+        second.setData(new short[] {20, 100, 0, 5, 0, 0, 0, 0, 0, 1});
+
+        assertArrayEquals(new byte[] {20, (byte) 200, 0, 5, 0, 0, 0, 0, 0, 1}, flush(1));
+        assertEquals(Integer.valueOf(100), olad.getPriority(1));
+
+        second.set(2, 255);
+        assertArrayEquals(new byte[] {20, (byte) 200, (byte) 255, 5, 0, 0, 0, 0, 0, 1}, flush(1));
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        DmxMerger.Source low = merger.addSource(1, 50);
+        DmxMerger.Source high = merger.addSource(1, 150);
+        low.setData(new byte[] {(byte) 255, (byte) 255}, 0, 2);
+        high.setData(new byte[] {1, 2}, 0, 2);
+
+        assertArrayEquals(new byte[] {1, 2}, flush(1));
+        assertEquals(Integer.valueOf(150), olad.getPriority(1));
+
+        high.remove();
+        assertArrayEquals(new byte[] {(byte) 255, (byte) 255}, flush(1));
+        assertEquals(Integer.valueOf(50), olad.getPriority(1));
+
+        high = merger.addSource(1, 10);
+        high.setData(new byte[] {3}, 0, 1);
+        low.setPriority(5);
+        assertArrayEquals(new byte[] {3}, flush(1));
+    }
+
+    @Test
+    public void testLtp() throws Exception {
+        merger.setMergeMode(1, MergeMode.LTP);
+        DmxMerger.Source first = merger.addSource(1, 100);
+        DmxMerger.Source second = merger.addSource(1, 100);
+        first.setData(new byte[] {50, 50, 50}, 0, 3);
+        second.setData(new byte[] {10}, 0, 1);
+        assertArrayEquals(new byte[] {10}, flush(1));
+
+        first.set(1, 0);
+        assertArrayEquals(new byte[] {50, 0, 50}, flush(1));
+    }
+
+    @Test
+    public void testOnlyChangedUniversesSent() throws Exception {
+        DmxMerger.Source one = merger.addSource(1, 100);
+        DmxMerger.Source two = merger.addSource(2, 100);
+        // a source without data isn't sent
+        merger.addSource(3, 100);
+        one.set(0, 1);
+        two.set(0, 2);
+        merger.flush();
+        assertEquals(2, merger.getFramesSent());
+
+        merger.flush();
+        assertEquals(2, merger.getFramesSent());
+
+        two.set(0, 3);
+        assertArrayEquals(new byte[] {3}, flush(2));
+        assertEquals(3, merger.getFramesSent());
+        assertNull(olad.getDmx(3));
+    }
+
+    @Test
+    public void testDroppedFramesSentAgain() throws Exception {
+        client.setReconnectDelay(200, 200, TimeUnit.MILLISECONDS);
+        DmxMerger.Source source = merger.addSource(1, 100);
+        // make sure olad has accepted the connection before dropping it
+        client.getUniverseInfo(0);
+        olad.disconnectClients();
+        waitForConnection(false);
+        source.setData(new byte[] {1, 2, 3}, 0, 3);
+        merger.flush();
+        assertEquals(0, merger.getFramesSent());
+
+        waitForConnection(true);
+        assertArrayEquals(new byte[] {1, 2, 3}, flush(1));
+        assertEquals(1, merger.getFramesSent());
+    }
+
+    @Test
+    public void testFullUniverse() throws Exception {
+        DmxMerger.Source first = merger.addSource(4, 100);
+        DmxMerger.Source second = merger.addSource(4, 100);
+        byte[] a = new byte[DmxFrame.MAX_CHANNELS];
+        byte[] b = new byte[DmxFrame.MAX_CHANNELS];
+        byte[] expected = new byte[DmxFrame.MAX_CHANNELS];
+        Random random = new Random(3);
+        random.nextBytes(a);
+        random.nextBytes(b);
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) Math.max(a[i] & 0xff, b[i] & 0xff);
+        }
+        first.setData(a, 0, a.length);
+        second.setData(b, 0, b.length);
+        assertArrayEquals(expected, flush(4));
+    }
+}
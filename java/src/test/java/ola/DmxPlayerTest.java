@@ -0,0 +1,161 @@
+package ola;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import ola.testing.FakeOlad;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test playing recordings to a FakeOlad.
+ */
+public class DmxPlayerTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private FakeOlad olad;
+
+    private OlaClient client;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        olad = new FakeOlad().start();
+        client = new OlaClient(olad.getHost(), olad.getPort());
+        file = File.createTempFile("ola-recording", ".dmx");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        olad.stop();
+        file.delete();
+    }
+
+    private static byte[] data(int value) {
+        byte[] data = new byte[16];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) value;
+        }
+        return data;
+    }
+
+    private void waitForEnd(DmxPlayer player) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (player.isPlaying()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Player didn't finish");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testPlayback() throws Exception {
+        DmxRecorder recorder = new DmxRecorder(file, 50, TimeUnit.MILLISECONDS, 4096);
+        for (int i = 0; i <= 20; i++) {
+            recorder.record(1, ByteBuffer.wrap(data(i)), i * 10 * MS);
+        }
+        recorder.close();
+
+        DmxPlayer player = new DmxPlayer(client, file);
+        try {
+            long start = System.nanoTime();
+            player.start();
+            waitForEnd(player);
+            long elapsed = System.nanoTime() - start;
+
+            assertTrue("played too fast: " + elapsed, elapsed >= 200 * MS);
+            assertEquals(21, player.getFramesSent());
+            assertEquals(200, player.getPosition(TimeUnit.MILLISECONDS));
+            Thread.sleep(50);
+            assertArrayEquals(data(20), olad.getDmx(1));
+        } finally {
+            player.close();
+        }
+    }
+
+    @Test
+    public void testDroppedFramesSentAgain() throws Exception {
+        DmxRecorder recorder = new DmxRecorder(file, 50, TimeUnit.MILLISECONDS, 4096);
+        recorder.record(2, ByteBuffer.wrap(data(99)), 0);
+        for (int i = 0; i <= 40; i++) {
+            recorder.record(1, ByteBuffer.wrap(data(i)), i * 10 * MS);
+        }
+        recorder.close();
+
+        client.setReconnectDelay(200, 200, TimeUnit.MILLISECONDS);
+        // make sure olad has accepted the connection before dropping it
+        client.getUniverseInfo(0);
+        olad.disconnectClients();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.isConnected()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Still connected");
+            }
+            Thread.sleep(5);
+        }
+
+        DmxPlayer player = new DmxPlayer(client, file);
+        try {
+            player.start();
+            waitForEnd(player);
+            assertTrue(player.getFramesDropped() > 0);
+            // universe 2 only had a frame at the start, it went out later
+            client.getUniverseInfo(0);
+            assertArrayEquals(data(99), olad.getDmx(2));
+            assertArrayEquals(data(40), olad.getDmx(1));
+        } finally {
+            player.close();
+        }
+    }
+
+    @Test
+    public void testSeekRestoresState() throws Exception {
+        DmxRecorder recorder = new DmxRecorder(file, 50, TimeUnit.MILLISECONDS, 4096);
+        recorder.record(2, ByteBuffer.wrap(data(99)), 0);
+        for (int i = 0; i <= 15; i++) {
+            recorder.record(1, ByteBuffer.wrap(data(i)), i * 10 * MS);
+        }
+        // nothing else changes for a long time
+        recorder.record(1, ByteBuffer.wrap(data(16)), 30000 * MS);
+        recorder.record(1, ByteBuffer.wrap(data(100)), 60000 * MS);
+        recorder.close();
+
+        DmxPlayer player = new DmxPlayer(client, file);
+        try {
+            player.seek(155, TimeUnit.MILLISECONDS);
+            player.start();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (olad.getDmx(2) == null || olad.getDmx(1) == null) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail("State not sent");
+                }
+                Thread.sleep(5);
+            }
+            assertArrayEquals(data(15), olad.getDmx(1));
+            assertArrayEquals(data(99), olad.getDmx(2));
+            assertTrue(player.isPlaying());
+
+            player.stop();
+            assertEquals(155, player.getPosition(TimeUnit.MILLISECONDS));
+            player.seek(60000, TimeUnit.MILLISECONDS);
+            player.start();
+            waitForEnd(player);
+            Thread.sleep(50);
+            assertArrayEquals(data(100), olad.getDmx(1));
+        } finally {
+            player.close();
+        }
+    }
+}
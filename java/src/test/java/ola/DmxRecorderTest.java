@@ -0,0 +1,164 @@
+package ola;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test writing and reading recordings.
+ */
+public class DmxRecorderTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("ola-recording", ".dmx");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private static ByteBuffer frame(int universe, int time, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (universe * 31 + time + i);
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Record universes 1 to 3 every 10ms for a second, in segments small
+     * enough that records have to skip to the next one.
+     */
+    private void recordSecond(DmxRecorder recorder) {
+        for (int time = 0; time < 1000; time += 10) {
+            for (int universe = 1; universe <= 3; universe++) {
+                recorder.record(universe, frame(universe, time, 100 + universe), time * MS);
+            }
+        }
+    }
+
+    private static void checkSecond(DmxRecording recording) throws Exception {
+        assertEquals(300, recording.getFrameCount());
+        assertEquals(990 * MS, recording.getDuration());
+
+        DmxRecording.Cursor cursor = recording.cursor();
+        int frames = 0;
+        while (cursor.next()) {
+            if (cursor.isKeyframe()) {
+                continue;
+            }
+            int time = frames / 3 * 10;
+            int universe = frames % 3 + 1;
+            assertEquals(universe, cursor.getUniverse());
+            assertEquals(time * MS, cursor.getTimestamp());
+            assertEquals(frame(universe, time, 100 + universe), cursor.getData());
+            frames++;
+        }
+        assertEquals(300, frames);
+    }
+
+    @Test
+    public void testRecordAndRead() throws Exception {
+        DmxRecorder recorder = new DmxRecorder(file, 100, TimeUnit.MILLISECONDS, 4096);
+        recordSecond(recorder);
+        assertEquals(300, recorder.getFrameCount());
+        recorder.close();
+
+        DmxRecording recording = new DmxRecording(file);
+        try {
+            assertEquals(10, recording.getKeyframeCount());
+            assertTrue(file.length() > 4096);
+            checkSecond(recording);
+        } finally {
+            recording.close();
+        }
+    }
+
+    @Test
+    public void testUnclosedRecording() throws Exception {
+        DmxRecorder recorder = new DmxRecorder(file, 100, TimeUnit.MILLISECONDS, 4096);
+        recordSecond(recorder);
+
+        // as if the recorder crashed, the index is rebuilt
+        DmxRecording recording = new DmxRecording(file);
+        try {
+            assertEquals(9, recording.getKeyframeCount());
+            checkSecond(recording);
+        } finally {
+            recording.close();
+            recorder.close();
+        }
+    }
+
+    @Test
+    public void testCursorAt() throws Exception {
+        DmxRecorder recorder = new DmxRecorder(file, 100, TimeUnit.MILLISECONDS, 4096);
+        recordSecond(recorder);
+        recorder.close();
+
+        DmxRecording recording = new DmxRecording(file);
+        try {
+            DmxRecording.Cursor cursor = recording.cursorAt(555 * MS);
+            assertTrue(cursor.next());
+            assertTrue(cursor.isKeyframe());
+            assertEquals(500 * MS, cursor.getTimestamp());
+            // the keyframe holds the frames from before it
+            assertEquals(frame(1, 490, 101), cursor.getData());
+
+            cursor = recording.cursorAt(0);
+            assertTrue(cursor.next());
+            assertFalse(cursor.isKeyframe());
+            assertEquals(0, cursor.getTimestamp());
+        } finally {
+            recording.close();
+        }
+    }
+
+    @Test
+    public void testTimestampsNeverGoBackwards() throws Exception {
+        DmxRecorder recorder = new DmxRecorder(file, 1, TimeUnit.SECONDS, 4096);
+        recorder.record(1, frame(1, 0, 10), 100 * MS);
+        recorder.record(2, frame(2, 0, 10), 50 * MS);
+        recorder.record(1, frame(1, 1, 10), 200 * MS);
+        recorder.close();
+
+        DmxRecording recording = new DmxRecording(file);
+        try {
+            DmxRecording.Cursor cursor = recording.cursor();
+            long[] expected = {100 * MS, 100 * MS, 200 * MS};
+            int frames = 0;
+            while (cursor.next()) {
+                if (!cursor.isKeyframe()) {
+                    assertEquals(expected[frames++], cursor.getTimestamp());
+                }
+            }
+            assertEquals(3, frames);
+        } finally {
+            recording.close();
+        }
+    }
+
+    @Test
+    public void testNotARecording() throws Exception {
+        try {
+            new DmxRecording(file);
+        } catch (java.io.IOException e) {
+            return;
+        }
+        throw new AssertionError("Empty file opened");
+    }
+}
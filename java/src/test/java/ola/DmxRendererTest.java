@@ -0,0 +1,210 @@
+package ola;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import ola.rpc.StreamRpcChannel;
+import ola.testing.FakeOlad;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test rendering effects against a FakeOlad.
+ */
+public class DmxRendererTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private FakeOlad olad;
+
+    private OlaClient client;
+
+    private ForkJoinPool pool;
+
+    private DmxRenderer renderer;
+
+    @Before
+    public void setUp() throws Exception {
+        olad = new FakeOlad().start();
+        client = new OlaClient(new StreamRpcChannel(olad.getHost(), olad.getPort()));
+        pool = new ForkJoinPool(4);
+        renderer = new DmxRenderer(client, 44, pool);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        renderer.stop();
+        pool.shutdown();
+        client.close();
+        olad.stop();
+    }
+
+    /**
+     * Render and wait until olad has the data.
+     */
+    private void render(long time) throws Exception {
+        renderer.render(time);
+        // a blocking call on the same connection is answered after the
+        // streamed frames have been handled.
+        client.getUniverseInfo(0);
+    }
+
+    private void waitForConnection(boolean connected) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.isConnected() != connected) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for the connection");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testFade() {
+        byte[] data = new byte[DmxFrame.MAX_CHANNELS];
+        data[10] = 100;
+        DmxFade fade = new DmxFade(10, new byte[] {(byte) 200, 50}, 1, TimeUnit.SECONDS);
+
+        assertTrue(fade.render(5000 * MS, data));
+        assertEquals(100, data[10] & 0xff);
+        assertEquals(0, data[11]);
+        assertTrue(fade.render(5500 * MS, data));
+        assertEquals(150, data[10] & 0xff);
+        assertEquals(25, data[11]);
+        assertFalse(fade.render(6000 * MS, data));
+        assertEquals(200, data[10] & 0xff);
+        assertEquals(50, data[11]);
+    }
+
+    @Test
+    public void testCrossfade() {
+        byte[] data = new byte[DmxFrame.MAX_CHANNELS];
+        DmxFade fade = new DmxFade(0, new byte[] {(byte) 255, 0}, new byte[] {0, (byte) 255}, 100, TimeUnit.MILLISECONDS);
+        assertTrue(fade.render(0, data));
+        assertEquals(255, data[0] & 0xff);
+        assertTrue(fade.render(25 * MS, data));
+        assertEquals(191, data[0] & 0xff);
+        assertEquals(63, data[1] & 0xff);
+    }
+
+    @Test
+    public void testChase() {
+        byte[] data = new byte[DmxFrame.MAX_CHANNELS];
+        byte[][] steps = new byte[][] {{10, 0}, {0, 10}, {20, 20}};
+        DmxChase chase = new DmxChase(4, steps, 100, 50, TimeUnit.MILLISECONDS, false);
+
+        assertTrue(chase.render(0, data));
+        assertEquals(10, data[4]);
+        assertTrue(chase.render(125 * MS, data));
+        assertEquals(5, data[4]);
+        assertEquals(5, data[5]);
+        assertTrue(chase.render(160 * MS, data));
+        assertEquals(0, data[4]);
+        assertEquals(10, data[5]);
+        assertTrue(chase.render(299 * MS, data));
+        assertEquals(20, data[4]);
+        assertFalse(chase.render(300 * MS, data));
+        assertEquals(20, data[5]);
+
+        DmxChase loop = new DmxChase(0, steps, 100, 0, TimeUnit.MILLISECONDS, true);
+        assertTrue(loop.render(0, data));
+        assertTrue(loop.render(310 * MS, data));
+        assertEquals(10, data[0]);
+    }
+
+    @Test
+    public void testRender() throws Exception {
+        renderer.addEffect(1, new DmxFade(0, new byte[] {100, 100}, 100, TimeUnit.MILLISECONDS));
+        renderer.addEffect(2, new DmxFade(0, new byte[] {50}, 0, TimeUnit.MILLISECONDS));
+
+        render(0);
+        assertEquals(0, olad.getDmx(1)[0]);
+        assertEquals(DmxFrame.MAX_CHANNELS, olad.getDmx(1).length);
+        assertEquals(50, olad.getDmx(2)[0]);
+        assertEquals(0, renderer.getEffectCount(2));
+
+        render(50 * MS);
+        assertEquals(50, olad.getDmx(1)[0]);
+        assertEquals(3, renderer.getFramesSent());
+
+        render(100 * MS);
+        assertEquals(100, olad.getDmx(1)[1]);
+        assertEquals(0, renderer.getEffectCount(1));
+
+        // nothing left to render
+        render(150 * MS);
+        assertEquals(4, renderer.getFramesSent());
+        assertEquals(4, renderer.getRenderTime().getCount());
+
+        // a new fade starts from the values left by the last one
+        renderer.addEffect(1, new DmxFade(0, new byte[] {0}, 100, TimeUnit.MILLISECONDS));
+        render(200 * MS);
+        render(250 * MS);
+        assertEquals(50, olad.getDmx(1)[0]);
+        assertEquals(100, olad.getDmx(1)[1]);
+    }
+
+    @Test
+    public void testDroppedFrameSentAgain() throws Exception {
+        client.setReconnectDelay(200, 200, TimeUnit.MILLISECONDS);
+        renderer.addEffect(1, new DmxFade(0, new byte[] {50}, 0, TimeUnit.MILLISECONDS));
+        // make sure olad has accepted the connection before dropping it
+        client.getUniverseInfo(0);
+        olad.disconnectClients();
+        waitForConnection(false);
+        renderer.render(0);
+        assertEquals(0, renderer.getEffectCount(1));
+        assertEquals(0, renderer.getFramesSent());
+
+        // the effect has finished, but its last frame still goes out
+        waitForConnection(true);
+        render(50 * MS);
+        assertEquals(50, olad.getDmx(1)[0]);
+        assertEquals(1, renderer.getFramesSent());
+
+        render(100 * MS);
+        assertEquals(1, renderer.getFramesSent());
+    }
+
+    @Test
+    public void testManyUniverses() throws Exception {
+        byte[] target = new byte[DmxFrame.MAX_CHANNELS];
+        for (int i = 0; i < target.length; i++) {
+            target[i] = (byte) i;
+        }
+        for (int universe = 1; universe <= 100; universe++) {
+            renderer.addEffect(universe, new DmxFade(0, target, 1, TimeUnit.SECONDS));
+        }
+        assertNull(olad.getDmx(1));
+
+        render(0);
+        render(1000 * MS);
+        assertEquals(200, renderer.getFramesSent());
+        for (int universe = 1; universe <= 100; universe++) {
+            assertArrayEquals(target, olad.getDmx(universe));
+            assertEquals(0, renderer.getEffectCount(universe));
+        }
+    }
+
+    @Test
+    public void testStart() throws Exception {
+        renderer.addEffect(1, new DmxFade(0, new byte[] {1}, 50, TimeUnit.MILLISECONDS));
+        renderer.start();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (renderer.getEffectCount(1) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        renderer.stop();
+        client.getUniverseInfo(0);
+        assertEquals(1, olad.getDmx(1)[0]);
+    }
+}
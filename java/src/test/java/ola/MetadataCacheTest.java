@@ -0,0 +1,141 @@
+package ola;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ola.proto.Ola.MergeMode;
+import ola.proto.Ola.UniverseInfoReply;
+import ola.testing.FakeOlad;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test caching of olad's configuration.
+ */
+public class MetadataCacheTest {
+
+    private FakeOlad olad;
+
+    private OlaClient client;
+
+    private MetadataCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        olad = new FakeOlad().start();
+        olad.addUniverse(1);
+        client = new OlaClient(olad.getHost(), olad.getPort());
+        cache = new MetadataCache(1, TimeUnit.HOURS);
+        client.setMetadataCache(cache);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        olad.stop();
+    }
+
+    @Test
+    public void testRepliesAreCached() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            UniverseInfoReply reply = client.getUniverseInfo(1);
+            assertEquals(1, reply.getUniverse(0).getUniverse());
+        }
+        assertEquals(1, olad.getRequestCount("GetUniverseInfo"));
+        assertEquals(9, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        client.getUniverseInfo(2);
+        client.getUniverseInfoAsync().get(5, TimeUnit.SECONDS);
+        assertEquals(3, olad.getRequestCount("GetUniverseInfo"));
+    }
+
+    @Test
+    public void testConcurrentCallsShareARequest() throws Exception {
+        olad.setLatency(50, 50, TimeUnit.MILLISECONDS);
+        CompletableFuture<UniverseInfoReply> first = client.getUniverseInfoAsync(1);
+        CompletableFuture<UniverseInfoReply> second = client.getUniverseInfoAsync(1);
+        assertEquals(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, olad.getRequestCount("GetUniverseInfo"));
+    }
+
+    @Test
+    public void testConcurrentThreadsShareARequest() throws Exception {
+        olad.setLatency(50, 50, TimeUnit.MILLISECONDS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<CompletableFuture<UniverseInfoReply>> replies =
+                new CopyOnWriteArrayList<CompletableFuture<UniverseInfoReply>>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 16; i++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        replies.add(client.getUniverseInfoAsync(1));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertEquals(16, replies.size());
+        for (CompletableFuture<UniverseInfoReply> reply : replies) {
+            assertEquals(1, reply.get(5, TimeUnit.SECONDS).getUniverse(0).getUniverse());
+        }
+        assertEquals(1, olad.getRequestCount("GetUniverseInfo"));
+        assertEquals(15, cache.getHitCount());
+    }
+
+    @Test
+    public void testMutationsInvalidate() throws Exception {
+        client.getUniverseInfo(1);
+        client.getUniverseInfo(1);
+        assertTrue(client.setUniverseName(1, "Stage"));
+        client.getUniverseInfo(1);
+        assertEquals(2, olad.getRequestCount("GetUniverseInfo"));
+
+        assertTrue(client.setMergeMode(1, MergeMode.LTP));
+        client.getUniverseInfo(1);
+        assertEquals(3, olad.getRequestCount("GetUniverseInfo"));
+
+        // sending dmx doesn't change the configuration
+        assertTrue(client.sendDmx(1, new byte[] {1}));
+        client.getUniverseInfo(1);
+        assertEquals(3, olad.getRequestCount("GetUniverseInfo"));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        cache = new MetadataCache(20, TimeUnit.MILLISECONDS);
+        client.setMetadataCache(cache);
+        client.getUniverseInfo(1);
+        client.getUniverseInfo(1);
+        assertEquals(1, olad.getRequestCount("GetUniverseInfo"));
+        Thread.sleep(30);
+        client.getUniverseInfo(1);
+        assertEquals(2, olad.getRequestCount("GetUniverseInfo"));
+    }
+
+    @Test
+    public void testFailuresAreNotCached() throws Exception {
+        assertNull(client.getPlugins());
+        assertNull(client.getPlugins());
+        assertEquals(2, olad.getRequestCount("GetPlugins"));
+    }
+}
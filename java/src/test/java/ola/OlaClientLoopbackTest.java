@@ -0,0 +1,608 @@
+package ola;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ola.proto.Ola.Ack;
+import ola.proto.Ola.DmxData;
+import ola.proto.Ola.UniverseInfoReply;
+import ola.rpc.AbstractRpcChannel;
+import ola.rpc.ConnectionListener;
+import ola.rpc.NioRpcChannel;
+import ola.rpc.RpcEventLoop;
+import ola.rpc.StreamRpcChannel;
+import ola.testing.FakeOlad;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+
+/**
+ * Test the client against a FakeOlad, including when the replies are slow,
+ * lost, fragmented or out of order.
+ */
+public class OlaClientLoopbackTest {
+
+    private FakeOlad olad;
+
+    private RpcEventLoop eventLoop;
+
+    private OlaClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        olad = new FakeOlad().start();
+        client = new OlaClient(olad.getHost(), olad.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        if (eventLoop != null) {
+            eventLoop.stop();
+        }
+        olad.stop();
+    }
+
+    private OlaClient connectNio() throws Exception {
+        eventLoop = new RpcEventLoop();
+        eventLoop.start();
+        return new OlaClient(new NioRpcChannel(eventLoop, olad.getHost(), olad.getPort()));
+    }
+
+    private static byte[] pattern(int universe, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (universe + i);
+        }
+        return data;
+    }
+
+    private static void waitFor(String what, Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for " + what);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    @Test
+    public void testSendAndGetDmx() throws Exception {
+        byte[] data = pattern(1, 512);
+        assertTrue(client.sendDmx(1, data));
+        assertArrayEquals(data, olad.getDmx(1));
+
+        DmxData reply = client.getDmx(1);
+        assertNotNull(reply);
+        assertArrayEquals(data, reply.getData().toByteArray());
+    }
+
+    @Test
+    public void testStreamDmx() throws Exception {
+        final byte[] data = pattern(2, 100);
+        client.streamDmx(2, data);
+        waitFor("streamed data", new Condition() {
+            public boolean holds() {
+                return Arrays.equals(data, olad.getDmx(2));
+            }
+        });
+        assertEquals(1, olad.getRequestCount("StreamDmxData"));
+    }
+
+    @Test
+    public void testReceivePushedDmx() throws Exception {
+        final CountDownLatch received = new CountDownLatch(1);
+        final List<ByteString> frames = new ArrayList<ByteString>();
+        assertTrue(client.registerForDmx(5, new DmxListener() {
+            public void dmxReceived(int universe, ByteString data) {
+                frames.add(data);
+                received.countDown();
+            }
+        }));
+        assertEquals(1, olad.getRegistrationCount(5));
+
+        olad.pushDmx(5, pattern(5, 10));
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(pattern(5, 10), frames.get(0).toByteArray());
+    }
+
+    @Test
+    public void testListenerAddedWhileRegistering() throws Exception {
+        // the first registration is slow and fails
+        final CountDownLatch registering = new CountDownLatch(1);
+        final AtomicInteger registrations = new AtomicInteger();
+        olad.setHandler("RegisterForDmx", new FakeOlad.Handler() {
+            public Message handle(Message request) {
+                if (registrations.incrementAndGet() > 1) {
+                    return Ack.getDefaultInstance();
+                }
+                registering.countDown();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        });
+        final DmxListener listener = new DmxListener() {
+            public void dmxReceived(int universe, ByteString data) {
+            }
+        };
+        DmxListener secondListener = new DmxListener() {
+            public void dmxReceived(int universe, ByteString data) {
+            }
+        };
+        final AtomicInteger firstResult = new AtomicInteger();
+        Thread first = new Thread(new Runnable() {
+            public void run() {
+                firstResult.set(client.registerForDmx(7, listener) ? 1 : 2);
+            }
+        });
+        first.start();
+        assertTrue(registering.await(5, TimeUnit.SECONDS));
+
+        // the second listener mustn't count on the failed registration
+        assertTrue(client.registerForDmx(7, secondListener));
+        first.join(5000);
+        assertEquals(2, firstResult.get());
+        assertEquals(2, registrations.get());
+    }
+
+    @Test
+    public void testFrameCache() throws Exception {
+        DmxFrameCache cache = new DmxFrameCache(1, TimeUnit.HOURS);
+        client.setFrameCache(cache);
+        for (int i = 0; i < 100; i++) {
+            client.streamDmx(1, pattern(1, 512));
+            assertTrue(client.sendDmx(2, pattern(2, 512)));
+        }
+        client.streamDmx(1, pattern(3, 512));
+        waitFor("the changed frame", new Condition() {
+            public boolean holds() {
+                return Arrays.equals(pattern(3, 512), olad.getDmx(1));
+            }
+        });
+        assertEquals(2, olad.getRequestCount("StreamDmxData"));
+        assertEquals(1, olad.getRequestCount("UpdateDmxData"));
+        assertEquals(198, cache.getFramesSuppressed());
+    }
+
+    @Test
+    public void testFrameCacheForgetsDroppedFrames() throws Exception {
+        DmxFrameCache cache = new DmxFrameCache(1, TimeUnit.HOURS);
+        client.setFrameCache(cache);
+        client.setReconnectDelay(200, 200, TimeUnit.MILLISECONDS);
+        // make sure olad has accepted the connection before dropping it
+        client.getUniverseInfo(0);
+        olad.disconnectClients();
+        waitFor("disconnect", new Condition() {
+            public boolean holds() {
+                return !client.isConnected();
+            }
+        });
+        Map<Integer, byte[]> batch = Collections.singletonMap(2, pattern(2, 512));
+        assertFalse(client.streamDmx(1, pattern(1, 512)));
+        assertFalse(client.streamDmxBatch(batch));
+
+        // the dropped frames aren't mistaken for ones olad already has
+        waitFor("reconnect", new Condition() {
+            public boolean holds() {
+                return client.isConnected();
+            }
+        });
+        assertTrue(client.streamDmx(1, pattern(1, 512)));
+        assertTrue(client.streamDmxBatch(batch));
+        assertEquals(0, cache.getFramesSuppressed());
+        assertEquals(4, cache.getFramesPassed());
+    }
+
+    @Test
+    public void testOutOfOrderReplies() throws Exception {
+        for (int universe = 0; universe < 32; universe++) {
+            assertTrue(client.sendDmx(universe, pattern(universe, 16)));
+        }
+        olad.setReorderWindow(8, 20, TimeUnit.MILLISECONDS);
+
+        List<CompletableFuture<DmxData>> replies = new ArrayList<CompletableFuture<DmxData>>();
+        for (int universe = 0; universe < 32; universe++) {
+            replies.add(client.getDmxAsync(universe));
+        }
+        for (int universe = 0; universe < 32; universe++) {
+            DmxData reply = replies.get(universe).get(5, TimeUnit.SECONDS);
+            assertEquals(universe, reply.getUniverse());
+            assertArrayEquals(pattern(universe, 16), reply.getData().toByteArray());
+        }
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        olad.setLatency(50, 50, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        assertTrue(client.sendDmx(1, pattern(1, 10)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testDroppedReply() throws Exception {
+        olad.setDropRate(1);
+        CompletableFuture<Ack> reply = client.sendDmxAsync(new DmxFrame(1));
+        waitFor("the request", new Condition() {
+            public boolean holds() {
+                return olad.getDroppedReplyCount() == 1;
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(reply.isDone());
+
+        client.close();
+        try {
+            reply.get(5, TimeUnit.SECONDS);
+            fail("Call without a reply completed");
+        } catch (ExecutionException e) {
+            // expected
+        }
+    }
+
+    private void checkFragmentedReplies() throws Exception {
+        byte[] data = pattern(7, 512);
+        assertTrue(client.sendDmx(7, data));
+
+        olad.setFragmentation(7, 100, TimeUnit.MICROSECONDS);
+        for (int i = 0; i < 5; i++) {
+            DmxData reply = client.getDmx(7);
+            assertNotNull(reply);
+            assertArrayEquals(data, reply.getData().toByteArray());
+        }
+
+        List<CompletableFuture<DmxData>> replies = new ArrayList<CompletableFuture<DmxData>>();
+        olad.setFragmentation(100, 0, TimeUnit.MICROSECONDS);
+        for (int i = 0; i < 50; i++) {
+            replies.add(client.getDmxAsync(7));
+        }
+        for (CompletableFuture<DmxData> reply : replies) {
+            assertArrayEquals(data, reply.get(10, TimeUnit.SECONDS).getData().toByteArray());
+        }
+    }
+
+    @Test
+    public void testFragmentedReplies() throws Exception {
+        checkFragmentedReplies();
+    }
+
+    @Test
+    public void testFragmentedRepliesNio() throws Exception {
+        client.close();
+        client = connectNio();
+        checkFragmentedReplies();
+    }
+
+    @Test
+    public void testLoopThreadNeverWaitsForBuffers() throws Exception {
+        client.close();
+        client = connectNio();
+        final List<CompletableFuture<UniverseInfoReply>> calls =
+                new CopyOnWriteArrayList<CompletableFuture<UniverseInfoReply>>();
+        // listeners run on the loop thread, which can't write while it is
+        // busy here, so the streamed frames use up every write buffer.
+        assertTrue(client.registerForDmx(3, new DmxListener() {
+            public void dmxReceived(int universe, ByteString data) {
+                byte[] frame = data.toByteArray();
+                for (int i = 0; i < 100; i++) {
+                    client.streamDmx(4, frame);
+                }
+                calls.add(client.getUniverseInfoAsync());
+            }
+        }));
+
+        olad.pushDmx(3, pattern(3, 512));
+        waitFor("the response to olad", new Condition() {
+            public boolean holds() {
+                return olad.getPushResponseCount() == 1;
+            }
+        });
+        assertEquals(1, calls.size());
+        assertNotNull(calls.get(0).get(5, TimeUnit.SECONDS));
+        assertArrayEquals(pattern(3, 512), olad.getDmx(4));
+    }
+
+    private void checkReconnect() throws Exception {
+        client.setFrameCache(new DmxFrameCache());
+        client.setReconnectDelay(5, 100, TimeUnit.MILLISECONDS);
+        assertTrue(client.sendDmx(1, pattern(1, 512)));
+        final CountDownLatch received = new CountDownLatch(1);
+        assertTrue(client.registerForDmx(2, new DmxListener() {
+            public void dmxReceived(int universe, ByteString data) {
+                received.countDown();
+            }
+        }));
+
+        // restart olad, the new one knows nothing about the client
+        int port = olad.getPort();
+        olad.stop();
+        waitFor("disconnect", new Condition() {
+            public boolean holds() {
+                return !client.isConnected();
+            }
+        });
+        assertFalse(client.sendDmx(1, pattern(3, 100)));
+        Thread.sleep(50);
+        olad = new FakeOlad(port).start();
+
+        waitFor("reconnect", new Condition() {
+            public boolean holds() {
+                return client.isConnected();
+            }
+        });
+        waitFor("frame replay", new Condition() {
+            public boolean holds() {
+                return Arrays.equals(pattern(3, 100), olad.getDmx(1));
+            }
+        });
+        waitFor("registration", new Condition() {
+            public boolean holds() {
+                return olad.getRegistrationCount(2) == 1;
+            }
+        });
+        olad.pushDmx(2, pattern(2, 10));
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertTrue(client.sendDmx(1, pattern(4, 512)));
+    }
+
+    @Test
+    public void testReconnect() throws Exception {
+        checkReconnect();
+    }
+
+    @Test
+    public void testReconnectNio() throws Exception {
+        client.close();
+        client = connectNio();
+        checkReconnect();
+    }
+
+    @Test
+    public void testCloseStopsReconnect() throws Exception {
+        client.setReconnectDelay(5, 100, TimeUnit.MILLISECONDS);
+        client.close();
+        assertFalse(client.isConnected());
+        Thread.sleep(50);
+        assertFalse(client.isConnected());
+        assertEquals(0, olad.getConnectionCount());
+    }
+
+    @Test
+    public void testConnectionListener() throws Exception {
+        final AtomicInteger lost = new AtomicInteger(0);
+        final StreamRpcChannel channel = new StreamRpcChannel(olad.getHost(), olad.getPort());
+        channel.addConnectionListener(new ConnectionListener() {
+            public void connectionLost(AbstractRpcChannel lostChannel, String reason) {
+                lost.incrementAndGet();
+            }
+
+            public void connectionRestored(AbstractRpcChannel restoredChannel) {
+            }
+        });
+        OlaClient other = new OlaClient(channel);
+        try {
+            // closing the channel isn't losing the connection
+            other.close();
+            Thread.sleep(50);
+            assertEquals(0, lost.get());
+
+            channel.connect();
+            other.getUniverseInfo(0);
+            olad.disconnectClients();
+            waitFor("the lost connection", new Condition() {
+                public boolean holds() {
+                    return lost.get() == 1;
+                }
+            });
+
+            // frames streamed while disconnected are counted
+            assertFalse(other.streamDmx(1, pattern(1, 8)));
+            assertFalse(other.streamDmxBatch(Collections.singletonMap(2, pattern(2, 8))));
+            assertEquals(2, channel.getDroppedMessageCount());
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentBlockingCallers() throws Exception {
+        final int callers = 100;
+        final int rounds = 20;
+        final List<String> errors = new CopyOnWriteArrayList<String>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>(callers);
+        for (int i = 0; i < callers; i++) {
+            final int universe = i + 1;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int round = 0; round < rounds; round++) {
+                            byte[] data = pattern(universe + round, 64);
+                            if (!client.sendDmx(universe, data)) {
+                                errors.add("sendDmx failed for " + universe);
+                                return;
+                            }
+                            DmxData reply = client.getDmx(universe);
+                            if (reply == null || !Arrays.equals(data, reply.getData().toByteArray())) {
+                                errors.add("wrong data for " + universe);
+                                return;
+                            }
+                            client.streamDmx(universe, data);
+                        }
+                    } catch (InterruptedException e) {
+                        errors.add("interrupted");
+                    }
+                }
+            }, "caller-" + universe);
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(30000);
+        }
+        assertEquals(Arrays.asList(), errors);
+        assertEquals(callers * rounds, olad.getRequestCount("UpdateDmxData"));
+        assertEquals(callers * rounds, olad.getRequestCount("GetDmx"));
+    }
+
+    @Test
+    public void testPipelinedLoad() throws Exception {
+        olad.setSeed(1234);
+        olad.setLatency(0, 2, TimeUnit.MILLISECONDS);
+
+        int calls = 2000;
+        List<CompletableFuture<Ack>> replies = new ArrayList<CompletableFuture<Ack>>(calls);
+        DmxFrame frame = new DmxFrame(1);
+        frame.setData(pattern(1, 512), 0, 512);
+        for (int i = 0; i < calls; i++) {
+            replies.add(client.sendDmxAsync(frame));
+        }
+        CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[calls])).get(30, TimeUnit.SECONDS);
+        assertEquals(calls, olad.getRequestCount("UpdateDmxData"));
+    }
+
+    @Test
+    public void testOutputScheduler() throws Exception {
+        DmxOutputScheduler scheduler = new DmxOutputScheduler(client);
+        scheduler.update(1, pattern(1, 8));
+        scheduler.update(1, pattern(2, 8));
+        scheduler.update(2, pattern(3, 8));
+        scheduler.flush();
+        waitFor("scheduled frames", new Condition() {
+            public boolean holds() {
+                return olad.getRequestCount("StreamDmxData") == 2;
+            }
+        });
+        assertArrayEquals(pattern(2, 8), olad.getDmx(1));
+        assertArrayEquals(pattern(3, 8), olad.getDmx(2));
+        assertEquals(1, scheduler.getFramesSuperseded());
+    }
+
+    @Test
+    public void testOutputSchedulerKeepsDroppedFrames() throws Exception {
+        client.setReconnectDelay(200, 200, TimeUnit.MILLISECONDS);
+        DmxOutputScheduler scheduler = new DmxOutputScheduler(client);
+        // make sure olad has accepted the connection before dropping it
+        client.getUniverseInfo(0);
+        olad.disconnectClients();
+        waitFor("disconnect", new Condition() {
+            public boolean holds() {
+                return !client.isConnected();
+            }
+        });
+        scheduler.update(1, pattern(1, 8));
+        scheduler.flush();
+        assertEquals(0, scheduler.getFramesSent());
+
+        waitFor("reconnect", new Condition() {
+            public boolean holds() {
+                return client.isConnected();
+            }
+        });
+        scheduler.flush();
+        assertEquals(1, scheduler.getFramesSent());
+        waitFor("the dropped frame", new Condition() {
+            public boolean holds() {
+                return Arrays.equals(pattern(1, 8), olad.getDmx(1));
+            }
+        });
+    }
+
+    @Test
+    public void testClusterRouting() throws Exception {
+        FakeOlad other = new FakeOlad().start();
+        OlaClusterClient cluster = null;
+        try {
+            olad.addUniverse(1);
+            other.addUniverse(2);
+            InetSocketAddress first = new InetSocketAddress(olad.getHost(), olad.getPort());
+            InetSocketAddress second = new InetSocketAddress(other.getHost(), other.getPort());
+            cluster = new OlaClusterClient(Arrays.asList(first, second), 2);
+
+            cluster.refreshRoutes().get(5, TimeUnit.SECONDS);
+            assertEquals(first, cluster.getOwner(1));
+            assertEquals(second, cluster.getOwner(2));
+
+            DmxFrame frame = new DmxFrame(2);
+            frame.setData(pattern(2, 4), 0, 4);
+            cluster.sendDmxAsync(frame).get(5, TimeUnit.SECONDS);
+            assertArrayEquals(pattern(2, 4), other.getDmx(2));
+            assertEquals(0, olad.getRequestCount("UpdateDmxData"));
+        } finally {
+            if (cluster != null) {
+                cluster.close();
+            }
+            other.stop();
+        }
+    }
+
+    @Test
+    public void testClusterStreamDmx() throws Exception {
+        FakeOlad other = new FakeOlad().start();
+        OlaClusterClient cluster = null;
+        try {
+            InetSocketAddress first = new InetSocketAddress(olad.getHost(), olad.getPort());
+            InetSocketAddress second = new InetSocketAddress(other.getHost(), other.getPort());
+            cluster = new OlaClusterClient(Arrays.asList(first, second), 4);
+            cluster.assignUniverse(1, first);
+            cluster.assignUniverse(2, second);
+
+            // the frames for a universe all go over one connection, so the
+            // last one sent is the one olad ends up with
+            DmxFrame frame = new DmxFrame(2);
+            byte[] data = new byte[2];
+            byte[] last = null;
+            int queued = 0;
+            for (int i = 0; i < 1000; i++) {
+                data[0] = (byte) (i >> 8);
+                data[1] = (byte) i;
+                frame.setData(data, 0, data.length);
+                if (cluster.streamDmx(frame)) {
+                    last = data.clone();
+                    queued++;
+                }
+            }
+            cluster.getClient(2).getUniverseInfo(0);
+            assertArrayEquals(last, other.getDmx(2));
+            assertEquals(queued, other.getRequestCount("StreamDmxData"));
+            assertEquals(0, olad.getRequestCount("StreamDmxData"));
+        } finally {
+            if (cluster != null) {
+                cluster.close();
+            }
+            other.stop();
+        }
+    }
+}
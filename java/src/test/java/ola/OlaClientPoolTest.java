@@ -0,0 +1,94 @@
+package ola;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+
+import ola.testing.FakeOlad;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the connection pool against a FakeOlad.
+ */
+public class OlaClientPoolTest {
+
+    private FakeOlad olad;
+
+    private OlaClientPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        olad = new FakeOlad().start();
+        pool = new OlaClientPool(new InetSocketAddress(olad.getHost(), olad.getPort()), 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+        olad.stop();
+    }
+
+    @Test
+    public void testUniversePinned() {
+        Set<OlaClient> used = new HashSet<OlaClient>();
+        for (int universe = 0; universe < 64; universe++) {
+            OlaClient client = pool.get(universe);
+            for (int i = 0; i < 10; i++) {
+                assertSame(client, pool.get(universe));
+            }
+            used.add(client);
+        }
+        // consecutive universes are spread over every connection
+        assertEquals(pool.size(), used.size());
+    }
+
+    @Test
+    public void testStreamedFramesStayInOrder() throws Exception {
+        byte[] data = new byte[2];
+        byte[] last = null;
+        for (int i = 0; i < 1000; i++) {
+            data[0] = (byte) (i >> 8);
+            data[1] = (byte) i;
+            // frames are dropped if the write queue fills up
+            if (pool.get(1).streamDmx(1, data)) {
+                last = data.clone();
+            }
+        }
+        // a blocking call on the same connection is answered after the
+        // streamed frames have been handled.
+        pool.get(1).getUniverseInfo(0);
+        assertArrayEquals(last, olad.getDmx(1));
+    }
+
+    @Test
+    public void testGetSkipsClosedConnections() {
+        OlaClient first = pool.get();
+        OlaClient second = pool.get();
+        assertNotSame(first, second);
+
+        for (int i = 0; i < pool.size() - 1; i++) {
+            pool.get().close();
+        }
+        OlaClient open = pool.get();
+        for (int i = 0; i < 10; i++) {
+            assertSame(open, pool.get());
+        }
+
+        open.close();
+        try {
+            pool.get();
+            fail("Got a client with no connections");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package ola;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ola.proto.Ola.RDMRequest;
+import ola.proto.Ola.RDMResponse;
+import ola.proto.Ola.RDMResponseCode;
+import ola.proto.Ola.RDMResponseType;
+import ola.proto.Ola.UID;
+import ola.rpc.StreamRpcChannel;
+import ola.testing.FakeOlad;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+
+/**
+ * Test pipelined RDM requests against a FakeOlad.
+ */
+public class RdmPipelineTest {
+
+    private static final int DEVICE_INFO = 0x0060;
+
+    private static final int DMX_START_ADDRESS = 0x00f0;
+
+    private FakeOlad olad;
+
+    private StreamRpcChannel channel;
+
+    private OlaClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        olad = new FakeOlad().start();
+        channel = new StreamRpcChannel(olad.getHost(), olad.getPort());
+        client = new OlaClient(channel);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        olad.stop();
+    }
+
+    private static UID uid(int device) {
+        return UID.newBuilder().setEstaId(0x7a70).setDeviceId(device).build();
+    }
+
+    private static RDMResponse.Builder ack(RDMRequest request) {
+        return RDMResponse.newBuilder()
+                .setResponseCode(RDMResponseCode.RDM_COMPLETED_OK)
+                .setResponseType(RDMResponseType.RDM_ACK)
+                .setParamId(request.getParamId())
+                .setSubDevice(request.getSubDevice())
+                .setData(ByteString.copyFrom(new byte[] {(byte) request.getUid().getDeviceId()}));
+    }
+
+    private static List<RDMRequest> inventory(int fixtures) {
+        List<RDMRequest> requests = new ArrayList<RDMRequest>();
+        for (int i = 0; i < fixtures; i++) {
+            requests.add(RdmPipeline.get(1, uid(i), 0, DEVICE_INFO));
+            requests.add(RdmPipeline.get(1, uid(i), 0, DMX_START_ADDRESS));
+        }
+        return requests;
+    }
+
+    @Test
+    public void testResultsInOrder() throws Exception {
+        olad.setSeed(42);
+        olad.setLatency(0, 5, TimeUnit.MILLISECONDS);
+        final AtomicInteger maxPending = new AtomicInteger(0);
+        olad.setHandler("RDMCommand", new FakeOlad.Handler() {
+            public Message handle(Message request) {
+                int pending = channel.getPendingCallCount();
+                if (pending > maxPending.get()) {
+                    maxPending.set(pending);
+                }
+                return ack((RDMRequest) request).build();
+            }
+        });
+
+        RdmPipeline pipeline = new RdmPipeline(client, 4);
+        List<RDMRequest> requests = inventory(50);
+        List<RDMResponse> responses = pipeline.execute(requests);
+
+        assertEquals(requests.size(), responses.size());
+        for (int i = 0; i < requests.size(); i++) {
+            assertEquals(requests.get(i).getParamId(), responses.get(i).getParamId());
+            assertEquals(requests.get(i).getUid().getDeviceId(), responses.get(i).getData().byteAt(0));
+        }
+        assertTrue("window exceeded: " + maxPending.get(), maxPending.get() <= 4);
+        assertEquals(100, pipeline.getRequestsSent());
+    }
+
+    @Test
+    public void testAckTimer() throws Exception {
+        final AtomicInteger fetches = new AtomicInteger(0);
+        olad.setHandler("RDMCommand", new FakeOlad.Handler() {
+            public Message handle(Message message) {
+                RDMRequest request = (RDMRequest) message;
+                if (request.getParamId() == DMX_START_ADDRESS) {
+                    return ack(request)
+                            .setResponseType(RDMResponseType.RDM_ACK_TIMER)
+                            .setData(ByteString.copyFrom(new byte[] {0, 0}))
+                            .build();
+                }
+                if (request.getParamId() == RdmPipeline.QUEUED_MESSAGE) {
+                    assertEquals(RdmPipeline.STATUS_ADVISORY, request.getData().byteAt(0));
+                    // another queued message comes out first
+                    int pid = fetches.getAndIncrement() == 0 ? DEVICE_INFO : DMX_START_ADDRESS;
+                    return ack(request).setParamId(pid).build();
+                }
+                return ack(request).build();
+            }
+        });
+
+        final List<RDMResponse> received = new CopyOnWriteArrayList<RDMResponse>();
+        RdmPipeline pipeline = new RdmPipeline(client);
+        List<RDMRequest> requests = new ArrayList<RDMRequest>();
+        requests.add(RdmPipeline.get(1, uid(3), 0, DMX_START_ADDRESS));
+        pipeline.execute(requests, new RdmListener() {
+            public void responseReceived(RDMRequest request, RDMResponse response) {
+                received.add(response);
+            }
+
+            public void requestFailed(RDMRequest request, String reason) {
+            }
+        });
+
+        assertEquals(1, received.size());
+        assertEquals(DMX_START_ADDRESS, received.get(0).getParamId());
+        assertEquals(RDMResponseType.RDM_ACK, received.get(0).getResponseType());
+        assertEquals(1, pipeline.getAckTimerCount());
+        assertEquals(2, pipeline.getQueuedMessageCount());
+    }
+
+    @Test
+    public void testAckTimersForOneResponder() throws Exception {
+        // the responder queues responses in the order it receives the
+        // requests, and hands them out oldest first
+        final List<RDMResponse> queue = new ArrayList<RDMResponse>();
+        olad.setHandler("RDMCommand", new FakeOlad.Handler() {
+            public Message handle(Message message) {
+                RDMRequest request = (RDMRequest) message;
+                synchronized (queue) {
+                    if (request.getParamId() == RdmPipeline.QUEUED_MESSAGE) {
+                        if (queue.isEmpty()) {
+                            return ack(request).setParamId(RdmPipeline.STATUS_MESSAGES)
+                                    .setData(ByteString.EMPTY).build();
+                        }
+                        return queue.remove(0);
+                    }
+                    queue.add(ack(request).build());
+                    // DEVICE_INFO is queued first but expected later
+                    int units = request.getParamId() == DEVICE_INFO ? 3 : 0;
+                    return ack(request)
+                            .setResponseType(RDMResponseType.RDM_ACK_TIMER)
+                            .setData(ByteString.copyFrom(new byte[] {0, (byte) units}))
+                            .build();
+                }
+            }
+        });
+
+        RdmPipeline pipeline = new RdmPipeline(client);
+        List<RDMResponse> responses = pipeline.execute(inventory(1));
+        assertEquals(DEVICE_INFO, responses.get(0).getParamId());
+        assertEquals(RDMResponseType.RDM_ACK, responses.get(0).getResponseType());
+        assertEquals(DMX_START_ADDRESS, responses.get(1).getParamId());
+        assertEquals(RDMResponseType.RDM_ACK, responses.get(1).getResponseType());
+        assertEquals(2, pipeline.getAckTimerCount());
+        // both queued responses came back from one fetch loop
+        assertEquals(2, pipeline.getQueuedMessageCount());
+    }
+
+    @Test
+    public void testFailures() throws Exception {
+        olad.setHandler("RDMCommand", new FakeOlad.Handler() {
+            public Message handle(Message message) {
+                RDMRequest request = (RDMRequest) message;
+                if (request.getUid().getDeviceId() % 2 == 1) {
+                    return null;
+                }
+                if (request.getParamId() == DMX_START_ADDRESS) {
+                    return RDMResponse.newBuilder().setResponseCode(RDMResponseCode.RDM_TIMEOUT).build();
+                }
+                return ack(request).build();
+            }
+        });
+
+        final AtomicInteger failed = new AtomicInteger(0);
+        final AtomicInteger timedOut = new AtomicInteger(0);
+        new RdmPipeline(client, 8).execute(inventory(10), new RdmListener() {
+            public void responseReceived(RDMRequest request, RDMResponse response) {
+                if (response.getResponseCode() == RDMResponseCode.RDM_TIMEOUT) {
+                    timedOut.incrementAndGet();
+                }
+            }
+
+            public void requestFailed(RDMRequest request, String reason) {
+                failed.incrementAndGet();
+            }
+        });
+        assertEquals(10, failed.get());
+        assertEquals(5, timedOut.get());
+
+        List<RDMResponse> responses = new RdmPipeline(client).execute(inventory(2));
+        assertEquals(DEVICE_INFO, responses.get(0).getParamId());
+        assertNull(responses.get(2));
+    }
+
+    @Test
+    public void testAckTimerDelay() throws Exception {
+        RDMResponse response = RDMResponse.newBuilder()
+                .setResponseCode(RDMResponseCode.RDM_COMPLETED_OK)
+                .setResponseType(RDMResponseType.RDM_ACK_TIMER)
+                .setData(ByteString.copyFrom(new byte[] {1, 2}))
+                .build();
+        assertEquals(258 * 100, RdmPipeline.ackTimerDelay(response));
+    }
+}
@@ -0,0 +1,164 @@
+package ola;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import ola.proto.Ola.Ack;
+import ola.proto.Ola.TimeCode;
+import ola.proto.Ola.TimeCodeType;
+import ola.rpc.StreamRpcChannel;
+import ola.testing.FakeOlad;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.Message;
+
+/**
+ * Test timecode conversion and generation.
+ */
+public class TimeCodeGeneratorTest {
+
+    private FakeOlad olad;
+
+    private StreamRpcChannel channel;
+
+    private OlaClient client;
+
+    private final List<TimeCode> received = new CopyOnWriteArrayList<TimeCode>();
+
+    @Before
+    public void setUp() throws Exception {
+        olad = new FakeOlad().start();
+        olad.setHandler("SendTimeCode", new FakeOlad.Handler() {
+            public Message handle(Message request) {
+                received.add((TimeCode) request);
+                return Ack.getDefaultInstance();
+            }
+        });
+        channel = new StreamRpcChannel(olad.getHost(), olad.getPort());
+        client = new OlaClient(channel);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        olad.stop();
+    }
+
+    private static String format(TimeCodeType type, long frame) {
+        return TimeCodeGenerator.toString(TimeCodeGenerator.toTimeCode(type, frame));
+    }
+
+    @Test
+    public void testDropFrame() {
+        TimeCodeType df = TimeCodeType.TIMECODE_DF;
+        assertEquals("00:00:00;00", format(df, 0));
+        assertEquals("00:00:59;29", format(df, 1799));
+        assertEquals("00:01:00;02", format(df, 1800));
+        assertEquals("00:01:59;29", format(df, 3597));
+        assertEquals("00:02:00;02", format(df, 3598));
+        assertEquals("00:09:59;29", format(df, 17981));
+        assertEquals("00:10:00;00", format(df, 17982));
+        assertEquals("00:10:00;01", format(df, 17983));
+        assertEquals("00:11:00;02", format(df, 17982 + 1800));
+        assertEquals("23:59:59;29", format(df, TimeCodeGenerator.getFramesPerDay(df) - 1));
+        assertEquals(2589408, TimeCodeGenerator.getFramesPerDay(df));
+
+        try {
+            TimeCodeGenerator.toFrame(df, 0, 1, 0, 1);
+            fail("Dropped frame accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(17982, TimeCodeGenerator.toFrame(df, 0, 10, 0, 0));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        for (TimeCodeType type : TimeCodeType.values()) {
+            long framesPerDay = TimeCodeGenerator.getFramesPerDay(type);
+            for (long frame = 0; frame < framesPerDay; frame += 7) {
+                TimeCode timeCode = TimeCodeGenerator.toTimeCode(type, frame);
+                assertEquals(frame, TimeCodeGenerator.toFrame(timeCode));
+            }
+        }
+        assertEquals("00:00:01:00", format(TimeCodeType.TIMECODE_FILM, 24));
+        assertEquals("00:00:01:00", format(TimeCodeType.TIMECODE_EBU, 25));
+        assertEquals("01:00:00:00", format(TimeCodeType.TIMECODE_SMPTE, 108000));
+    }
+
+    @Test
+    public void testFrameRate() {
+        // a day of 29.97 is 86400 * 1.001 seconds, less the dropped frames
+        assertEquals(86399913600000L, TimeCodeGenerator.getDuration(TimeCodeType.TIMECODE_DF,
+                TimeCodeGenerator.getFramesPerDay(TimeCodeType.TIMECODE_DF)));
+        assertEquals(1000000000L, TimeCodeGenerator.getDuration(TimeCodeType.TIMECODE_FILM, 24));
+        assertEquals(29, TimeCodeGenerator.getFrameCount(TimeCodeType.TIMECODE_DF, 1000000000L));
+        assertEquals(30, TimeCodeGenerator.getFrameCount(TimeCodeType.TIMECODE_DF, 1001000000L));
+    }
+
+    @Test
+    public void testGenerate() throws Exception {
+        TimeCodeGenerator generator = new TimeCodeGenerator(client, TimeCodeType.TIMECODE_EBU);
+        generator.locate(1, 0, 0, 20);
+        long start = System.nanoTime();
+        generator.start();
+        assertTrue(generator.isRunning());
+        Thread.sleep(400);
+        generator.stop();
+        long elapsed = System.nanoTime() - start;
+        assertFalse(generator.isRunning());
+
+        long sent = generator.getFramesSent();
+        long expected = elapsed * 25 / 1000000000L;
+        assertTrue("sent " + sent + " expected " + expected, Math.abs(sent - expected) <= 2);
+        assertEquals(sent, generator.getJitter().getCount());
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (received.size() < sent - generator.getFramesSkipped()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timecode not received");
+            }
+            Thread.sleep(5);
+        }
+        assertEquals("01:00:00:20", TimeCodeGenerator.toString(received.get(0)));
+        assertEquals("01:00:00:21", TimeCodeGenerator.toString(received.get(1)));
+        assertEquals("01:00:01:00", TimeCodeGenerator.toString(received.get(5)));
+        assertEquals(0, generator.getSendFailures());
+
+        TimeCode last = received.get(received.size() - 1);
+        assertEquals(TimeCodeGenerator.toFrame(last) + 1, generator.getFrame());
+    }
+
+    @Test
+    public void testLocateWhileRunning() throws Exception {
+        TimeCodeGenerator generator = new TimeCodeGenerator(client, TimeCodeType.TIMECODE_DF);
+        generator.start();
+        Thread.sleep(100);
+        generator.locate(0, 9, 59, 29);
+        Thread.sleep(100);
+        generator.stop();
+
+        long deadline = System.currentTimeMillis() + 2000;
+        boolean found = false;
+        while (!found) {
+            for (int i = 0; i < received.size() - 1; i++) {
+                if (TimeCodeGenerator.toString(received.get(i)).equals("00:09:59;29")) {
+                    assertEquals("00:10:00;00", TimeCodeGenerator.toString(received.get(i + 1)));
+                    found = true;
+                }
+            }
+            if (System.currentTimeMillis() > deadline) {
+                fail("Located timecode not received");
+            }
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ola;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import ola.proto.Ola.UID;
+
+import org.junit.Test;
+
+/**
+ * Test the UID index and the changes it reports.
+ */
+public class UidInventoryTest {
+
+    private static UID uid(int estaId, int deviceId) {
+        return UID.newBuilder().setEstaId(estaId).setDeviceId(deviceId).build();
+    }
+
+    @Test
+    public void testAddAndRemove() throws Exception {
+        UidInventory inventory = new UidInventory();
+        UidChanges changes = inventory.update(1, Arrays.asList(uid(1, 1), uid(1, 2), uid(2, 1)));
+        assertEquals(3, changes.getAdded().size());
+        assertTrue(changes.getRemoved().isEmpty());
+        assertEquals(3, inventory.size());
+        assertEquals(Integer.valueOf(1), inventory.getUniverse(uid(1, 2)));
+
+        changes = inventory.update(1, Arrays.asList(uid(1, 1), uid(1, 2), uid(2, 1)));
+        assertTrue(changes.isEmpty());
+
+        changes = inventory.update(1, Arrays.asList(uid(1, 1), uid(2, 1), uid(2, 2)));
+        assertEquals(Arrays.asList(uid(2, 2)), changes.getAdded());
+        assertEquals(Arrays.asList(uid(1, 2)), changes.getRemoved());
+        assertNull(inventory.getUniverse(uid(1, 2)));
+        assertEquals(new HashSet<UID>(Arrays.asList(uid(1, 1), uid(2, 1), uid(2, 2))), inventory.getUids(1));
+    }
+
+    @Test
+    public void testManufacturerIndex() throws Exception {
+        UidInventory inventory = new UidInventory();
+        inventory.update(1, Arrays.asList(uid(1, 1), uid(2, 1)));
+        inventory.update(2, Arrays.asList(uid(1, 2), uid(1, 3)));
+        assertEquals(new HashSet<UID>(Arrays.asList(uid(1, 1), uid(1, 2), uid(1, 3))),
+                inventory.getUidsByManufacturer(1));
+        assertEquals(Collections.singleton(uid(2, 1)), inventory.getUidsByManufacturer(2));
+
+        inventory.remove(2);
+        assertEquals(Collections.singleton(uid(1, 1)), inventory.getUidsByManufacturer(1));
+        inventory.remove(1);
+        assertTrue(inventory.getUidsByManufacturer(1).isEmpty());
+        assertEquals(0, inventory.size());
+    }
+
+    @Test
+    public void testUidMovesUniverse() throws Exception {
+        UidInventory inventory = new UidInventory();
+        inventory.update(1, Arrays.asList(uid(1, 1), uid(1, 2)));
+        UidChanges changes = inventory.update(2, Arrays.asList(uid(1, 2)));
+        assertEquals(Arrays.asList(uid(1, 2)), changes.getAdded());
+        assertEquals(Integer.valueOf(2), inventory.getUniverse(uid(1, 2)));
+        assertEquals(Collections.singleton(uid(1, 1)), inventory.getUids(1));
+
+        // the old universe doesn't report it as removed again
+        changes = inventory.update(1, Arrays.asList(uid(1, 1)));
+        assertTrue(changes.isEmpty());
+        assertEquals(Integer.valueOf(2), inventory.getUniverse(uid(1, 2)));
+        assertEquals(2, inventory.getUidsByManufacturer(1).size());
+    }
+}
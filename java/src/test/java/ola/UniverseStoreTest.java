@@ -0,0 +1,151 @@
+package ola;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ola.rpc.StreamRpcChannel;
+import ola.testing.FakeOlad;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Test the universe store.
+ */
+public class UniverseStoreTest {
+
+    @Test
+    public void testReadWrite() {
+        UniverseStore store = new UniverseStore(4);
+        byte[] values = new byte[DmxFrame.MAX_CHANNELS];
+        assertEquals(-1, store.read(1, values));
+        assertFalse(store.contains(1));
+        assertEquals(0, store.getVersion(1));
+
+        store.write(1, new byte[] {1, 2, 3}, 0, 3);
+        assertEquals(3, store.read(1, values));
+        assertArrayEquals(new byte[] {1, 2, 3}, Arrays.copyOf(values, 3));
+        assertEquals(1, store.getVersion(1));
+
+        store.set(1, 9, 200);
+        assertEquals(10, store.read(1, values));
+        assertEquals(200, store.get(1, 9));
+        assertEquals(0, store.get(1, 5));
+        assertEquals(2, store.getVersion(1));
+
+        store.dmxReceived(2, ByteString.copyFrom(new byte[] {7, 8}));
+        assertEquals(2, store.read(2, values));
+        assertEquals(8, values[1]);
+
+        DmxFrame frame = new DmxFrame(0);
+        assertTrue(store.copyTo(1, frame));
+        assertEquals(1, frame.getUniverse());
+        assertEquals(10, frame.getLength());
+        assertEquals(200, frame.get(9));
+
+        assertEquals(2, store.size());
+        assertArrayEquals(new int[] {1, 2}, store.getUniverses());
+    }
+
+    @Test
+    public void testCapacity() {
+        UniverseStore store = new UniverseStore(1000);
+        Random random = new Random(11);
+        int[] universes = new int[1000];
+        for (int i = 0; i < universes.length; i++) {
+            universes[i] = random.nextInt();
+            store.set(universes[i], 0, i);
+        }
+        for (int i = 0; i < universes.length; i++) {
+            assertEquals(i & 0xff, store.get(universes[i], 0));
+        }
+        assertEquals(1000, store.size());
+
+        try {
+            store.set(universes[0] + 1, 0, 0);
+            fail("Store grew past its capacity");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testConsistentReads() throws Exception {
+        final UniverseStore store = new UniverseStore(1);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> error = new AtomicReference<String>();
+        store.write(1, new byte[DmxFrame.MAX_CHANNELS], 0, DmxFrame.MAX_CHANNELS);
+
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(new Runnable() {
+                public void run() {
+                    byte[] values = new byte[DmxFrame.MAX_CHANNELS];
+                    while (running.get()) {
+                        int length = store.read(1, values);
+                        for (int j = 1; j < length; j++) {
+                            if (values[j] != values[0]) {
+                                error.set("Torn read at channel " + j);
+                                return;
+                            }
+                        }
+                    }
+                }
+            });
+            readers[i].start();
+        }
+
+        byte[] values = new byte[DmxFrame.MAX_CHANNELS];
+        for (int i = 0; i < 200000; i++) {
+            Arrays.fill(values, (byte) i);
+            store.write(1, values, 0, values.length);
+        }
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (error.get() != null) {
+            fail(error.get());
+        }
+    }
+
+    @Test
+    public void testClient() throws Exception {
+        FakeOlad olad = new FakeOlad().start();
+        OlaClient client = new OlaClient(new StreamRpcChannel(olad.getHost(), olad.getPort()));
+        try {
+            UniverseStore store = new UniverseStore(8);
+            assertTrue(client.registerForDmx(3, store));
+            olad.pushDmx(3, new byte[] {5, 6, 7});
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!store.contains(3)) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail("Dmx not received");
+                }
+                Thread.sleep(5);
+            }
+            assertEquals(6, store.get(3, 1));
+
+            store.set(4, 0, 99);
+            client.streamDmx(store, 4);
+            // not in the store, nothing is sent
+            client.streamDmx(store, 5);
+            client.getUniverseInfo(0);
+            assertArrayEquals(new byte[] {99}, olad.getDmx(4));
+            assertEquals(null, olad.getDmx(5));
+        } finally {
+            client.close();
+            olad.stop();
+        }
+    }
+}
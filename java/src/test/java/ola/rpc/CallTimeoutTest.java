@@ -0,0 +1,184 @@
+package ola.rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import ola.DmxFrame;
+import ola.OlaClient;
+import ola.proto.Ola.Ack;
+import ola.proto.Ola.DmxData;
+import ola.proto.Ola.OlaServerService;
+import ola.testing.FakeOlad;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+
+/**
+ * Test call deadlines and cancellation.
+ */
+public class CallTimeoutTest {
+
+    private FakeOlad olad;
+
+    private StreamRpcChannel channel;
+
+    private OlaClient client;
+
+    private RpcMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        olad = new FakeOlad().start();
+        channel = new StreamRpcChannel(olad.getHost(), olad.getPort());
+        metrics = new RpcMetrics();
+        channel.setMetricsListener(metrics);
+        client = new OlaClient(channel);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        olad.stop();
+    }
+
+    private void waitForCancels(long count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (olad.getCancelCount() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("olad didn't receive " + count + " cancels");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testDefaultTimeout() throws Exception {
+        client.setCallTimeout(50, TimeUnit.MILLISECONDS);
+        olad.setDropRate(1);
+
+        long start = System.nanoTime();
+        assertFalse(client.sendDmx(1, new byte[10]));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(0, channel.getPendingCallCount());
+        waitForCancels(1);
+        assertEquals(1, metrics.getCancelledRequestCount());
+    }
+
+    @Test
+    public void testControllerTimeout() throws Exception {
+        olad.setLatency(500, 500, TimeUnit.MILLISECONDS);
+        MethodDescriptor method = OlaServerService.getDescriptor().findMethodByName("UpdateDmxData");
+        SimpleRpcController controller = new SimpleRpcController();
+        controller.setTimeout(20, TimeUnit.MILLISECONDS);
+
+        final CompletableFuture<Message> result = new CompletableFuture<Message>();
+        channel.callMethodAsync(method, controller, new DmxFrame(1), Ack.getDefaultInstance(),
+                new RpcCallback<Message>() {
+                    public void run(Message response) {
+                        result.complete(response);
+                    }
+                });
+        assertEquals(null, result.get(5, TimeUnit.SECONDS));
+        assertTrue(controller.failed());
+        assertTrue(controller.errorText().startsWith("Timed out"));
+        waitForCancels(1);
+
+        // the late response is ignored and the channel still works
+        Thread.sleep(600);
+        olad.setLatency(0, 0, TimeUnit.MILLISECONDS);
+        assertTrue(client.sendDmx(1, new byte[10]));
+    }
+
+    @Test
+    public void testCancelFuture() throws Exception {
+        olad.setDropRate(1);
+        CompletableFuture<DmxData> reply = client.getDmxAsync(1);
+        assertEquals(1, channel.getPendingCallCount());
+        assertTrue(reply.cancel(true));
+        assertEquals(0, channel.getPendingCallCount());
+        waitForCancels(1);
+        try {
+            reply.get();
+            fail("Cancelled call completed");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testInterruptCancelsBlockingCall() throws Exception {
+        olad.setDropRate(1);
+        final CompletableFuture<DmxData> result = new CompletableFuture<DmxData>();
+        Thread caller = new Thread(new Runnable() {
+            public void run() {
+                result.complete(client.getDmx(1));
+            }
+        });
+        caller.start();
+        while (channel.getPendingCallCount() == 0) {
+            Thread.sleep(1);
+        }
+        caller.interrupt();
+        assertEquals(null, result.get(5, TimeUnit.SECONDS));
+        assertEquals(0, channel.getPendingCallCount());
+        waitForCancels(1);
+    }
+
+    @Test
+    public void testInterruptCancelsChannelCall() throws Exception {
+        olad.setDropRate(1);
+        final MethodDescriptor method = OlaServerService.getDescriptor().findMethodByName("UpdateDmxData");
+        final SimpleRpcController controller = new SimpleRpcController();
+        Thread caller = new Thread(new Runnable() {
+            public void run() {
+                channel.callMethod(method, controller, new DmxFrame(1), Ack.getDefaultInstance(), null);
+            }
+        });
+        caller.start();
+        while (channel.getPendingCallCount() == 0) {
+            Thread.sleep(1);
+        }
+        caller.interrupt();
+        caller.join(5000);
+        assertFalse(caller.isAlive());
+        assertTrue(controller.failed());
+        assertEquals(0, channel.getPendingCallCount());
+        waitForCancels(1);
+    }
+
+    @Test
+    public void testCompletedCallsDontTimeOut() throws Exception {
+        client.setCallTimeout(50, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(client.sendDmx(1, new byte[10]));
+        }
+        Thread.sleep(100);
+        assertEquals(0, olad.getCancelCount());
+        assertEquals(0, metrics.getCancelledRequestCount());
+    }
+
+    @Test
+    public void testTimeoutWithAsyncCalls() throws Exception {
+        client.setCallTimeout(50, TimeUnit.MILLISECONDS);
+        olad.setDropRate(1);
+        CompletableFuture<Ack> reply = client.sendDmxAsync(new DmxFrame(1));
+        try {
+            reply.get(5, TimeUnit.SECONDS);
+            fail("Call without a reply completed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RpcException);
+        }
+    }
+}
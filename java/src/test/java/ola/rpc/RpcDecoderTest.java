@@ -0,0 +1,132 @@
+package ola.rpc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import ola.proto.Ola.DmxData;
+import ola.rpc.Rpc.RpcMessage;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Test splitting a stream of bytes into rpc messages.
+ */
+public class RpcDecoderTest {
+
+    private static byte[] frame(RpcMessage message) {
+        byte[] data = message.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + data.length).order(ByteOrder.nativeOrder());
+        buffer.putInt((1 << 28) | data.length);
+        buffer.put(data);
+        return buffer.array();
+    }
+
+    private static RpcMessage response(int id, int channels) {
+        byte[] data = new byte[channels];
+        for (int i = 0; i < channels; i++) {
+            data[i] = (byte) (id + i);
+        }
+        DmxData dmx = DmxData.newBuilder().setUniverse(id).setData(ByteString.copyFrom(data)).build();
+        return RpcMessage.newBuilder()
+                .setType(Rpc.Type.RESPONSE)
+                .setId(id)
+                .setBuffer(dmx.toByteString())
+                .build();
+    }
+
+    private static void assertResponse(RpcDecoder decoder, int id, int channels) throws Exception {
+        assertTrue(decoder.next());
+        assertEquals(Rpc.Type.RESPONSE, decoder.getType());
+        assertEquals(id, decoder.getId());
+        assertNull(decoder.getName());
+        DmxData dmx = (DmxData) decoder.parsePayload(DmxData.getDefaultInstance());
+        assertEquals(id, dmx.getUniverse());
+        assertEquals(response(id, channels).getBuffer(), dmx.toByteString());
+    }
+
+    @Test
+    public void testOneByteAtATime() throws Exception {
+        RpcDecoder decoder = new RpcDecoder();
+        byte[] bytes = frame(response(1, 512));
+        for (int i = 0; i < bytes.length - 1; i++) {
+            decoder.write(bytes, i, 1);
+            assertFalse(decoder.next());
+        }
+        decoder.write(bytes, bytes.length - 1, 1);
+        assertResponse(decoder, 1, 512);
+        assertFalse(decoder.next());
+        assertEquals(0, decoder.getBufferedBytes());
+    }
+
+    @Test
+    public void testSeveralMessagesInOneRead() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int id = 0; id < 10; id++) {
+            stream.write(frame(response(id, 100)));
+        }
+        byte[] bytes = stream.toByteArray();
+        RpcDecoder decoder = new RpcDecoder(64);
+        decoder.write(bytes, 0, bytes.length - 3);
+        for (int id = 0; id < 9; id++) {
+            assertResponse(decoder, id, 100);
+        }
+        assertFalse(decoder.next());
+        decoder.write(bytes, bytes.length - 3, 3);
+        assertResponse(decoder, 9, 100);
+    }
+
+    @Test
+    public void testBufferIsReused() throws Exception {
+        RpcDecoder decoder = new RpcDecoder(1024);
+        byte[] bytes = frame(response(1, 300));
+        for (int i = 0; i < 100; i++) {
+            decoder.write(bytes, 0, 200);
+            assertFalse(decoder.next());
+            decoder.write(bytes, 200, bytes.length - 200);
+            assertResponse(decoder, 1, 300);
+        }
+        assertEquals(1024, decoder.getCapacity());
+    }
+
+    @Test
+    public void testLargeMessage() throws Exception {
+        RpcDecoder decoder = new RpcDecoder(16);
+        byte[] bytes = frame(response(2, 100000));
+        decoder.write(bytes, 0, bytes.length);
+        assertResponse(decoder, 2, 100000);
+    }
+
+    @Test
+    public void testRequest() throws Exception {
+        RpcDecoder decoder = new RpcDecoder();
+        byte[] bytes = frame(RpcMessage.newBuilder()
+                .setType(Rpc.Type.REQUEST)
+                .setId(-1)
+                .setName("UpdateDmxData")
+                .build());
+        decoder.write(bytes, 0, bytes.length);
+        assertTrue(decoder.next());
+        assertEquals(Rpc.Type.REQUEST, decoder.getType());
+        assertEquals(-1, decoder.getId());
+        assertEquals("UpdateDmxData", decoder.getName());
+        assertEquals(0, decoder.getPayloadLength());
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void testMissingId() throws Exception {
+        RpcDecoder decoder = new RpcDecoder();
+        byte[] bytes = frame(RpcMessage.newBuilder().setType(Rpc.Type.RESPONSE).buildPartial());
+        decoder.write(bytes, 0, bytes.length);
+        decoder.next();
+    }
+}
@@ -0,0 +1,98 @@
+package ola.rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import ola.DmxFrame;
+import ola.OlaClient;
+import ola.testing.FakeOlad;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the metrics reported by a channel.
+ */
+public class RpcMetricsTest {
+
+    private FakeOlad olad;
+
+    private RpcMetrics metrics;
+
+    private OlaClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        olad = new FakeOlad().start();
+        metrics = new RpcMetrics();
+        client = new OlaClient(olad.getHost(), olad.getPort());
+        client.setMetricsListener(metrics);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        olad.stop();
+    }
+
+    @Test
+    public void testCalls() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(client.sendDmx(1, new byte[512]));
+        }
+        assertEquals(10, metrics.getCallCount());
+        assertEquals(10, metrics.getCompletedCount());
+        assertEquals(0, metrics.getInFlightCount());
+        assertEquals(10, metrics.getMethodCallCount("UpdateDmxData"));
+        assertEquals(10, metrics.getLatency("UpdateDmxData").getCount());
+        assertTrue(metrics.getLatencyP99Micros() > 0);
+        assertTrue(metrics.getBytesSent() > 10 * 512);
+        assertTrue(metrics.getBytesReceived() > 0);
+    }
+
+    @Test
+    public void testFailures() throws Exception {
+        assertNull(client.getPlugins());
+        assertEquals(1, metrics.getNotImplementedCount());
+        assertEquals(1, metrics.getMethodFailureCount("GetPlugins"));
+
+        olad.setDropRate(1);
+        client.sendDmxAsync(new DmxFrame(1));
+        assertEquals(1, metrics.getInFlightCount());
+        client.close();
+        assertEquals(1, metrics.getLocalFailureCount());
+        assertEquals(0, metrics.getInFlightCount());
+        assertEquals(1, metrics.getDisconnectCount());
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            client.streamDmx(1, new byte[10]);
+        }
+        assertEquals(5, metrics.getStreamedCount());
+        assertEquals(0, metrics.getCallCount());
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        metrics.registerMBean("test");
+        try {
+            client.sendDmx(1, new byte[10]);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("ola.rpc:type=RpcMetrics,name=" + ObjectName.quote("test"));
+            assertEquals(1L, server.getAttribute(name, "CallCount"));
+            assertEquals(1L, server.invoke(name, "getMethodCallCount", new Object[] {"UpdateDmxData"},
+                    new String[] {String.class.getName()}));
+        } finally {
+            metrics.unregisterMBean();
+        }
+    }
+}
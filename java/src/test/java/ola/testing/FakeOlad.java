@@ -0,0 +1,758 @@
+/***********************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *************************************************************************/
+package ola.testing;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import ola.proto.Ola.Ack;
+import ola.proto.Ola.DmxData;
+import ola.proto.Ola.OlaServerService;
+import ola.proto.Ola.RegisterAction;
+import ola.proto.Ola.RegisterDmxRequest;
+import ola.proto.Ola.UniverseInfo;
+import ola.proto.Ola.UniverseInfoReply;
+import ola.proto.Ola.UniverseRequest;
+import ola.proto.Ola.OptionalUniverseRequest;
+import ola.proto.Ola.MergeMode;
+import ola.rpc.Rpc;
+import ola.rpc.Rpc.RpcMessage;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Message;
+
+/**
+ * An in-process stand in for olad, for tests and benchmarks which can't
+ * rely on a real daemon.
+ *
+ * It speaks the same framing as olad, a 4 byte header followed by an
+ * RpcMessage, but implements the framing itself rather than reusing the
+ * client's channel code. DMX sent with UpdateDmxData or StreamDmxData is
+ * stored and returned by GetDmx, and universes which have received data
+ * are reported by GetUniverseInfo. Other methods which reply with an Ack
+ * are acknowledged, and the rest reply RESPONSE_NOT_IMPLEMENTED unless a
+ * handler is set with setHandler().
+ *
+ * Replies can be made to misbehave, to test the client against a slow or
+ * unreliable daemon: they can be delayed by a random latency, dropped,
+ * written in small fragments so the client sees partial reads, and held
+ * back and sent in reverse order. The faults are drawn from a seeded
+ * Random so a failing test can be repeated.
+ */
+public class FakeOlad {
+
+    private static Logger logger = Logger.getLogger(FakeOlad.class.getName());
+
+    private static final int PROTOCOL_VERSION = 1;
+
+    private static final int SIZE_MASK = 0x0fffffff;
+
+    private static final OlaServerService SERVICE = OlaServerService.newStub(null);
+
+    /**
+     * Produces the reply for a request.
+     */
+    public interface Handler {
+
+        /**
+         * @return the reply, or null to send RESPONSE_FAILED.
+         */
+        Message handle(Message request);
+    }
+
+    private final ServerSocket serverSocket;
+
+    private final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+
+    private final Map<String, Handler> handlers = new ConcurrentHashMap<String, Handler>();
+
+    private final Map<Integer, byte[]> universes = new ConcurrentHashMap<Integer, byte[]>();
+
+    private final Map<Integer, Integer> priorities = new ConcurrentHashMap<Integer, Integer>();
+
+    private final ConcurrentMap<String, AtomicLong> requestCounts =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    private final AtomicInteger pushSequence = new AtomicInteger(0);
+
+    private final AtomicLong droppedReplies = new AtomicLong(0);
+
+    private final AtomicLong cancelledRequests = new AtomicLong(0);
+
+    private final AtomicLong pushResponses = new AtomicLong(0);
+
+    private Random random = new Random(0);
+
+    private volatile long minLatency = 0;
+
+    private volatile long maxLatency = 0;
+
+    private volatile double dropRate = 0;
+
+    private volatile int fragmentSize = 0;
+
+    private volatile long fragmentPause = 0;
+
+    private volatile int reorderWindow = 0;
+
+    private volatile long reorderTimeout = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private ScheduledExecutorService replyExecutor;
+
+    private Thread acceptThread;
+
+    private volatile boolean running = false;
+
+
+    /**
+     * Create a fake olad listening on an ephemeral loopback port.
+     */
+    public FakeOlad() throws IOException {
+        this(0);
+    }
+
+
+    /**
+     * Create a fake olad listening on a loopback port.
+     *
+     * @param port the port, 0 to pick a free one
+     */
+    public FakeOlad(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+
+    /**
+     * @return the port clients should connect to.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+
+    /**
+     * @return the host clients should connect to.
+     */
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+
+    /**
+     * Start accepting connections.
+     */
+    public synchronized FakeOlad start() {
+        running = true;
+        replyExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fake-olad-replies-" + getPort());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        acceptThread = new Thread(new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        }, "fake-olad-" + getPort());
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return this;
+    }
+
+
+    /**
+     * Stop accepting connections and close all open ones.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (replyExecutor != null) {
+            replyExecutor.shutdownNow();
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            logger.warning("Error closing server socket. " + e.getMessage());
+        }
+        disconnectClients();
+    }
+
+
+    /**
+     * Seed the Random the faults are drawn from.
+     */
+    public synchronized void setSeed(long seed) {
+        random = new Random(seed);
+    }
+
+
+    /**
+     * Delay each reply by a random time between min and max. Replies to
+     * requests made close together can overtake each other if the range is
+     * wider than the gap between the requests.
+     */
+    public void setLatency(long min, long max, TimeUnit unit) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("Invalid latency range " + min + " - " + max);
+        }
+        minLatency = unit.toNanos(min);
+        maxLatency = unit.toNanos(max);
+    }
+
+
+    /**
+     * Drop a fraction of replies, the request is still run.
+     *
+     * @param rate between 0, the default, and 1
+     */
+    public void setDropRate(double rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("Invalid drop rate " + rate);
+        }
+        dropRate = rate;
+    }
+
+
+    /**
+     * Write replies in fragments of at most size bytes, flushing and
+     * pausing after each one, so the client reads partial messages.
+     *
+     * @param size the fragment size, 0 to write replies whole
+     * @param pause the pause after each fragment
+     */
+    public void setFragmentation(int size, long pause, TimeUnit unit) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid fragment size " + size);
+        }
+        fragmentSize = size;
+        fragmentPause = unit.toNanos(pause);
+    }
+
+
+    /**
+     * Hold replies back until window of them are waiting and then send them
+     * in reverse order. Replies which are still waiting after the timeout
+     * are sent, also in reverse order, so a quiet client isn't left
+     * waiting.
+     *
+     * @param window the number of replies to reorder, 0 or 1 to send them in
+     *        order
+     */
+    public void setReorderWindow(int window, long timeout, TimeUnit unit) {
+        if (window < 0) {
+            throw new IllegalArgumentException("Invalid reorder window " + window);
+        }
+        reorderWindow = window;
+        reorderTimeout = unit.toNanos(timeout);
+    }
+
+
+    /**
+     * @return the number of replies dropped by setDropRate().
+     */
+    public long getDroppedReplyCount() {
+        return droppedReplies.get();
+    }
+
+
+    /**
+     * @return the number of REQUEST_CANCEL messages received.
+     */
+    public long getCancelCount() {
+        return cancelledRequests.get();
+    }
+
+
+    /**
+     * @return the number of responses received to requests sent by
+     *         pushDmx().
+     */
+    public long getPushResponseCount() {
+        return pushResponses.get();
+    }
+
+
+    /**
+     * Close all client connections but keep accepting new ones.
+     */
+    public void disconnectClients() {
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
+
+    /**
+     * @return the number of open client connections.
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+
+    /**
+     * Reply to a method with a handler instead of the default behaviour.
+     */
+    public void setHandler(String method, Handler handler) {
+        handlers.put(method, handler);
+    }
+
+
+    /**
+     * Add a universe with no data.
+     */
+    public void addUniverse(int universe) {
+        if (!universes.containsKey(universe)) {
+            universes.put(universe, new byte[0]);
+        }
+    }
+
+
+    /**
+     * @return the last data received for a universe, or null.
+     */
+    public byte[] getDmx(int universe) {
+        return universes.get(universe);
+    }
+
+
+    /**
+     * @return the priority of the last data received for a universe, or
+     *         null if it didn't have one.
+     */
+    public Integer getPriority(int universe) {
+        return priorities.get(universe);
+    }
+
+
+    /**
+     * @return the number of requests received for a method.
+     */
+    public long getRequestCount(String method) {
+        AtomicLong count = requestCounts.get(method);
+        return count == null ? 0 : count.get();
+    }
+
+
+    /**
+     * Send DMX to every client which registered for the universe, as olad
+     * does when input data arrives.
+     */
+    public void pushDmx(int universe, byte[] data) throws IOException {
+        DmxData dmx = DmxData.newBuilder()
+                .setUniverse(universe)
+                .setData(ByteString.copyFrom(data))
+                .build();
+        RpcMessage message = RpcMessage.newBuilder()
+                .setType(Rpc.Type.REQUEST)
+                .setId(pushSequence.getAndIncrement())
+                .setName("UpdateDmxData")
+                .setBuffer(dmx.toByteString())
+                .build();
+        for (Connection connection : connections) {
+            if (connection.registrations.contains(universe)) {
+                connection.send(message);
+            }
+        }
+    }
+
+
+    /**
+     * @return the number of clients registered for a universe.
+     */
+    public int getRegistrationCount(int universe) {
+        int count = 0;
+        for (Connection connection : connections) {
+            if (connection.registrations.contains(universe)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Called for each request, in the connection's reader thread. The
+     * default implementation replies immediately.
+     */
+    protected void dispatch(final Connection connection, RpcMessage request) {
+        final RpcMessage reply = handle(connection, request);
+        if (reply == null) {
+            return;
+        }
+
+        long latency;
+        synchronized (this) {
+            if (dropRate > 0 && random.nextDouble() < dropRate) {
+                droppedReplies.incrementAndGet();
+                return;
+            }
+            latency = minLatency;
+            if (maxLatency > minLatency) {
+                latency += (long) (random.nextDouble() * (maxLatency - minLatency));
+            }
+        }
+
+        if (latency == 0) {
+            connection.reply(reply);
+            return;
+        }
+        schedule(new Runnable() {
+            public void run() {
+                connection.reply(reply);
+            }
+        }, latency);
+    }
+
+
+    private void schedule(Runnable task, long delay) {
+        try {
+            replyExecutor.schedule(task, delay, TimeUnit.NANOSECONDS);
+        } catch (Exception e) {
+            // stopped
+        }
+    }
+
+
+    /**
+     * Run a request.
+     *
+     * @return the reply to send, or null if none is needed.
+     */
+    protected RpcMessage handle(Connection connection, RpcMessage request) {
+
+        countRequest(request.getName());
+        boolean streaming = request.getType() == Rpc.Type.STREAM_REQUEST;
+        RpcMessage.Builder reply = RpcMessage.newBuilder().setId(request.getId());
+
+        MethodDescriptor method = SERVICE.getDescriptorForType().findMethodByName(request.getName());
+        if (method == null) {
+            return streaming ? null : reply.setType(Rpc.Type.RESPONSE_NOT_IMPLEMENTED).build();
+        }
+
+        Message input;
+        try {
+            input = SERVICE.getRequestPrototype(method).newBuilderForType().mergeFrom(request.getBuffer()).build();
+        } catch (Exception e) {
+            return streaming ? null : reply.setType(Rpc.Type.RESPONSE_FAILED)
+                    .setBuffer(ByteString.copyFromUtf8("Invalid request: " + e.getMessage())).build();
+        }
+
+        Message output;
+        Handler handler = handlers.get(method.getName());
+        if (handler != null) {
+            output = handler.handle(input);
+        } else {
+            output = defaultHandle(connection, method, input);
+        }
+
+        if (streaming) {
+            return null;
+        }
+        if (output == null) {
+            return reply.setType(handler == null ? Rpc.Type.RESPONSE_NOT_IMPLEMENTED : Rpc.Type.RESPONSE_FAILED)
+                    .build();
+        }
+        return reply.setType(Rpc.Type.RESPONSE).setBuffer(output.toByteString()).build();
+    }
+
+
+    private Message defaultHandle(Connection connection, MethodDescriptor method, Message input) {
+        String name = method.getName();
+        if (name.equals("UpdateDmxData") || name.equals("StreamDmxData")) {
+            DmxData data = (DmxData) input;
+            universes.put(data.getUniverse(), data.getData().toByteArray());
+            if (data.hasPriority()) {
+                priorities.put(data.getUniverse(), data.getPriority());
+            } else {
+                priorities.remove(data.getUniverse());
+            }
+            return Ack.getDefaultInstance();
+        } else if (name.equals("GetDmx")) {
+            int universe = ((UniverseRequest) input).getUniverse();
+            byte[] data = universes.get(universe);
+            if (data == null) {
+                return null;
+            }
+            return DmxData.newBuilder().setUniverse(universe).setData(ByteString.copyFrom(data)).build();
+        } else if (name.equals("RegisterForDmx")) {
+            RegisterDmxRequest request = (RegisterDmxRequest) input;
+            if (request.getAction() == RegisterAction.REGISTER) {
+                connection.registrations.add(request.getUniverse());
+            } else {
+                connection.registrations.remove(request.getUniverse());
+            }
+            return Ack.getDefaultInstance();
+        } else if (name.equals("GetUniverseInfo")) {
+            OptionalUniverseRequest request = (OptionalUniverseRequest) input;
+            UniverseInfoReply.Builder reply = UniverseInfoReply.newBuilder();
+            for (Integer universe : universes.keySet()) {
+                if (!request.hasUniverse() || request.getUniverse() == universe) {
+                    reply.addUniverse(universeInfo(universe));
+                }
+            }
+            return reply.build();
+        } else if (method.getOutputType() == Ack.getDescriptor()) {
+            return Ack.getDefaultInstance();
+        }
+        return null;
+    }
+
+
+    private static UniverseInfo universeInfo(int universe) {
+        return UniverseInfo.newBuilder()
+                .setUniverse(universe)
+                .setName("Universe " + universe)
+                .setMergeMode(MergeMode.HTP)
+                .setInputPortCount(0)
+                .setOutputPortCount(0)
+                .setRdmDevices(0)
+                .build();
+    }
+
+
+    private void countRequest(String method) {
+        AtomicLong count = requestCounts.get(method);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong(0);
+            count = requestCounts.putIfAbsent(method, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+                connection.start();
+            } catch (IOException e) {
+                if (running) {
+                    logger.warning("Error accepting connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+
+    /**
+     * A connection from a client.
+     */
+    protected class Connection {
+
+        private final Socket socket;
+
+        private final OutputStream output;
+
+        private final Set<Integer> registrations = ConcurrentHashMap.newKeySet();
+
+        private final List<RpcMessage> heldReplies = new ArrayList<RpcMessage>();
+
+        private long holdGeneration = 0;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.output = socket.getOutputStream();
+        }
+
+        void start() {
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    readLoop();
+                }
+            }, "fake-olad-connection");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Write a message to the client.
+         */
+        public void send(RpcMessage message) throws IOException {
+            byte[] data = message.toByteArray();
+            ByteBuffer frame = ByteBuffer.allocate(4 + data.length).order(ByteOrder.nativeOrder());
+            frame.putInt((PROTOCOL_VERSION << 28) | (data.length & SIZE_MASK));
+            frame.put(data);
+            write(frame.array());
+        }
+
+        /**
+         * Send a reply, holding it back if replies are being reordered.
+         */
+        void reply(RpcMessage message) {
+            int window = reorderWindow;
+            if (window <= 1) {
+                sendQuietly(message);
+                return;
+            }
+
+            List<RpcMessage> ready = null;
+            synchronized (heldReplies) {
+                heldReplies.add(message);
+                if (heldReplies.size() >= window) {
+                    ready = takeHeldReplies();
+                } else if (heldReplies.size() == 1) {
+                    final long generation = holdGeneration;
+                    schedule(new Runnable() {
+                        public void run() {
+                            releaseHeldReplies(generation);
+                        }
+                    }, reorderTimeout);
+                }
+            }
+            if (ready != null) {
+                sendReversed(ready);
+            }
+        }
+
+        private void releaseHeldReplies(long generation) {
+            List<RpcMessage> ready;
+            synchronized (heldReplies) {
+                if (generation != holdGeneration) {
+                    return;
+                }
+                ready = takeHeldReplies();
+            }
+            sendReversed(ready);
+        }
+
+        private List<RpcMessage> takeHeldReplies() {
+            List<RpcMessage> ready = new ArrayList<RpcMessage>(heldReplies);
+            heldReplies.clear();
+            holdGeneration++;
+            return ready;
+        }
+
+        private void sendReversed(List<RpcMessage> messages) {
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                sendQuietly(messages.get(i));
+            }
+        }
+
+        /**
+         * Write a message to the client, logging any error.
+         */
+        public void sendQuietly(RpcMessage message) {
+            try {
+                send(message);
+            } catch (IOException e) {
+                if (running) {
+                    logger.fine("Error sending reply: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Write raw bytes to the client.
+         */
+        protected void write(byte[] bytes) throws IOException {
+            synchronized (output) {
+                int size = fragmentSize;
+                if (size == 0) {
+                    output.write(bytes);
+                    output.flush();
+                    return;
+                }
+                for (int offset = 0; offset < bytes.length; offset += size) {
+                    output.write(bytes, offset, Math.min(size, bytes.length - offset));
+                    output.flush();
+                    pause(fragmentPause);
+                }
+            }
+        }
+
+        private void pause(long nanos) throws IOException {
+            if (nanos == 0) {
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing reply");
+            }
+        }
+
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.warning("Error closing connection. " + e.getMessage());
+            }
+        }
+
+        private void readLoop() {
+            try {
+                DataInputStream input = new DataInputStream(socket.getInputStream());
+                byte[] header = new byte[4];
+                while (true) {
+                    input.readFully(header);
+                    int size = ByteBuffer.wrap(header).order(ByteOrder.nativeOrder()).getInt() & SIZE_MASK;
+                    byte[] data = new byte[size];
+                    input.readFully(data);
+                    RpcMessage message = RpcMessage.parseFrom(data);
+                    if (message.getType() == Rpc.Type.REQUEST || message.getType() == Rpc.Type.STREAM_REQUEST) {
+                        dispatch(this, message);
+                    } else if (message.getType() == Rpc.Type.REQUEST_CANCEL) {
+                        // like olad, carry on with the request anyway
+                        cancelledRequests.incrementAndGet();
+                    } else if (message.getType() == Rpc.Type.RESPONSE) {
+                        pushResponses.incrementAndGet();
+                    }
+                }
+            } catch (EOFException e) {
+                // client disconnected
+            } catch (SocketException e) {
+                // closed
+            } catch (IOException e) {
+                logger.warning("Error reading request: " + e.getMessage());
+            }
+            connections.remove(this);
+            close();
+        }
+    }
+}